@@ -0,0 +1,363 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Learns the latency of each include path to decide whether a subrequest is worth dispatching to
+ * another thread.  A fragment that renders faster than the cost of the thread handoff is run inline
+ * on the parent thread instead.
+ *
+ * <p>The latency of each path is tracked as an exponentially weighted moving average (EWMA) along with
+ * its variance.  A path is run inline once it has enough samples and its mean plus one standard deviation
+ * is below the inline threshold.  Paths without enough samples are run concurrently.</p>
+ *
+ * <p>The inline threshold is learned from the observed cost of the thread handoff: the time from dispatching
+ * a subrequest to the executor until it starts running, tracked the same way as the latency of each path.
+ * Until enough handoffs have been observed, the initial inline threshold is used.</p>
+ *
+ * <p>Include paths may be derived from the client request, so only the most recently recorded paths are
+ * remembered, up to a maximum.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see  SubRequestExecutor#setAdaptiveDispatchPolicy(com.aoapps.servlet.subrequest.AdaptiveDispatchPolicy)
+ */
+public class AdaptiveDispatchPolicy {
+
+  /**
+   * The default inline threshold used until the cost of the thread handoff has been learned, in nanoseconds.
+   */
+  public static final long DEFAULT_INLINE_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  /**
+   * The default weight given to each new sample.
+   */
+  public static final double DEFAULT_ALPHA = 0.2;
+
+  /**
+   * The default number of samples required before a path may be run inline.
+   */
+  public static final int DEFAULT_MIN_SAMPLES = 10;
+
+  /**
+   * The default maximum number of paths to remember.
+   */
+  public static final int DEFAULT_MAX_PATHS = 1000;
+
+  /**
+   * The learned latency of a single path.
+   *
+   * <p>This class is immutable and thread safe.</p>
+   */
+  public static final class PathStats {
+
+    private final long samples;
+    private final double mean;
+    private final double variance;
+
+    /**
+     * The {@link System#nanoTime()} of the most recent sample, for forgetting the least recently recorded path.
+     */
+    private final long lastSampleNanos;
+
+    private PathStats(long samples, double mean, double variance, long lastSampleNanos) {
+      this.samples = samples;
+      this.mean = mean;
+      this.variance = variance;
+      this.lastSampleNanos = lastSampleNanos;
+    }
+
+    /**
+     * Gets the number of samples recorded.
+     */
+    public long getSamples() {
+      return samples;
+    }
+
+    /**
+     * Gets the moving average latency, in nanoseconds.
+     */
+    public double getMean() {
+      return mean;
+    }
+
+    /**
+     * Gets the moving variance of latency, in nanoseconds squared.
+     */
+    public double getVariance() {
+      return variance;
+    }
+
+    /**
+     * Gets the moving standard deviation of latency, in nanoseconds.
+     */
+    public double getStdDev() {
+      return Math.sqrt(variance);
+    }
+
+    @Override
+    public String toString() {
+      return PathStats.class.getSimpleName()
+          + "(samples=" + samples
+          + ", mean=" + Math.round(mean) + "ns"
+          + ", stdDev=" + Math.round(getStdDev()) + "ns"
+          + ")";
+    }
+  }
+
+  private final long inlineThresholdNanos;
+  private final double alpha;
+  private final int minSamples;
+  private final int maxPaths;
+
+  private final ConcurrentMap<String, PathStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * The learned cost of the thread handoff or {@code null} when none observed.
+   */
+  private final AtomicReference<PathStats> handoff = new AtomicReference<>();
+
+  /**
+   * @param inlineThreshold  Paths expected to complete within this time are run inline, until the cost of the
+   *                         thread handoff has been learned.
+   * @param alpha  The weight given to each new sample, between 0 (exclusive) and 1 (inclusive).
+   * @param minSamples  The number of samples required before a path may be run inline, and before the
+   *                    learned cost of the thread handoff is used.
+   * @param maxPaths  The maximum number of paths to remember, forgetting the least recently recorded.
+   */
+  public AdaptiveDispatchPolicy(long inlineThreshold, TimeUnit unit, double alpha, int minSamples, int maxPaths) {
+    if (inlineThreshold < 0) {
+      throw new IllegalArgumentException("inlineThreshold < 0: " + inlineThreshold);
+    }
+    if (!(alpha > 0 && alpha <= 1)) {
+      throw new IllegalArgumentException("alpha not in (0, 1]: " + alpha);
+    }
+    if (minSamples < 1) {
+      throw new IllegalArgumentException("minSamples < 1: " + minSamples);
+    }
+    if (maxPaths < 1) {
+      throw new IllegalArgumentException("maxPaths < 1: " + maxPaths);
+    }
+    this.inlineThresholdNanos = unit.toNanos(inlineThreshold);
+    this.alpha = alpha;
+    this.minSamples = minSamples;
+    this.maxPaths = maxPaths;
+  }
+
+  /**
+   * Uses the default maximum paths.
+   *
+   * @param inlineThreshold  Paths expected to complete within this time are run inline, until the cost of the
+   *                         thread handoff has been learned.
+   * @param alpha  The weight given to each new sample, between 0 (exclusive) and 1 (inclusive).
+   * @param minSamples  The number of samples required before a path may be run inline, and before the
+   *                    learned cost of the thread handoff is used.
+   */
+  public AdaptiveDispatchPolicy(long inlineThreshold, TimeUnit unit, double alpha, int minSamples) {
+    this(inlineThreshold, unit, alpha, minSamples, DEFAULT_MAX_PATHS);
+  }
+
+  /**
+   * Uses the default alpha, minimum samples, and maximum paths.
+   *
+   * @param inlineThreshold  Paths expected to complete within this time are run inline, until the cost of the
+   *                         thread handoff has been learned.
+   */
+  public AdaptiveDispatchPolicy(long inlineThreshold, TimeUnit unit) {
+    this(inlineThreshold, unit, DEFAULT_ALPHA, DEFAULT_MIN_SAMPLES);
+  }
+
+  /**
+   * Uses the default inline threshold, alpha, minimum samples, and maximum paths.
+   */
+  public AdaptiveDispatchPolicy() {
+    this(DEFAULT_INLINE_THRESHOLD_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the initial inline threshold, used until the cost of the thread handoff has been learned.
+   */
+  public long getInitialInlineThreshold(TimeUnit unit) {
+    return unit.convert(inlineThresholdNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the current inline threshold, which is the learned mean cost of the thread handoff once it has enough
+   * samples, or the initial inline threshold until then.
+   */
+  public long getInlineThreshold(TimeUnit unit) {
+    return unit.convert(getInlineThresholdNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  private long getInlineThresholdNanos() {
+    PathStats h = handoff.get();
+    return (h != null && h.samples >= minSamples) ? Math.round(h.mean) : inlineThresholdNanos;
+  }
+
+  public double getAlpha() {
+    return alpha;
+  }
+
+  public int getMinSamples() {
+    return minSamples;
+  }
+
+  public int getMaxPaths() {
+    return maxPaths;
+  }
+
+  /**
+   * Adds a sample to the given stats.
+   *
+   * @param old  The stats or {@code null} for the first sample
+   */
+  private PathStats update(PathStats old, double sample, long nowNanos) {
+    if (old == null) {
+      return new PathStats(1, sample, 0, nowNanos);
+    }
+    // Incremental weighted mean and variance, see Tony Finch, "Incremental calculation of weighted mean and variance"
+    double diff = sample - old.mean;
+    double incr = alpha * diff;
+    return new PathStats(
+        old.samples + 1,
+        old.mean + incr,
+        (1 - alpha) * (old.variance + diff * incr),
+        nowNanos
+    );
+  }
+
+  /**
+   * Records the latency of a completed subrequest.  When this is a new path and the maximum number of paths
+   * is exceeded, the least recently recorded path is forgotten.
+   */
+  public void record(String path, long latency, TimeUnit unit) {
+    double sample = unit.toNanos(latency);
+    long nowNanos = System.nanoTime();
+    PathStats updated = stats.compute(path, (p, old) -> update(old, sample, nowNanos));
+    if (updated.samples == 1 && stats.size() > maxPaths) {
+      forgetLeastRecent(path);
+    }
+  }
+
+  /**
+   * Forgets the least recently recorded path other than the given path.
+   */
+  private void forgetLeastRecent(String except) {
+    String leastPath = null;
+    PathStats leastStats = null;
+    for (Map.Entry<String, PathStats> entry : stats.entrySet()) {
+      PathStats pathStats = entry.getValue();
+      if (
+          !entry.getKey().equals(except)
+              && (leastStats == null || pathStats.lastSampleNanos - leastStats.lastSampleNanos < 0)
+      ) {
+        leastPath = entry.getKey();
+        leastStats = pathStats;
+      }
+    }
+    if (leastPath != null) {
+      stats.remove(leastPath, leastStats);
+    }
+  }
+
+  /**
+   * Records the cost of a thread handoff: the time from dispatching a subrequest to the executor
+   * until it starts running.
+   */
+  public void recordHandoff(long latency, TimeUnit unit) {
+    double sample = unit.toNanos(latency);
+    long nowNanos = System.nanoTime();
+    handoff.updateAndGet(old -> update(old, sample, nowNanos));
+  }
+
+  /**
+   * Gets the learned cost of the thread handoff.
+   *
+   * @return  the stats or {@code null} when no handoff recorded
+   */
+  public PathStats getHandoffStats() {
+    return handoff.get();
+  }
+
+  /**
+   * Gets the learned latency of a path.
+   *
+   * @return  the stats or {@code null} when nothing recorded for the path
+   */
+  public PathStats getPathStats(String path) {
+    return stats.get(path);
+  }
+
+  /**
+   * Gets a snapshot of the learned latency of all paths.
+   */
+  public Map<String, PathStats> getPathStats() {
+    return Collections.unmodifiableMap(new HashMap<>(stats));
+  }
+
+  /**
+   * Checks if the given learned latency should be run inline.
+   */
+  public boolean isInline(PathStats pathStats) {
+    return
+        pathStats != null
+            && pathStats.samples >= minSamples
+            && pathStats.mean + pathStats.getStdDev() < getInlineThresholdNanos();
+  }
+
+  /**
+   * Checks if the given path should be run inline on the parent thread.
+   */
+  public boolean isInline(String path) {
+    return isInline(stats.get(path));
+  }
+
+  /**
+   * Forgets all learned latencies, including the cost of the thread handoff.
+   */
+  public void clear() {
+    stats.clear();
+    handoff.set(null);
+  }
+
+  @Override
+  public String toString() {
+    return AdaptiveDispatchPolicy.class.getSimpleName()
+        + "(inlineThreshold=" + getInlineThresholdNanos() + "ns"
+        + ", initialInlineThreshold=" + inlineThresholdNanos + "ns"
+        + ", alpha=" + alpha
+        + ", minSamples=" + minSamples
+        + ", maxPaths=" + maxPaths
+        + ", paths=" + stats.size()
+        + ")";
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.ServletRequest;
+
+/**
+ * The attributes changed on a sub request, over the attributes of the wrapped request.
+ * Only the changes are stored, with removals recorded as tombstones, so the attributes of
+ * the wrapped request are never copied.
+ *
+ * <p>This class is not thread safe.</p>
+ */
+final class AttributeOverlay {
+
+  /**
+   * Marks an attribute removed from this overlay while still present on the wrapped request.
+   */
+  private static final Object TOMBSTONE = new Object();
+
+  private final Map<String, Object> changes = new LinkedHashMap<>();
+
+  /**
+   * Gets an attribute, falling back to the wrapped request when not changed.
+   */
+  Object get(ServletRequest req, String name) {
+    Object value = changes.get(name);
+    if (value == null) {
+      return req.getAttribute(name);
+    }
+    return (value == TOMBSTONE) ? null : value;
+  }
+
+  /**
+   * Sets or removes an attribute.
+   *
+   * @param o  the new value or {@code null} to remove the attribute
+   */
+  void set(ServletRequest req, String name, Object o) {
+    if (o != null) {
+      changes.put(name, o);
+    } else if (req.getAttribute(name) != null) {
+      changes.put(name, TOMBSTONE);
+    } else {
+      changes.remove(name);
+    }
+  }
+
+  /**
+   * Gets the names of the attributes of the wrapped request that have not been removed,
+   * followed by the names of the attributes added.
+   *
+   * @param hiddenAttributeNames  the names not returned, even when set
+   */
+  Enumeration<String> getNames(ServletRequest req, Set<String> hiddenAttributeNames) {
+    Set<String> names = new LinkedHashSet<>();
+    Enumeration<String> attrNames = req.getAttributeNames();
+    while (attrNames.hasMoreElements()) {
+      String attrName = attrNames.nextElement();
+      if (changes.get(attrName) != TOMBSTONE && !hiddenAttributeNames.contains(attrName)) {
+        names.add(attrName);
+      }
+    }
+    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+      String attrName = entry.getKey();
+      if (entry.getValue() != TOMBSTONE && !hiddenAttributeNames.contains(attrName)) {
+        names.add(attrName);
+      }
+    }
+    return Collections.enumeration(names);
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.tempfiles.TempFile;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Captures bytes in memory, moving them to a temp file once larger than a threshold.
+ * Once the sub response is cancelled, the captured bytes are discarded and all further writes
+ * fail fast with {@link CancellationException}.
+ *
+ * <p>This class is not thread safe, except that {@link #cancel()} may be called from any thread.</p>
+ *
+ * @see  ServletSubResponse#newBufferWriter(com.aoapps.tempfiles.TempFileContext)
+ */
+final class ByteCaptureOutputStream extends ServletOutputStream {
+
+  private final IServletSubResponse response;
+  private final TempFileContext tempFileContext;
+  private final long tempFileThreshold;
+
+  /**
+   * The bytes while in memory or {@code null} once moved to a temp file.
+   */
+  private ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+  private TempFile tempFile;
+
+  /**
+   * The buffered stream to the temp file, so that small writes, such as {@link #write(int)}, do not each make a
+   * system call.
+   */
+  private OutputStream fileOut;
+  private long length;
+  private boolean closed;
+
+  /**
+   * Held while writing, so that {@link #cancel()} does not discard the bytes from under a write in progress.
+   * A {@link ReentrantLock} is used instead of a monitor so that it does not pin a virtual thread.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * @param response  The sub response checked for cancellation or {@code null} when not cancellable.
+   * @param tempFileContext  The temp file list for bytes larger than {@code tempFileThreshold} or {@code null}
+   *                         to buffer in memory only.
+   */
+  ByteCaptureOutputStream(IServletSubResponse response, TempFileContext tempFileContext, long tempFileThreshold) {
+    this.response = response;
+    this.tempFileContext = tempFileContext;
+    this.tempFileThreshold = tempFileThreshold;
+  }
+
+  private void checkWrite(int len) throws CancellationException, IOException {
+    if (response != null && response.isCancelled()) {
+      discardImpl();
+      throw new CancellationException("Sub response cancelled");
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (fileOut == null && tempFileContext != null && length + len > tempFileThreshold) {
+      tempFile = tempFileContext.createTempFile("ByteCaptureOutputStream");
+      fileOut = new BufferedOutputStream(new FileOutputStream(tempFile.getFile()));
+      bout.writeTo(fileOut);
+      bout = null;
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    lock.lock();
+    try {
+      checkWrite(1);
+      if (fileOut == null) {
+        bout.write(b);
+      } else {
+        fileOut.write(b);
+      }
+      length++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    lock.lock();
+    try {
+      checkWrite(len);
+      if (fileOut == null) {
+        bout.write(b, off, len);
+      } else {
+        fileOut.write(b, off, len);
+      }
+      length += len;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      if (fileOut != null) {
+        fileOut.flush();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closeImpl();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void closeImpl() throws IOException {
+    if (!closed) {
+      closed = true;
+      if (fileOut != null) {
+        // Writes any buffered bytes to the temp file before it is read
+        fileOut.flush();
+        fileOut.close();
+      }
+    }
+  }
+
+  /**
+   * Closes this stream, deleting any temp file.
+   */
+  void discard() throws IOException {
+    lock.lock();
+    try {
+      discardImpl();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void discardImpl() throws IOException {
+    closeImpl();
+    bout = null;
+    if (tempFile != null) {
+      tempFile.close();
+      tempFile = null;
+    }
+  }
+
+  /**
+   * Discards the bytes immediately, instead of on the next write, so a cancelled subrequest that is no
+   * longer writing does not hold onto its memory or temp file.  Waits for any write in progress.
+   */
+  void cancel() {
+    lock.lock();
+    try {
+      discardImpl();
+    } catch (IOException e) {
+      // Discarding output anyway
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes this stream, flushing any bytes buffered for the temp file, and gets the bytes captured.
+   *
+   * @throws CancellationException when the sub response has been cancelled
+   */
+  ByteResult getResult() throws CancellationException, IOException {
+    lock.lock();
+    try {
+      if (response != null && response.isCancelled()) {
+        discardImpl();
+        throw new CancellationException("Sub response cancelled");
+      }
+      closeImpl();
+      return (fileOut == null)
+          ? new ByteResult(bout.toByteArray(), null, length)
+          : new ByteResult(null, tempFile, length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  /**
+   * Writes never block, so the listener is called immediately.
+   */
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    try {
+      writeListener.onWritePossible();
+    } catch (IOException e) {
+      writeListener.onError(e);
+    }
+  }
+}
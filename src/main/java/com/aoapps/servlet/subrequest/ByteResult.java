@@ -0,0 +1,181 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.tempfiles.TempFile;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bytes captured from a {@link IServletSubResponse#getOutputStream() sub response output stream}, either in memory
+ * or in a temp file.
+ *
+ * <p>The temp file is deleted when its {@link com.aoapps.tempfiles.TempFileContext} is closed, so the context must
+ * remain open while the result is in use.</p>
+ *
+ * <p>Bytes in a temp file are written without being decoded or passing through a {@link java.io.Writer}.  They are
+ * transferred with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which the
+ * operating system may perform without copying through user space when writing to a file or channel.  Other
+ * streams are written through {@link Channels#newChannel(java.io.OutputStream)}, which still copies through user
+ * space but without a heap buffer per write.</p>
+ *
+ * <p>Only bytes written to the {@linkplain IServletSubResponse#getOutputStream() output stream} are captured this
+ * way.  Characters written to the {@linkplain IServletSubResponse#getWriter() writer}, even once moved to a temp
+ * file by {@link com.aoapps.io.buffer.AutoTempFileWriter}, are stored as characters and must still be encoded.</p>
+ *
+ * <p>This class is immutable and thread safe.</p>
+ *
+ * @see  IServletSubResponse#getCapturedBytes()
+ */
+public final class ByteResult {
+
+  private static final ByteResult EMPTY = new ByteResult(new byte[0], null, 0);
+
+  /**
+   * Gets the result with no bytes.
+   */
+  public static ByteResult getEmpty() {
+    return EMPTY;
+  }
+
+  /**
+   * The bytes when in memory or {@code null} when in a temp file.
+   */
+  final byte[] bytes;
+
+  /**
+   * The bytes when in a temp file or {@code null} when in memory.
+   */
+  final TempFile tempFile;
+
+  private final long length;
+
+  ByteResult(byte[] bytes, TempFile tempFile, long length) {
+    this.bytes = bytes;
+    this.tempFile = tempFile;
+    this.length = length;
+  }
+
+  /**
+   * Gets the number of bytes captured.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Checks if the bytes have been moved to a temp file.
+   */
+  public boolean isTempFile() {
+    return tempFile != null;
+  }
+
+  /**
+   * Creates a new stream reading the bytes from the beginning.
+   */
+  public InputStream getInputStream() throws IOException {
+    return (bytes != null)
+        ? new ByteArrayInputStream(bytes)
+        : new FileInputStream(tempFile.getFile());
+  }
+
+  /**
+   * Writes the bytes to the given stream, without decoding them.  Bytes in a temp file are transferred directly
+   * when the stream is a {@link FileOutputStream} or is itself a {@link WritableByteChannel}, as some containers
+   * provide for their servlet output streams, and through a channel over the stream otherwise.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if (bytes != null) {
+      out.write(bytes);
+    } else if (length > 0) {
+      try (FileChannel in = FileChannel.open(tempFile.getFile().toPath(), StandardOpenOption.READ)) {
+        if (out instanceof FileOutputStream) {
+          transferTo(in, ((FileOutputStream) out).getChannel());
+        } else if (out instanceof WritableByteChannel) {
+          transferTo(in, (WritableByteChannel) out);
+        } else {
+          // Not closed, since closing the channel would close the stream
+          transferTo(in, Channels.newChannel(out));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the bytes to the given blocking channel, without decoding them.  Bytes in a temp file are transferred
+   * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+   */
+  public void writeTo(WritableByteChannel out) throws IOException {
+    if (bytes != null) {
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
+      while (buf.hasRemaining()) {
+        out.write(buf);
+      }
+    } else if (length > 0) {
+      try (FileChannel in = FileChannel.open(tempFile.getFile().toPath(), StandardOpenOption.READ)) {
+        transferTo(in, out);
+      }
+    }
+  }
+
+  /**
+   * Transfers the entire temp file to a blocking channel.
+   */
+  private void transferTo(FileChannel in, WritableByteChannel out) throws IOException {
+    long position = 0;
+    while (position < length) {
+      long count = in.transferTo(position, length - position, out);
+      if (count <= 0) {
+        throw new IOException("Unable to transfer temp file at position " + position + " of " + length);
+      }
+      position += count;
+    }
+  }
+
+  /**
+   * Gets a copy of the bytes, reading the temp file into memory when needed.
+   */
+  public byte[] toByteArray() throws IOException {
+    return (bytes != null)
+        ? bytes.clone()
+        : Files.readAllBytes(tempFile.getFile().toPath());
+  }
+
+  @Override
+  public String toString() {
+    return ByteResult.class.getSimpleName()
+        + "(length=" + length
+        + ", tempFile=" + isTempFile()
+        + ")";
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.io.buffer.BufferResult;
+import com.aoapps.io.buffer.BufferWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes to a captured buffer until the sub response is cancelled.  Once cancelled, the buffer is closed
+ * so it stops consuming memory and temp file space, and all further writes fail fast with
+ * {@link CancellationException}.
+ *
+ * <p>{@link CancellationException} is unchecked so that it is not swallowed by {@link java.io.PrintWriter}.</p>
+ *
+ * <p>Writes are performed by the subrequest thread, while {@link #cancel()} may be called from any thread.
+ * A {@link ReentrantLock} is used instead of a monitor so that it does not pin a virtual thread.</p>
+ */
+final class CancellableWriter extends Writer {
+
+  private final IServletSubResponse response;
+  private final BufferWriter out;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  CancellableWriter(IServletSubResponse response, BufferWriter out) {
+    this.response = response;
+    this.out = out;
+  }
+
+  private void checkCancelled() throws CancellationException {
+    if (response.isCancelled()) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Discarding output anyway
+      }
+      throw new CancellationException("Sub response cancelled");
+    }
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    lock.lock();
+    try {
+      checkCancelled();
+      out.write(c);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    lock.lock();
+    try {
+      checkCancelled();
+      out.write(cbuf, off, len);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    lock.lock();
+    try {
+      checkCancelled();
+      out.write(str, off, len);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      checkCancelled();
+      out.flush();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      out.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes this writer and gets the captured output.
+   *
+   * @throws CancellationException when the sub response has been cancelled
+   */
+  BufferResult getResult() throws CancellationException, IOException {
+    lock.lock();
+    try {
+      checkCancelled();
+      out.close();
+      return out.getResult();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the buffer immediately, instead of on the next write, so a cancelled subrequest that is no
+   * longer writing does not hold onto its memory or temp file.  Waits for any write in progress.
+   */
+  void cancel() {
+    lock.lock();
+    try {
+      out.close();
+    } catch (IOException e) {
+      // Discarding output anyway
+    } finally {
+      lock.unlock();
+    }
+  }
+}
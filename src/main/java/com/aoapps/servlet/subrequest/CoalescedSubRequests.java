@@ -0,0 +1,97 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.ServletRequest;
+
+/**
+ * The subrequests of a request that may be shared by later identical subrequests.
+ *
+ * <p>The registry is stored as a request attribute.  Since subrequests read through to the attributes
+ * of their parent, nested subrequests share the registry of their parent.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see  SubRequestExecutor#setCoalescingKey(com.aoapps.servlet.subrequest.SubRequestExecutor.CoalescingKey)
+ */
+final class CoalescedSubRequests {
+
+  /**
+   * The request attribute holding the registry.
+   */
+  static final String ATTRIBUTE = CoalescedSubRequests.class.getName();
+
+  /**
+   * Gets the registry for the given request, creating it when the request has none.
+   * Only called by the parent thread.
+   */
+  static CoalescedSubRequests getInstance(ServletRequest request) {
+    CoalescedSubRequests coalesced = (CoalescedSubRequests) request.getAttribute(ATTRIBUTE);
+    if (coalesced == null) {
+      coalesced = new CoalescedSubRequests();
+      request.setAttribute(ATTRIBUTE, coalesced);
+    }
+    return coalesced;
+  }
+
+  private final ConcurrentMap<SubRequestKey, SubRequestExecutor.SubRequestFuture> subRequests = new ConcurrentHashMap<>();
+
+  private CoalescedSubRequests() {
+    // Created by getInstance only
+  }
+
+  /**
+   * Checks if the given subrequest may no longer be shared, since it was cancelled or every include has left it.
+   */
+  private static boolean isEvicted(SubRequestExecutor.SubRequestFuture future) {
+    return future.isCancelled() || future.isAbandoned();
+  }
+
+  /**
+   * Gets the subrequest for the given key, whether in flight or completed.
+   * A cancelled or abandoned subrequest is removed.
+   *
+   * @return  the subrequest or {@code null} when none or when cancelled or abandoned
+   */
+  SubRequestExecutor.SubRequestFuture get(SubRequestKey key) {
+    SubRequestExecutor.SubRequestFuture future = subRequests.get(key);
+    if (future != null && isEvicted(future)) {
+      subRequests.remove(key, future);
+      return null;
+    }
+    return future;
+  }
+
+  /**
+   * Registers the given subrequest unless another has already been registered for the key.
+   * A cancelled or abandoned subrequest is replaced.
+   *
+   * @return  the subrequest registered for the key, which is the given subrequest when registered
+   */
+  SubRequestExecutor.SubRequestFuture register(SubRequestKey key, SubRequestExecutor.SubRequestFuture future) {
+    return subRequests.merge(key, future, (existing, given) -> isEvicted(existing) ? given : existing);
+  }
+}
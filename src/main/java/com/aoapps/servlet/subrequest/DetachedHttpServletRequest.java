@@ -0,0 +1,279 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+/**
+ * An {@link UnmodifiableCopyHttpServletRequest} that never reads-through to the wrapped request once
+ * constructed, so that it remains valid after the wrapped request has completed and been recycled by the
+ * container.  Used for the renders shared between parent requests by {@link SubRequestSingleFlight}, which
+ * may outlive the parent that started them.
+ *
+ * <p>Everything is copied during constructor.  The request dispatcher and real path are resolved through the
+ * servlet context.  Since a shared render must not depend on the user, the user, session, cookies, credential
+ * headers, roles, parts, and upgrade are not available.  The deadline and the attributes internal to
+ * {@link SubRequestExecutor} are not copied, since they belong to the parent that started the render.</p>
+ */
+final class DetachedHttpServletRequest extends UnmodifiableCopyHttpServletRequest {
+
+  /**
+   * The headers that identify the user, in lower case.
+   */
+  private static final Set<String> CREDENTIAL_HEADERS = Collections.unmodifiableSet(
+      new HashSet<>(
+          Arrays.asList(
+              "authorization",
+              "cookie",
+              "proxy-authorization"
+          )
+      )
+  );
+
+  /**
+   * The attributes that belong to the parent request.
+   */
+  private static final Set<String> PARENT_ATTRIBUTES = Collections.unmodifiableSet(
+      new HashSet<>(
+          Arrays.asList(
+              SubRequestDeadline.ATTRIBUTE,
+              SubRequestBody.ATTRIBUTE,
+              CoalescedSubRequests.ATTRIBUTE,
+              SubRequestAdmissionControl.PARENT_CONCURRENT_ATTRIBUTE,
+              SubRequestExecutor.SHARED_SNAPSHOT_ATTRIBUTE
+          )
+      )
+  );
+
+  private static boolean isCredentialHeader(String name) {
+    return CREDENTIAL_HEADERS.contains(name.toLowerCase(Locale.ROOT));
+  }
+
+  private final String remoteHost;
+  private final String localName;
+  private final String requestURL;
+
+  DetachedHttpServletRequest(HttpServletRequest req) {
+    super(req, false);
+    removeAttributes(PARENT_ATTRIBUTES);
+    remoteHost = req.getRemoteHost();
+    localName = req.getLocalName();
+    requestURL = req.getRequestURL().toString();
+  }
+
+  @Override
+  public String getRemoteHost() {
+    return remoteHost;
+  }
+
+  @Override
+  public String getLocalName() {
+    return localName;
+  }
+
+  @Override
+  public RequestDispatcher getRequestDispatcher(String path) {
+    if (path == null) {
+      return null;
+    }
+    if (!path.startsWith("/")) {
+      // Relative to the current servlet path, as resolved by the container
+      String pathInfo = getPathInfo();
+      String current = (pathInfo == null) ? getServletPath() : (getServletPath() + pathInfo);
+      int slashPos = current.lastIndexOf('/');
+      path = ((slashPos == -1) ? "/" : current.substring(0, slashPos + 1)) + path;
+    }
+    return getServletContext().getRequestDispatcher(path);
+  }
+
+  @Deprecated(forRemoval = false)
+  @Override
+  public String getRealPath(String path) {
+    return getServletContext().getRealPath(path);
+  }
+
+  @Override
+  public long getDateHeader(String name) {
+    String value = getHeader(name);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public String getHeader(String name) {
+    return isCredentialHeader(name) ? null : super.getHeader(name);
+  }
+
+  @Override
+  public Enumeration<String> getHeaders(String name) {
+    return isCredentialHeader(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+  }
+
+  @Override
+  public Enumeration<String> getHeaderNames() {
+    List<String> headerNames = new ArrayList<>();
+    Enumeration<String> e = super.getHeaderNames();
+    while (e.hasMoreElements()) {
+      String name = e.nextElement();
+      if (!isCredentialHeader(name)) {
+        headerNames.add(name);
+      }
+    }
+    return Collections.enumeration(headerNames);
+  }
+
+  /**
+   * @return  {@code null}, since a detached request has no cookies
+   */
+  @Override
+  public Cookie[] getCookies() {
+    return null;
+  }
+
+  /**
+   * @return  {@code null}, since a detached request is not authenticated
+   */
+  @Override
+  public String getAuthType() {
+    return null;
+  }
+
+  /**
+   * @return  {@code null}, since a detached request is not authenticated
+   */
+  @Override
+  public String getRemoteUser() {
+    return null;
+  }
+
+  /**
+   * @return  {@code null}, since a detached request is not authenticated
+   */
+  @Override
+  public Principal getUserPrincipal() {
+    return null;
+  }
+
+  /**
+   * @return  {@code null}, since a detached request has no session
+   */
+  @Override
+  public String getRequestedSessionId() {
+    return null;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdValid() {
+    return false;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromCookie() {
+    return false;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromURL() {
+    return false;
+  }
+
+  @Deprecated(forRemoval = false)
+  @Override
+  public boolean isRequestedSessionIdFromUrl() {
+    return false;
+  }
+
+  @Override
+  public boolean isUserInRole(String role) {
+    throw new IllegalStateException("Not allowed on detached request");
+  }
+
+  @Override
+  public StringBuffer getRequestURL() {
+    return new StringBuffer(requestURL);
+  }
+
+  /**
+   * @return  {@code null} when not creating a session
+   *
+   * @throws  IllegalStateException  when creating a session
+   */
+  @Override
+  public HttpSession getSession(boolean create) {
+    if (create) {
+      throw new IllegalStateException("Not allowed on detached request");
+    }
+    return null;
+  }
+
+  @Override
+  public HttpSession getSession() {
+    return getSession(true);
+  }
+
+  @Override
+  public String changeSessionId() {
+    throw new IllegalStateException("Not allowed on detached request");
+  }
+
+  @Override
+  public Collection<Part> getParts() throws IOException, ServletException {
+    throw new IllegalStateException("Not allowed on detached request");
+  }
+
+  @Override
+  public Part getPart(String name) throws IOException, ServletException {
+    throw new IllegalStateException("Not allowed on detached request");
+  }
+
+  @Override
+  public <T extends HttpUpgradeHandler> T upgrade(Class<T> type) throws IOException, ServletException {
+    throw new IllegalStateException("Not allowed on detached request");
+  }
+}
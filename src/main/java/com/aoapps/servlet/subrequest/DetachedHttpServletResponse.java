@@ -0,0 +1,62 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An {@link UnmodifiableCopyHttpServletResponse} that never reads-through to the wrapped response once
+ * constructed, so that it remains valid after the wrapped response has completed and been recycled by the
+ * container.  Used for the renders shared between parent requests by {@link SubRequestSingleFlight}, which
+ * may outlive the parent that started them.
+ *
+ * <p>Since a shared render must not depend on the user, URLs are not encoded with the session.</p>
+ */
+final class DetachedHttpServletResponse extends UnmodifiableCopyHttpServletResponse {
+
+  DetachedHttpServletResponse(HttpServletResponse resp) {
+    super(resp);
+  }
+
+  @Override
+  public String encodeURL(String url) {
+    return url;
+  }
+
+  @Override
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+
+  @Deprecated(forRemoval = false)
+  @Override
+  public String encodeUrl(String url) {
+    return url;
+  }
+
+  @Deprecated(forRemoval = false)
+  @Override
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.io.buffer.BufferResult;
+import com.aoapps.io.buffer.BufferWriter;
+import com.aoapps.lang.io.Encoder;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The output of a subrequest that wrote to its {@linkplain IServletSubResponse#getOutputStream() output stream},
+ * carried as the captured bytes until merged.  Merged into a parent output stream in the same character encoding,
+ * the bytes are written without being decoded.  Otherwise, the bytes are decoded once on first use as characters.
+ *
+ * <p>This class is thread safe.</p>
+ */
+final class EncodedBufferResult implements BufferResult {
+
+  private final ByteResult bytes;
+  private final Charset charset;
+  private final TempFileContext tempFileContext;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * The decoded characters, decoded on first use.
+   */
+  private volatile BufferResult decoded;
+
+  /**
+   * @param characterEncoding  The character encoding of the sub response or {@code null} for the servlet default
+   *                           of {@code ISO-8859-1}.
+   * @param tempFileContext  The temp file list for decoding large output or {@code null} to decode in memory only.
+   */
+  EncodedBufferResult(ByteResult bytes, String characterEncoding, TempFileContext tempFileContext) {
+    this.bytes = bytes;
+    this.charset = (characterEncoding == null) ? StandardCharsets.ISO_8859_1 : Charset.forName(characterEncoding);
+    this.tempFileContext = tempFileContext;
+  }
+
+  /**
+   * Writes the captured bytes to the given stream when in the given encoding.
+   *
+   * @return  {@code true} when written, or {@code false} when in a different encoding and must be decoded
+   */
+  boolean writeTo(OutputStream out, Charset outCharset) throws IOException {
+    if (!charset.equals(outCharset)) {
+      return false;
+    }
+    bytes.writeTo(out);
+    return true;
+  }
+
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: decoded is volatile
+  private BufferResult getDecoded() throws IOException {
+    BufferResult d = decoded;
+    if (d == null) {
+      lock.lock();
+      try {
+        d = decoded;
+        if (d == null) {
+          BufferWriter out = ServletSubResponse.newBufferWriter(tempFileContext);
+          try (Reader in = new InputStreamReader(bytes.getInputStream(), charset)) {
+            in.transferTo(out);
+          } finally {
+            out.close();
+          }
+          d = out.getResult();
+          decoded = d;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return d;
+  }
+
+  @Override
+  public long getLength() throws IOException {
+    return getDecoded().getLength();
+  }
+
+  @Override
+  public boolean isFastToString() {
+    BufferResult d = decoded;
+    return d != null && d.isFastToString();
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return getDecoded().toString();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void writeTo(Writer out) throws IOException {
+    getDecoded().writeTo(out);
+  }
+
+  @Override
+  public void writeTo(Writer out, long off, long len) throws IOException {
+    getDecoded().writeTo(out, off, len);
+  }
+
+  @Override
+  public void writeTo(Encoder encoder, Writer out) throws IOException {
+    getDecoded().writeTo(encoder, out);
+  }
+
+  @Override
+  public void writeTo(Encoder encoder, Writer out, long off, long len) throws IOException {
+    getDecoded().writeTo(encoder, out, off, len);
+  }
+
+  @Override
+  public BufferResult trim() throws IOException {
+    return getDecoded().trim();
+  }
+}
@@ -0,0 +1,391 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Issues a second, identical subrequest when the first has not completed by a percentile of the recent
+ * latency of its path.  The first to complete is used and the other is cancelled, with its captured
+ * output discarded.  This trades a small amount of extra work for a reduction in tail latency.
+ *
+ * <p>Only idempotent subrequests are hedged, which are those with a method of {@code GET} or {@code HEAD}.
+ * Since {@link SubRequestExecutor} includes with the method of the parent request, hedging follows the method of
+ * the parent.  Override {@link #isHedgeable(javax.servlet.http.HttpServletRequest)} to decide otherwise.</p>
+ *
+ * <p>The latency of each path is kept in a histogram of the current window and one of the previous window, so the
+ * percentile follows the latency of between one and two windows, and older samples are forgotten.</p>
+ *
+ * <p>Include paths may be derived from the client request, so only the most recently recorded paths are
+ * remembered, up to a maximum.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see  SubRequestExecutor#setHedgePolicy(com.aoapps.servlet.subrequest.HedgePolicy)
+ */
+public class HedgePolicy {
+
+  /**
+   * The default percentile of recent latency after which a hedge is issued.
+   */
+  public static final double DEFAULT_PERCENTILE = 0.95;
+
+  /**
+   * The default number of samples required before a path is hedged.
+   */
+  public static final int DEFAULT_MIN_SAMPLES = 20;
+
+  /**
+   * The default duration of each window of latency, in nanoseconds.
+   */
+  public static final long DEFAULT_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * The default maximum number of paths to remember.
+   */
+  public static final int DEFAULT_MAX_PATHS = 1000;
+
+  /**
+   * The latency recorded during one window, with four buckets per power of two, giving percentiles within 25%.
+   */
+  private static final class Window {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static int getIndex(long nanos) {
+      if (nanos <= 0) {
+        return 0;
+      }
+      int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+      int sub = exp < SUB_BUCKET_BITS ? 0 : (int) ((nanos >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+      return exp * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value that maps to the given index.
+     */
+    private static long getUpperBound(int index) {
+      int exp = index / SUB_BUCKETS;
+      int sub = index % SUB_BUCKETS;
+      if (exp < SUB_BUCKET_BITS) {
+        return (2L << exp) - 1;
+      }
+      if (exp == Long.SIZE - 2 && sub == SUB_BUCKETS - 1) {
+        return Long.MAX_VALUE;
+      }
+      return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The {@link System#nanoTime()} this window started.
+     */
+    private final long startNanos;
+
+    /**
+     * The window before this one or {@code null} when none.  Cleared once this window becomes the previous window,
+     * so at most two windows are kept.
+     */
+    private volatile Window previous;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE * SUB_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+
+    private Window(long startNanos, Window previous) {
+      this.startNanos = startNanos;
+      this.previous = previous;
+    }
+
+    private void record(long nanos) {
+      counts.incrementAndGet(getIndex(nanos));
+      total.incrementAndGet();
+    }
+
+    /**
+     * Gets the total samples of this and the previous window.
+     */
+    private long getTotal() {
+      Window p = previous;
+      return total.get() + (p == null ? 0 : p.total.get());
+    }
+
+    /**
+     * Gets the percentile of this and the previous window.
+     */
+    private long getPercentile(double percentile) {
+      Window p = previous;
+      long target = (long) Math.ceil(percentile * (total.get() + (p == null ? 0 : p.total.get())));
+      long cumulative = 0;
+      int len = counts.length();
+      for (int i = 0; i < len; i++) {
+        cumulative += counts.get(i);
+        if (p != null) {
+          cumulative += p.counts.get(i);
+        }
+        if (cumulative >= target) {
+          return getUpperBound(i);
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * The recent latency of a single path.
+   */
+  private final class LatencyHistogram {
+
+    private final AtomicReference<Window> current;
+
+    /**
+     * The {@link System#nanoTime()} of the most recent sample, for forgetting the least recently recorded path.
+     */
+    private volatile long lastSampleNanos;
+
+    private LatencyHistogram(long nowNanos) {
+      current = new AtomicReference<>(new Window(nowNanos, null));
+      lastSampleNanos = nowNanos;
+    }
+
+    /**
+     * Gets the current window, starting a new window once the current has ended.
+     */
+    private Window getWindow(long nowNanos) {
+      while (true) {
+        Window window = current.get();
+        long age = nowNanos - window.startNanos;
+        if (age < windowNanos) {
+          return window;
+        }
+        // The ended window becomes the previous window, unless it ended too long ago to be recent
+        Window next = new Window(nowNanos, (age < 2 * windowNanos) ? window : null);
+        if (current.compareAndSet(window, next)) {
+          window.previous = null;
+          return next;
+        }
+      }
+    }
+
+    private void record(long nanos, long nowNanos) {
+      getWindow(nowNanos).record(nanos);
+      lastSampleNanos = nowNanos;
+    }
+  }
+
+  private final double percentile;
+  private final int minSamples;
+  private final long windowNanos;
+  private final int maxPaths;
+
+  private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong hedgeWonCount = new AtomicLong();
+
+  /**
+   * @param percentile  The percentile of recent latency after which a hedge is issued, between 0 and 1 (exclusive).
+   * @param minSamples  The number of recent samples required before a path is hedged.
+   * @param window  The duration of each window of latency.  The percentile follows the latency of between one and
+   *                two windows.
+   * @param maxPaths  The maximum number of paths to remember, forgetting the least recently recorded.
+   */
+  public HedgePolicy(double percentile, int minSamples, long window, TimeUnit unit, int maxPaths) {
+    if (!(percentile > 0 && percentile < 1)) {
+      throw new IllegalArgumentException("percentile not in (0, 1): " + percentile);
+    }
+    if (minSamples < 1) {
+      throw new IllegalArgumentException("minSamples < 1: " + minSamples);
+    }
+    if (window <= 0) {
+      throw new IllegalArgumentException("window <= 0: " + window);
+    }
+    if (maxPaths < 1) {
+      throw new IllegalArgumentException("maxPaths < 1: " + maxPaths);
+    }
+    this.percentile = percentile;
+    this.minSamples = minSamples;
+    this.windowNanos = unit.toNanos(window);
+    this.maxPaths = maxPaths;
+  }
+
+  /**
+   * Uses the default window and maximum paths.
+   *
+   * @param percentile  The percentile of recent latency after which a hedge is issued, between 0 and 1 (exclusive).
+   * @param minSamples  The number of recent samples required before a path is hedged.
+   */
+  public HedgePolicy(double percentile, int minSamples) {
+    this(percentile, minSamples, DEFAULT_WINDOW_NANOS, TimeUnit.NANOSECONDS, DEFAULT_MAX_PATHS);
+  }
+
+  /**
+   * Uses the default percentile, minimum samples, window, and maximum paths.
+   */
+  public HedgePolicy() {
+    this(DEFAULT_PERCENTILE, DEFAULT_MIN_SAMPLES);
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public int getMinSamples() {
+    return minSamples;
+  }
+
+  /**
+   * Gets the duration of each window of latency.
+   */
+  public long getWindow(TimeUnit unit) {
+    return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public int getMaxPaths() {
+    return maxPaths;
+  }
+
+  /**
+   * Checks if the given subrequest is idempotent and may be hedged.  The subrequest has the method of its parent
+   * request, so by default only subrequests of {@code GET} and {@code HEAD} requests are hedged.  Override to
+   * decide by other means, such as by path.
+   */
+  public boolean isHedgeable(HttpServletRequest subRequest) {
+    String method = subRequest.getMethod();
+    return "GET".equals(method) || "HEAD".equals(method);
+  }
+
+  /**
+   * Records the latency of a completed subrequest.  When this is a new path and the maximum number of paths
+   * is exceeded, the least recently recorded path is forgotten.
+   */
+  public void record(String path, long latency, TimeUnit unit) {
+    long nanos = unit.toNanos(latency);
+    long nowNanos = System.nanoTime();
+    LatencyHistogram histogram = histograms.get(path);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram(nowNanos);
+      histogram = histograms.putIfAbsent(path, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+        if (histograms.size() > maxPaths) {
+          forgetLeastRecent(path);
+        }
+      }
+    }
+    histogram.record(nanos, nowNanos);
+  }
+
+  /**
+   * Forgets the least recently recorded path other than the given path.
+   */
+  private void forgetLeastRecent(String except) {
+    String leastPath = null;
+    LatencyHistogram leastHistogram = null;
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      if (
+          !entry.getKey().equals(except)
+              && (leastHistogram == null || histogram.lastSampleNanos - leastHistogram.lastSampleNanos < 0)
+      ) {
+        leastPath = entry.getKey();
+        leastHistogram = histogram;
+      }
+    }
+    if (leastPath != null) {
+      histograms.remove(leastPath, leastHistogram);
+    }
+  }
+
+  /**
+   * Gets the time after which a hedge is issued for the given path.
+   *
+   * @return  the delay or {@code -1} when the path does not have enough recent history to be hedged
+   */
+  public long getHedgeDelay(String path, TimeUnit unit) {
+    LatencyHistogram histogram = histograms.get(path);
+    if (histogram == null) {
+      return -1;
+    }
+    Window window = histogram.getWindow(System.nanoTime());
+    if (window.getTotal() < minSamples) {
+      return -1;
+    }
+    return unit.convert(window.getPercentile(percentile), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Counts a hedge that was issued.
+   */
+  void hedged() {
+    hedgeCount.incrementAndGet();
+  }
+
+  /**
+   * Counts a hedge that completed before the original subrequest.
+   */
+  void hedgeWon() {
+    hedgeWonCount.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of hedges issued.
+   */
+  public long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /**
+   * Gets the number of hedges that completed before the original subrequest.
+   */
+  public long getHedgeWonCount() {
+    return hedgeWonCount.get();
+  }
+
+  /**
+   * Forgets all historical latencies.
+   */
+  public void clear() {
+    histograms.clear();
+  }
+
+  @Override
+  public String toString() {
+    return HedgePolicy.class.getSimpleName()
+        + "(percentile=" + percentile
+        + ", minSamples=" + minSamples
+        + ", window=" + windowNanos + "ns"
+        + ", maxPaths=" + maxPaths
+        + ", paths=" + histograms.size()
+        + ", hedges=" + getHedgeCount()
+        + ", hedgesWon=" + getHedgeWonCount()
+        + ")";
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -91,6 +91,18 @@ public class HttpServletSubResponse extends ServletSubResponse implements IHttpS
    */
   private Map<String, List<String>> headers;
 
+  @Override
+  public Map<String, List<String>> getAddedHeaders() {
+    if (headers == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, List<String>> copy = AoCollections.newLinkedHashMap(headers.size());
+    for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+      copy.put(entry.getKey(), AoCollections.optimalUnmodifiableList(new ArrayList<>(entry.getValue())));
+    }
+    return AoCollections.optimalUnmodifiableMap(copy);
+  }
+
   @Override
   public boolean containsHeader(String name) {
     return
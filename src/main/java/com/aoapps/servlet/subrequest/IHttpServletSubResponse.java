@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,6 +23,8 @@
 
 package com.aoapps.servlet.subrequest;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
@@ -34,6 +36,18 @@ public interface IHttpServletSubResponse extends IServletSubResponse, HttpServle
    */
   Map<String, Cookie> getCookies();
 
+  /**
+   * Gets the headers set or added on this response.  For each header, this includes any values
+   * from the parent response that were present when the header was first added.
+   *
+   * <p>The default implementation returns an empty map, for implementations that do not track headers.</p>
+   *
+   * @return  an unmodifiable copy, which is not affected by later changes to this response
+   */
+  default Map<String, List<String>> getAddedHeaders() {
+    return Collections.emptyMap();
+  }
+
   /**
    * Gets any redirect location.
    */
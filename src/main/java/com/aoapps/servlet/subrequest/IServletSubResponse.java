@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2019, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2019, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -37,4 +37,37 @@ public interface IServletSubResponse extends ServletResponse {
    * Any subsequent writes will create a new buffer.
    */
   BufferResult getCapturedOut() throws IOException;
+
+  /**
+   * Gets the bytes captured from {@link #getOutputStream()}, without decoding them.  This closes the associated
+   * capturing stream.  Any subsequent writes will create a new buffer.
+   *
+   * <p>The default implementation always returns {@linkplain ByteResult#getEmpty() no bytes}, for responses that
+   * do not capture their output stream.</p>
+   */
+  default ByteResult getCapturedBytes() throws IOException {
+    return ByteResult.getEmpty();
+  }
+
+  /**
+   * Cancels this response, such as when its subrequest has exceeded its deadline.
+   * Any further writes will fail with {@link java.util.concurrent.CancellationException},
+   * and captured output will be discarded.
+   *
+   * <p>This may be called from any thread.</p>
+   *
+   * <p>The default implementation does nothing, for responses that cannot be cancelled.</p>
+   */
+  default void cancel() {
+    // Not cancellable
+  }
+
+  /**
+   * Checks if {@link #cancel()} has been called.
+   *
+   * <p>The default implementation always returns {@code false}, for responses that cannot be cancelled.</p>
+   */
+  default boolean isCancelled() {
+    return false;
+  }
 }
@@ -0,0 +1,355 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the acquisitions of the locks of the thread-safe wrappers, along with how often and how long
+ * each had to wait for another thread.  This shows whether concurrent subrequests are actually running
+ * in parallel or are queued on a shared lock.
+ *
+ * <p>Metrics are kept per wrapper class and method group, and are only recorded while
+ * {@linkplain #setEnabled(boolean) enabled}.  When disabled, the default, each acquisition costs a single
+ * volatile read.  {@link #registerMBeans()} exposes the metrics through JMX.</p>
+ *
+ * <p>Each acquisition is recorded exactly once, to the method group of the method acquiring the lock.  The wrappers
+ * of a request share its lock, so a group is per wrapper class and what is accessed rather than per lock.  For
+ * example, {@link ThreadSafePart} shares the write lock of the request it was obtained from, but its acquisitions
+ * are only counted as {@link #PART_METADATA} and {@link #PART_CONTENT}.  The segment locks of
+ * {@link ThreadSafeServletOutputStream} are not recorded.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class LockMetrics implements LockMetricsMXBean {
+
+  private static final String DOMAIN = "com.aoapps.servlet.subrequest";
+
+  private static final long[] WAIT_HISTOGRAM_BOUNDS = {
+      TimeUnit.MICROSECONDS.toNanos(1),
+      TimeUnit.MICROSECONDS.toNanos(10),
+      TimeUnit.MICROSECONDS.toNanos(100),
+      TimeUnit.MILLISECONDS.toNanos(1),
+      TimeUnit.MILLISECONDS.toNanos(10),
+      TimeUnit.MILLISECONDS.toNanos(100)
+  };
+
+  /**
+   * An acquisition that waits at least this long is counted as contended, which is longer than acquiring a
+   * free lock takes.
+   */
+  private static final long CONTENDED_NANOS = WAIT_HISTOGRAM_BOUNDS[0];
+
+  /**
+   * Attribute access of {@link ThreadSafeServletRequest} and its subclasses, when not held in a concurrent map.
+   */
+  public static final LockMetrics REQUEST_ATTRIBUTES = new LockMetrics(ThreadSafeServletRequest.class, "attributes");
+
+  /**
+   * Parameter access of {@link ThreadSafeServletRequest} and its subclasses.
+   */
+  public static final LockMetrics REQUEST_PARAMETERS = new LockMetrics(ThreadSafeServletRequest.class, "parameters");
+
+  /**
+   * Header, cookie, and locale access of {@link ThreadSafeServletRequest} and its subclasses.
+   */
+  public static final LockMetrics REQUEST_HEADERS = new LockMetrics(ThreadSafeServletRequest.class, "headers");
+
+  /**
+   * Body access of {@link ThreadSafeServletRequest} and its subclasses, including its streams, parts, content type, and
+   * character encoding.
+   */
+  public static final LockMetrics REQUEST_BODY = new LockMetrics(ThreadSafeServletRequest.class, "body");
+
+  /**
+   * Session access of {@link ThreadSafeHttpServletRequest} and its subclasses.
+   */
+  public static final LockMetrics REQUEST_SESSION = new LockMetrics(ThreadSafeServletRequest.class, "session");
+
+  /**
+   * Authentication and authorization of {@link ThreadSafeHttpServletRequest} and its subclasses.
+   */
+  public static final LockMetrics REQUEST_SECURITY = new LockMetrics(ThreadSafeServletRequest.class, "security");
+
+  /**
+   * Asynchronous operation and upgrade of {@link ThreadSafeServletRequest} and its subclasses.
+   */
+  public static final LockMetrics REQUEST_ASYNC = new LockMetrics(ThreadSafeServletRequest.class, "async");
+
+  /**
+   * All other methods of {@link ThreadSafeServletRequest} and its subclasses, such as the paths, server, and wrapped
+   * request.
+   */
+  public static final LockMetrics REQUEST_PROPERTIES = new LockMetrics(ThreadSafeServletRequest.class, "properties");
+
+  /**
+   * Header and cookie access of {@link ThreadSafeServletResponse} and its subclasses, including the content type,
+   * character encoding, and locale.
+   */
+  public static final LockMetrics RESPONSE_HEADERS = new LockMetrics(ThreadSafeServletResponse.class, "headers");
+
+  /**
+   * Status, error, and redirect of {@link ThreadSafeHttpServletResponse} and its subclasses.
+   */
+  public static final LockMetrics RESPONSE_STATUS = new LockMetrics(ThreadSafeServletResponse.class, "status");
+
+  /**
+   * Output and buffer access of {@link ThreadSafeServletResponse} and its subclasses.
+   */
+  public static final LockMetrics RESPONSE_OUTPUT = new LockMetrics(ThreadSafeServletResponse.class, "output");
+
+  /**
+   * All other methods of {@link ThreadSafeServletResponse} and its subclasses, such as URL encoding and the wrapped
+   * response.
+   */
+  public static final LockMetrics RESPONSE_PROPERTIES = new LockMetrics(ThreadSafeServletResponse.class, "properties");
+
+  /**
+   * Reads of {@link ThreadSafeServletInputStream}, including its broadcast subscribers.
+   */
+  public static final LockMetrics INPUT_STREAM_READ = new LockMetrics(ThreadSafeServletInputStream.class, "read");
+
+  /**
+   * All other methods of {@link ThreadSafeServletInputStream}, such as close, mark, and subscribe.
+   */
+  public static final LockMetrics INPUT_STREAM_STATE = new LockMetrics(ThreadSafeServletInputStream.class, "state");
+
+  /**
+   * Writes of {@link ThreadSafeServletOutputStream}, including the hand-off of segments.
+   */
+  public static final LockMetrics OUTPUT_STREAM_WRITE = new LockMetrics(ThreadSafeServletOutputStream.class, "write");
+
+  /**
+   * Flush and close of {@link ThreadSafeServletOutputStream}.
+   */
+  public static final LockMetrics OUTPUT_STREAM_FLUSH = new LockMetrics(ThreadSafeServletOutputStream.class, "flush");
+
+  /**
+   * All other methods of {@link ThreadSafeServletOutputStream}, such as the write listener.
+   */
+  public static final LockMetrics OUTPUT_STREAM_STATE = new LockMetrics(ThreadSafeServletOutputStream.class, "state");
+
+  /**
+   * Copying the metadata of a {@link ThreadSafePart} when wrapped.
+   */
+  public static final LockMetrics PART_METADATA = new LockMetrics(ThreadSafePart.class, "metadata");
+
+  /**
+   * Content access of {@link ThreadSafePart}.
+   */
+  public static final LockMetrics PART_CONTENT = new LockMetrics(ThreadSafePart.class, "content");
+
+  private static final List<LockMetrics> all = Collections.unmodifiableList(Arrays.asList(
+      REQUEST_ATTRIBUTES,
+      REQUEST_PARAMETERS,
+      REQUEST_HEADERS,
+      REQUEST_BODY,
+      REQUEST_SESSION,
+      REQUEST_SECURITY,
+      REQUEST_ASYNC,
+      REQUEST_PROPERTIES,
+      RESPONSE_HEADERS,
+      RESPONSE_STATUS,
+      RESPONSE_OUTPUT,
+      RESPONSE_PROPERTIES,
+      INPUT_STREAM_READ,
+      INPUT_STREAM_STATE,
+      OUTPUT_STREAM_WRITE,
+      OUTPUT_STREAM_FLUSH,
+      OUTPUT_STREAM_STATE,
+      PART_METADATA,
+      PART_CONTENT
+  ));
+
+  /**
+   * Gets the metrics of all wrappers.
+   */
+  public static List<LockMetrics> getAll() {
+    return all;
+  }
+
+  private static volatile boolean enabled;
+
+  /**
+   * Checks if lock metrics are being recorded.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enables or disables the recording of lock metrics for all wrappers.
+   */
+  public static void setEnabled(boolean enabled) {
+    LockMetrics.enabled = enabled;
+  }
+
+  /**
+   * Registers the metrics of all wrappers with the platform MBean server, as
+   * {@code com.aoapps.servlet.subrequest:type=LockMetrics,wrapper=<class>,methodGroup=<group>}.
+   * Metrics already registered are left in place.
+   */
+  public static void registerMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (LockMetrics metrics : all) {
+      try {
+        server.registerMBean(metrics, metrics.objectName);
+      } catch (InstanceAlreadyExistsException e) {
+        // Already registered
+      }
+    }
+  }
+
+  /**
+   * Unregisters the metrics of all wrappers from the platform MBean server.
+   */
+  public static void unregisterMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (LockMetrics metrics : all) {
+      try {
+        server.unregisterMBean(metrics.objectName);
+      } catch (InstanceNotFoundException e) {
+        // Not registered
+      }
+    }
+  }
+
+  private final String wrapper;
+  private final String methodGroup;
+  private final ObjectName objectName;
+
+  private final LongAdder acquisitionCount = new LongAdder();
+  private final LongAdder contendedCount = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder[] waitHistogram = new LongAdder[WAIT_HISTOGRAM_BOUNDS.length + 1];
+
+  private LockMetrics(Class<?> wrapper, String methodGroup) {
+    this.wrapper = wrapper.getSimpleName();
+    this.methodGroup = methodGroup;
+    try {
+      objectName = new ObjectName(DOMAIN + ":type=LockMetrics,wrapper=" + this.wrapper + ",methodGroup=" + methodGroup);
+    } catch (JMException e) {
+      throw new AssertionError(e);
+    }
+    for (int i = 0; i < waitHistogram.length; i++) {
+      waitHistogram[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Acquires the given lock, recording to these metrics while enabled.  The lock is always acquired by
+   * {@link Lock#lock()}, timing how long it waited, since trying the lock first would let readers barge ahead
+   * of a queued writer of a fair or read/write lock.
+   */
+  void lock(Lock lock) {
+    if (enabled) {
+      long start = System.nanoTime();
+      lock.lock();
+      long wait = System.nanoTime() - start;
+      acquisitionCount.increment();
+      if (wait >= CONTENDED_NANOS) {
+        contendedCount.increment();
+      }
+      waitNanos.add(wait);
+      int bucket = 0;
+      while (bucket < WAIT_HISTOGRAM_BOUNDS.length && wait >= WAIT_HISTOGRAM_BOUNDS[bucket]) {
+        bucket++;
+      }
+      waitHistogram[bucket].increment();
+    } else {
+      lock.lock();
+    }
+  }
+
+  @Override
+  public String getWrapper() {
+    return wrapper;
+  }
+
+  @Override
+  public String getMethodGroup() {
+    return methodGroup;
+  }
+
+  @Override
+  public long getAcquisitionCount() {
+    return acquisitionCount.sum();
+  }
+
+  @Override
+  public long getContendedCount() {
+    return contendedCount.sum();
+  }
+
+  @Override
+  public long getWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  @Override
+  public long[] getWaitHistogramBounds() {
+    return WAIT_HISTOGRAM_BOUNDS.clone();
+  }
+
+  @Override
+  public long[] getWaitHistogram() {
+    long[] histogram = new long[waitHistogram.length];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = waitHistogram[i].sum();
+    }
+    return histogram;
+  }
+
+  @Override
+  public void reset() {
+    acquisitionCount.reset();
+    contendedCount.reset();
+    waitNanos.reset();
+    for (LongAdder bucket : waitHistogram) {
+      bucket.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return LockMetrics.class.getSimpleName()
+        + "(wrapper=" + wrapper
+        + ", methodGroup=" + methodGroup
+        + ", acquisitions=" + getAcquisitionCount()
+        + ", contended=" + getContendedCount()
+        + ", waitNanos=" + getWaitNanos()
+        + ", waitHistogram=" + Arrays.toString(getWaitHistogram())
+        + ")";
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+/**
+ * The management interface of {@link LockMetrics}.
+ */
+public interface LockMetricsMXBean {
+
+  /**
+   * Gets the name of the wrapper class owning the lock.
+   */
+  String getWrapper();
+
+  /**
+   * Gets the group of methods acquiring the lock.
+   */
+  String getMethodGroup();
+
+  /**
+   * Gets the number of times the lock was acquired.
+   */
+  long getAcquisitionCount();
+
+  /**
+   * Gets the number of times acquiring the lock waited at least one microsecond, which is counted as the lock
+   * having been held by another thread.
+   */
+  long getContendedCount();
+
+  /**
+   * Gets the total time waited for the lock, in nanoseconds.
+   */
+  long getWaitNanos();
+
+  /**
+   * Gets the upper bounds of the buckets of {@link #getWaitHistogram()}, in nanoseconds.
+   * The final bucket has no upper bound.
+   */
+  long[] getWaitHistogramBounds();
+
+  /**
+   * Gets the number of acquisitions in each bucket of wait time.
+   */
+  long[] getWaitHistogram();
+
+  /**
+   * Resets all counters.
+   */
+  void reset();
+}
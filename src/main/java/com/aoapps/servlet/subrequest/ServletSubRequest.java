@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -25,14 +25,13 @@ package com.aoapps.servlet.subrequest;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -131,19 +130,19 @@ public class ServletSubRequest implements IServletSubRequest {
     return newAttributes;
   }
 
-  private Map<String, Object> attributes;
+  /**
+   * The attributes changed on this request or {@code null} when unchanged.
+   */
+  private AttributeOverlay attributes;
 
   @Override
   public Object getAttribute(String name) {
     if (logger.isLoggable(Level.FINER)) {
       logger.finer("name: " + name);
     }
-    Map<String, Object> a = attributes;
-    if (
-        a != null
-    // && !hiddenAttributeNames.contains(name)
-    ) {
-      return a.get(name);
+    AttributeOverlay a = attributes;
+    if (a != null) {
+      return a.get(req, name);
     } else {
       return req.getAttribute(name);
     }
@@ -154,16 +153,9 @@ public class ServletSubRequest implements IServletSubRequest {
     if (logger.isLoggable(Level.FINER)) {
       logger.finer("start");
     }
-    Map<String, Object> a = attributes;
+    AttributeOverlay a = attributes;
     if (a != null) {
-      Set<String> attrNames = a.keySet();
-      List<String> nonHiddenAttributeNames = new ArrayList<>(attrNames.size());
-      for (String attrName : attrNames) {
-        if (!hiddenAttributeNames.contains(attrName)) {
-          nonHiddenAttributeNames.add(attrName);
-        }
-      }
-      return Collections.enumeration(nonHiddenAttributeNames);
+      return a.getNames(req, hiddenAttributeNames);
     } else {
       return req.getAttributeNames();
     }
@@ -179,13 +171,9 @@ public class ServletSubRequest implements IServletSubRequest {
       }
     }
     if (attributes == null) {
-      attributes = getAllAttributes(req);
-    }
-    if (o == null) {
-      attributes.remove(name);
-    } else {
-      attributes.put(name, o);
+      attributes = new AttributeOverlay();
     }
+    attributes.set(req, name, o);
   }
 
   @Override
@@ -227,9 +215,49 @@ public class ServletSubRequest implements IServletSubRequest {
     return req.getContentType();
   }
 
+  private ServletInputStream in;
+  private BufferedReader reader;
+
+  /**
+   * Creates a new stream over the body of the parent request, either
+   * {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast}.
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   */
+  private ServletInputStream newInputStream() throws IllegalStateException, IOException {
+    ServletRequest parent = req;
+    SubRequestBody body = SubRequestBody.get(parent);
+    if (body != null) {
+      return body.newInputStream();
+    }
+    if (parent instanceof ThreadSafeServletRequest) {
+      ThreadSafeServletInputStream broadcast = ((ThreadSafeServletRequest) parent).getBroadcastInputStream();
+      if (broadcast != null) {
+        return broadcast.subscribe();
+      }
+    }
+    throw new IllegalStateException("Not allowed on concurrent request");
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads an independent stream over the {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast} body of the parent request.</p>
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   *                               or {@link #getReader()} has already been called
+   */
   @Override
   public ServletInputStream getInputStream() throws IOException {
-    throw new IllegalStateException("Not allowed on concurrent request");
+    if (in == null) {
+      if (reader != null) {
+        throw new IllegalStateException("getReader() has already been called");
+      }
+      in = newInputStream();
+    }
+    return in;
   }
 
   @Override
@@ -272,9 +300,43 @@ public class ServletSubRequest implements IServletSubRequest {
     return req.getServerPort();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads an independent reader over the {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast} body of the parent request.</p>
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   *                               or {@link #getInputStream()} has already been called
+   */
   @Override
   public BufferedReader getReader() throws IOException {
-    throw new IllegalStateException("Not allowed on concurrent request");
+    if (reader == null) {
+      if (in != null) {
+        throw new IllegalStateException("getInputStream() has already been called");
+      }
+      String characterEncoding = getCharacterEncoding();
+      reader = new BufferedReader(
+          new InputStreamReader(
+              newInputStream(),
+              (characterEncoding == null) ? "ISO-8859-1" : characterEncoding
+          )
+      );
+    }
+    return reader;
+  }
+
+  /**
+   * Closes the stream over the body of the parent request, if opened.  Called once the subrequest has ended, so
+   * that a {@linkplain ThreadSafeServletInputStream#subscribe() broadcast subscriber} that did not read to the end
+   * does not hold back the other subscribers.
+   */
+  void closeInputStream() throws IOException {
+    if (reader != null) {
+      reader.close();
+    } else if (in != null) {
+      in.close();
+    }
   }
 
   @Override
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -25,15 +25,12 @@ package com.aoapps.servlet.subrequest;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -80,7 +77,10 @@ public class ServletSubRequestWrapper extends ServletRequestWrapper implements I
       )
   );
 
-  private Map<String, Object> attributes;
+  /**
+   * The attributes changed on this request or {@code null} when unchanged.
+   */
+  private AttributeOverlay attributes;
 
   @Override
   public Object getAttribute(String name) {
@@ -91,7 +91,7 @@ public class ServletSubRequestWrapper extends ServletRequestWrapper implements I
         attributes != null
             && !hiddenAttributeNames.contains(name)
     ) {
-      return attributes.get(name);
+      return attributes.get(getRequest(), name);
     } else {
       return super.getAttribute(name);
     }
@@ -103,14 +103,7 @@ public class ServletSubRequestWrapper extends ServletRequestWrapper implements I
       logger.finer("start");
     }
     if (attributes != null) {
-      Set<String> attrNames = attributes.keySet();
-      List<String> nonHiddenAttributeNames = new ArrayList<>(attrNames.size());
-      for (String attrName : attrNames) {
-        if (!hiddenAttributeNames.contains(attrName)) {
-          nonHiddenAttributeNames.add(attrName);
-        }
-      }
-      return Collections.enumeration(nonHiddenAttributeNames);
+      return attributes.getNames(getRequest(), hiddenAttributeNames);
     } else {
       return super.getAttributeNames();
     }
@@ -126,41 +119,9 @@ public class ServletSubRequestWrapper extends ServletRequestWrapper implements I
       }
     }
     if (attributes == null) {
-      Map<String, Object> newAttributes = new LinkedHashMap<>();
-      for (String hiddenAttrName : hiddenAttributeNames) {
-        if (logger.isLoggable(Level.FINEST)) {
-          logger.finest("hiddenAttrName: " + hiddenAttrName);
-        }
-        Object hiddenAttrVal = super.getAttribute(hiddenAttrName);
-        if (logger.isLoggable(Level.FINEST)) {
-          logger.finest("hiddenAttrVal: " + hiddenAttrVal);
-        }
-        if (hiddenAttrVal != null) {
-          newAttributes.put(hiddenAttrName, hiddenAttrVal);
-        }
-      }
-      Enumeration<String> attrNames = super.getAttributeNames();
-      while (attrNames.hasMoreElements()) {
-        String attrName = attrNames.nextElement();
-        if (logger.isLoggable(Level.FINEST)) {
-          logger.finest("attrName: " + attrName);
-        }
-        Object attrVal = super.getAttribute(attrName);
-        if (logger.isLoggable(Level.FINEST)) {
-          logger.finest("attrVal: " + attrVal);
-        }
-        // Check for null in case attribute was removed during iteration
-        if (attrVal != null) {
-          newAttributes.put(attrName, attrVal);
-        }
-      }
-      attributes = newAttributes;
-    }
-    if (o == null) {
-      attributes.remove(name);
-    } else {
-      attributes.put(name, o);
+      attributes = new AttributeOverlay();
     }
+    attributes.set(getRequest(), name, o);
   }
 
   @Override
@@ -187,14 +148,75 @@ public class ServletSubRequestWrapper extends ServletRequestWrapper implements I
     // Not checking to throw UnsupportedEncodingException here, assuming no longer in a context where character encoding may be set
   }
 
+  private ServletInputStream in;
+  private BufferedReader reader;
+
+  /**
+   * Creates a new stream over the body of the parent request, either
+   * {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast}.
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   */
+  private ServletInputStream newInputStream() throws IllegalStateException, IOException {
+    ServletRequest parent = getRequest();
+    SubRequestBody body = SubRequestBody.get(parent);
+    if (body != null) {
+      return body.newInputStream();
+    }
+    if (parent instanceof ThreadSafeServletRequest) {
+      ThreadSafeServletInputStream broadcast = ((ThreadSafeServletRequest) parent).getBroadcastInputStream();
+      if (broadcast != null) {
+        return broadcast.subscribe();
+      }
+    }
+    throw new IllegalStateException("Not allowed on concurrent request");
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads an independent stream over the {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast} body of the parent request.</p>
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   *                               or {@link #getReader()} has already been called
+   */
   @Override
   public ServletInputStream getInputStream() throws IOException {
-    throw new IllegalStateException("Not allowed on concurrent request");
+    if (in == null) {
+      if (reader != null) {
+        throw new IllegalStateException("getReader() has already been called");
+      }
+      in = newInputStream();
+    }
+    return in;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads an independent reader over the {@linkplain SubRequestBody captured} or
+   * {@linkplain ThreadSafeServletRequest#broadcastInputStream(int, int) broadcast} body of the parent request.</p>
+   *
+   * @throws IllegalStateException when the body of the parent request is neither captured nor broadcast
+   *                               or {@link #getInputStream()} has already been called
+   */
   @Override
   public BufferedReader getReader() throws IOException {
-    throw new IllegalStateException("Not allowed on concurrent request");
+    if (reader == null) {
+      if (in != null) {
+        throw new IllegalStateException("getInputStream() has already been called");
+      }
+      String characterEncoding = getCharacterEncoding();
+      reader = new BufferedReader(
+          new InputStreamReader(
+              newInputStream(),
+              (characterEncoding == null) ? "ISO-8859-1" : characterEncoding
+          )
+      );
+    }
+    return reader;
   }
 
   @Override
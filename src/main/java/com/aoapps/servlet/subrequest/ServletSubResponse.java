@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -33,10 +33,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
 import javax.servlet.ServletResponseWrapper;
-import org.apache.commons.lang3.NotImplementedException;
 
 /**
  * <b>This does not implement {@link ServletResponseWrapper} and use of it is in violation
@@ -63,6 +63,9 @@ public class ServletSubResponse implements IServletSubResponse {
   private String contentType;
   private Locale locale;
 
+  /**
+   * @param tempFileContext  The temp file list for auto temp files or {@code null} to buffer in memory only.
+   */
   public ServletSubResponse(ServletResponse resp, TempFileContext tempFileContext) {
     // this.resp = resp;
     this.tempFileContext = tempFileContext;
@@ -82,12 +85,36 @@ public class ServletSubResponse implements IServletSubResponse {
     return characterEncoding;
   }
 
+  /**
+   * Volatile so that {@link #cancel()} may release it from any thread.
+   */
+  private volatile ByteCaptureOutputStream capturedBytes;
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Captures the bytes written, spilling to a temp file as with {@link #getWriter()}.</p>
+   *
+   * @throws IllegalStateException when {@link #getWriter()} has already been called
+   */
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
-    throw new NotImplementedException("TODO");
+    if (capturedWriter != null) {
+      throw new IllegalStateException("getWriter() has already been called");
+    }
+    if (capturedBytes == null) {
+      capturedBytes = newByteCapture(this, tempFileContext);
+    }
+    return capturedBytes;
   }
 
+  /**
+   * @param tempFileContext  The temp file list for auto temp files or {@code null} to buffer in memory only.
+   */
   static BufferWriter newBufferWriter(TempFileContext tempFileContext) {
+    if (tempFileContext == null) {
+      return new CharArrayBufferWriter();
+    }
     return new AutoTempFileWriter(
         // new SegmentedWriter(),
         new CharArrayBufferWriter(),
@@ -96,26 +123,54 @@ public class ServletSubResponse implements IServletSubResponse {
     );
   }
 
-  private BufferWriter capturedOut;
+  /**
+   * @param response  The sub response checked for cancellation.
+   * @param tempFileContext  The temp file list for auto temp files or {@code null} to buffer in memory only.
+   */
+  static ByteCaptureOutputStream newByteCapture(IServletSubResponse response, TempFileContext tempFileContext) {
+    return new ByteCaptureOutputStream(
+        response,
+        tempFileContext,
+        AutoTempFileWriter.DEFAULT_TEMP_FILE_THRESHOLD
+    );
+  }
+
+  /**
+   * Volatile so that {@link #cancel()} may release it from any thread.
+   */
+  private volatile CancellableWriter capturedOut;
   private PrintWriter capturedWriter;
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalStateException when {@link #getOutputStream()} has already been called
+   */
   @Override
   public PrintWriter getWriter() throws IOException {
-    if (capturedOut == null) {
-      capturedOut = newBufferWriter(tempFileContext);
+    if (capturedBytes != null) {
+      throw new IllegalStateException("getOutputStream() has already been called");
     }
     if (capturedWriter == null) {
+      capturedOut = new CancellableWriter(this, newBufferWriter(tempFileContext));
       capturedWriter = new PrintWriter(capturedOut);
     }
     return capturedWriter;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws CancellationException when this response has been cancelled
+   */
   @Override
-  public BufferResult getCapturedOut() throws IOException {
+  public BufferResult getCapturedOut() throws IOException, CancellationException {
+    if (cancelled) {
+      throw new CancellationException("Sub response cancelled");
+    }
     if (capturedOut == null) {
       return EmptyResult.getInstance();
     } else {
-      capturedOut.close();
       BufferResult result = capturedOut.getResult();
       capturedWriter = null;
       capturedOut = null;
@@ -123,6 +178,46 @@ public class ServletSubResponse implements IServletSubResponse {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws CancellationException when this response has been cancelled
+   */
+  @Override
+  public ByteResult getCapturedBytes() throws IOException, CancellationException {
+    if (cancelled) {
+      throw new CancellationException("Sub response cancelled");
+    }
+    if (capturedBytes == null) {
+      return ByteResult.getEmpty();
+    } else {
+      ByteResult result = capturedBytes.getResult();
+      capturedBytes = null;
+      return result;
+    }
+  }
+
+  private volatile boolean cancelled;
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    // Release the captured output now, since the subrequest may never write again
+    CancellableWriter out = capturedOut;
+    if (out != null) {
+      out.cancel();
+    }
+    ByteCaptureOutputStream bytes = capturedBytes;
+    if (bytes != null) {
+      bytes.cancel();
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
   @Override
   public void setContentLength(int len) {
     // Nothing to do
@@ -161,6 +256,9 @@ public class ServletSubResponse implements IServletSubResponse {
     if (capturedWriter != null) {
       capturedWriter.flush();
     }
+    if (capturedBytes != null) {
+      capturedBytes.flush();
+    }
     committed = true;
   }
 
@@ -193,6 +291,14 @@ public class ServletSubResponse implements IServletSubResponse {
         throw new UncheckedIOException(e);
       }
     }
+    if (capturedBytes != null) {
+      try {
+        capturedBytes.discard();
+        capturedBytes = null;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
 
   @Override
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2017, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,17 +24,16 @@
 package com.aoapps.servlet.subrequest;
 
 import com.aoapps.io.buffer.BufferResult;
-import com.aoapps.io.buffer.BufferWriter;
 import com.aoapps.io.buffer.EmptyResult;
 import com.aoapps.tempfiles.TempFileContext;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
 import javax.servlet.ServletResponseWrapper;
-import org.apache.commons.lang3.NotImplementedException;
 
 /**
  * Wraps a servlet response with the intent to operate as a concurrent sub response.
@@ -54,7 +53,7 @@ public class ServletSubResponseWrapper extends ServletResponseWrapper implements
   private Locale locale;
 
   /**
-   * @param tempFileContext  The temp file list for auto temp files.
+   * @param tempFileContext  The temp file list for auto temp files or {@code null} to buffer in memory only.
    */
   public ServletSubResponseWrapper(ServletResponse resp, TempFileContext tempFileContext) {
     super(resp);
@@ -75,31 +74,65 @@ public class ServletSubResponseWrapper extends ServletResponseWrapper implements
     return characterEncoding;
   }
 
+  /**
+   * Volatile so that {@link #cancel()} may release it from any thread.
+   */
+  private volatile ByteCaptureOutputStream capturedBytes;
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Captures the bytes written, spilling to a temp file as with {@link #getWriter()}.</p>
+   *
+   * @throws IllegalStateException when {@link #getWriter()} has already been called
+   */
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
-    throw new NotImplementedException("TODO");
+    if (capturedWriter != null) {
+      throw new IllegalStateException("getWriter() has already been called");
+    }
+    if (capturedBytes == null) {
+      capturedBytes = ServletSubResponse.newByteCapture(this, tempFileContext);
+    }
+    return capturedBytes;
   }
 
-  private BufferWriter capturedOut;
+  /**
+   * Volatile so that {@link #cancel()} may release it from any thread.
+   */
+  private volatile CancellableWriter capturedOut;
   private PrintWriter capturedWriter;
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalStateException when {@link #getOutputStream()} has already been called
+   */
   @Override
   public PrintWriter getWriter() throws IOException {
-    if (capturedOut == null) {
-      capturedOut = ServletSubResponse.newBufferWriter(tempFileContext);
+    if (capturedBytes != null) {
+      throw new IllegalStateException("getOutputStream() has already been called");
     }
     if (capturedWriter == null) {
+      capturedOut = new CancellableWriter(this, ServletSubResponse.newBufferWriter(tempFileContext));
       capturedWriter = new PrintWriter(capturedOut);
     }
     return capturedWriter;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws CancellationException when this response has been cancelled
+   */
   @Override
-  public BufferResult getCapturedOut() throws IOException {
+  public BufferResult getCapturedOut() throws IOException, CancellationException {
+    if (cancelled) {
+      throw new CancellationException("Sub response cancelled");
+    }
     if (capturedOut == null) {
       return EmptyResult.getInstance();
     } else {
-      capturedOut.close();
       BufferResult result = capturedOut.getResult();
       capturedWriter = null;
       capturedOut = null;
@@ -107,6 +140,46 @@ public class ServletSubResponseWrapper extends ServletResponseWrapper implements
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws CancellationException when this response has been cancelled
+   */
+  @Override
+  public ByteResult getCapturedBytes() throws IOException, CancellationException {
+    if (cancelled) {
+      throw new CancellationException("Sub response cancelled");
+    }
+    if (capturedBytes == null) {
+      return ByteResult.getEmpty();
+    } else {
+      ByteResult result = capturedBytes.getResult();
+      capturedBytes = null;
+      return result;
+    }
+  }
+
+  private volatile boolean cancelled;
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    // Release the captured output now, since the subrequest may never write again
+    CancellableWriter out = capturedOut;
+    if (out != null) {
+      out.cancel();
+    }
+    ByteCaptureOutputStream bytes = capturedBytes;
+    if (bytes != null) {
+      bytes.cancel();
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
   @Override
   public void setContentLength(int len) {
     // Nothing to do
@@ -145,6 +218,9 @@ public class ServletSubResponseWrapper extends ServletResponseWrapper implements
     if (capturedWriter != null) {
       capturedWriter.flush();
     }
+    if (capturedBytes != null) {
+      capturedBytes.flush();
+    }
     committed = true;
   }
 
@@ -177,6 +253,14 @@ public class ServletSubResponseWrapper extends ServletResponseWrapper implements
         throw new UncheckedIOException(e);
       }
     }
+    if (capturedBytes != null) {
+      try {
+        capturedBytes.discard();
+        capturedBytes = null;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
 
   @Override
@@ -0,0 +1,216 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.collections.AoCollections;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Combines the semantics of {@link ThreadSafeHttpServletRequest} with the throughput of
+ * {@link UnmodifiableCopyHttpServletRequest}.  Properties that do not change during a request, such as
+ * the protocol, server, paths, method, and locales, are copied during constructor and read without locking.
+ * All other access, including attributes, parameters, headers, session, and input stream, is synchronized
+ * with the wrapped request as in {@link ThreadSafeHttpServletRequest}.
+ */
+public class SnapshotHttpServletRequest extends ThreadSafeHttpServletRequest {
+
+  /**
+   * The properties copied from the wrapped request.
+   */
+  private static final class Snapshot {
+
+    private final String protocol;
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final boolean secure;
+    private final int contentLength;
+    private final long contentLengthLong;
+    private final Locale locale;
+    private final List<Locale> locales;
+    private final ServletContext servletContext;
+    private final DispatcherType dispatcherType;
+    private final String method;
+    private final String pathInfo;
+    private final String pathTranslated;
+    private final String contextPath;
+    private final String queryString;
+    private final String requestURI;
+    private final String servletPath;
+
+    private Snapshot(HttpServletRequest req) {
+      protocol = req.getProtocol();
+      scheme = req.getScheme();
+      serverName = req.getServerName();
+      serverPort = req.getServerPort();
+      secure = req.isSecure();
+      contentLength = req.getContentLength();
+      contentLengthLong = req.getContentLengthLong();
+      locale = req.getLocale();
+      List<Locale> newLocales = new ArrayList<>();
+      Enumeration<Locale> e = req.getLocales();
+      while (e.hasMoreElements()) {
+        newLocales.add(e.nextElement());
+      }
+      locales = AoCollections.optimalUnmodifiableList(newLocales);
+      servletContext = req.getServletContext();
+      dispatcherType = req.getDispatcherType();
+      method = req.getMethod();
+      pathInfo = req.getPathInfo();
+      pathTranslated = req.getPathTranslated();
+      contextPath = req.getContextPath();
+      queryString = req.getQueryString();
+      requestURI = req.getRequestURI();
+      servletPath = req.getServletPath();
+    }
+  }
+
+  private volatile Snapshot snapshot;
+
+  /**
+   * @param concurrentAttributes  When {@code true}, attributes are held in a map owned by this wrapper.
+   *
+   * @see  ThreadSafeServletRequest#ThreadSafeServletRequest(javax.servlet.ServletRequest, boolean)
+   */
+  public SnapshotHttpServletRequest(HttpServletRequest req, boolean concurrentAttributes) {
+    super(req, concurrentAttributes);
+    snapshot = new Snapshot(req);
+  }
+
+  public SnapshotHttpServletRequest(HttpServletRequest req) {
+    this(req, false);
+  }
+
+  /**
+   * Copies the properties again from the new wrapped request.
+   */
+  @Override
+  public void setRequest(ServletRequest request) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
+      super.setRequest(request);
+      snapshot = new Snapshot((HttpServletRequest) request);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public int getContentLength() {
+    return snapshot.contentLength;
+  }
+
+  @Override
+  public long getContentLengthLong() {
+    return snapshot.contentLengthLong;
+  }
+
+  @Override
+  public String getProtocol() {
+    return snapshot.protocol;
+  }
+
+  @Override
+  public String getScheme() {
+    return snapshot.scheme;
+  }
+
+  @Override
+  public String getServerName() {
+    return snapshot.serverName;
+  }
+
+  @Override
+  public int getServerPort() {
+    return snapshot.serverPort;
+  }
+
+  @Override
+  public Locale getLocale() {
+    return snapshot.locale;
+  }
+
+  @Override
+  public Enumeration<Locale> getLocales() {
+    return Collections.enumeration(snapshot.locales);
+  }
+
+  @Override
+  public boolean isSecure() {
+    return snapshot.secure;
+  }
+
+  @Override
+  public ServletContext getServletContext() {
+    return snapshot.servletContext;
+  }
+
+  @Override
+  public DispatcherType getDispatcherType() {
+    return snapshot.dispatcherType;
+  }
+
+  @Override
+  public String getMethod() {
+    return snapshot.method;
+  }
+
+  @Override
+  public String getPathInfo() {
+    return snapshot.pathInfo;
+  }
+
+  @Override
+  public String getPathTranslated() {
+    return snapshot.pathTranslated;
+  }
+
+  @Override
+  public String getContextPath() {
+    return snapshot.contextPath;
+  }
+
+  @Override
+  public String getQueryString() {
+    return snapshot.queryString;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return snapshot.requestURI;
+  }
+
+  @Override
+  public String getServletPath() {
+    return snapshot.servletPath;
+  }
+}
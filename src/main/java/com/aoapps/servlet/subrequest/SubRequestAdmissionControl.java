@@ -0,0 +1,256 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.collections.AoCollections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletRequest;
+
+/**
+ * Limits the number of subrequests that may run concurrently, both in total and per parent request.
+ * Share a single instance between all {@link SubRequestExecutor} for a JVM-wide limit.
+ *
+ * <p>When no permit is available, the subrequest is run serially on the parent thread instead of being
+ * queued.  This bounds the number of threads under load spikes, while the counters report how often
+ * each path was taken, and for which included paths, so that pools may be sized from data.</p>
+ *
+ * <p>The number of concurrent subrequests of a parent request is stored as an attribute of the parent, so the
+ * per-parent limit applies across all includes of the parent, including those of nested subrequests.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see  SubRequestExecutor#setAdmissionControl(com.aoapps.servlet.subrequest.SubRequestAdmissionControl)
+ */
+public class SubRequestAdmissionControl {
+
+  /**
+   * The request attribute holding the number of subrequests of a parent request currently holding a permit.
+   */
+  static final String PARENT_CONCURRENT_ATTRIBUTE = SubRequestAdmissionControl.class.getName() + ".parentConcurrent";
+
+  /**
+   * Gets the number of subrequests of the given parent request currently holding a permit, creating the
+   * counter when the request has none.  Only called by the parent thread, before any subrequest of the include
+   * is started.
+   */
+  static AtomicInteger getParentConcurrent(ServletRequest request) {
+    AtomicInteger parentConcurrent = (AtomicInteger) request.getAttribute(PARENT_CONCURRENT_ATTRIBUTE);
+    if (parentConcurrent == null) {
+      parentConcurrent = new AtomicInteger();
+      request.setAttribute(PARENT_CONCURRENT_ATTRIBUTE, parentConcurrent);
+    }
+    return parentConcurrent;
+  }
+
+  /**
+   * The maximum number of included paths to count degraded subrequests for.  Once reached, degraded subrequests
+   * of other paths are still counted in the totals.
+   */
+  private static final int MAX_DEGRADED_PATHS = 1000;
+
+  private final int maxConcurrent;
+  private final int maxConcurrentPerParent;
+  private final Semaphore permits;
+
+  private final AtomicLong concurrentCount = new AtomicLong();
+  private final AtomicLong degradedGlobalCount = new AtomicLong();
+  private final AtomicLong degradedPerParentCount = new AtomicLong();
+  private final AtomicLong degradedRejectedCount = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> degradedCountByPath = new ConcurrentHashMap<>();
+
+  /**
+   * @param maxConcurrent  The maximum number of subrequests running concurrently across all parents.
+   * @param maxConcurrentPerParent  The maximum number of subrequests running concurrently for a single parent.
+   */
+  public SubRequestAdmissionControl(int maxConcurrent, int maxConcurrentPerParent) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent < 1: " + maxConcurrent);
+    }
+    if (maxConcurrentPerParent < 1) {
+      throw new IllegalArgumentException("maxConcurrentPerParent < 1: " + maxConcurrentPerParent);
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxConcurrentPerParent = maxConcurrentPerParent;
+    this.permits = new Semaphore(maxConcurrent);
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public int getMaxConcurrentPerParent() {
+    return maxConcurrentPerParent;
+  }
+
+  /**
+   * Gets the number of global permits currently available.
+   */
+  public int getAvailablePermits() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * Counts a degraded subrequest for its included path.
+   */
+  private void degraded(String path) {
+    AtomicLong count = degradedCountByPath.get(path);
+    if (count == null) {
+      if (degradedCountByPath.size() >= MAX_DEGRADED_PATHS) {
+        return;
+      }
+      count = degradedCountByPath.computeIfAbsent(path, p -> new AtomicLong());
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Tries to admit one more concurrent subrequest for a parent.  Never blocks.
+   * On success, the caller must {@linkplain #release(java.util.concurrent.atomic.AtomicInteger) release}
+   * the permit once the subrequest is done.
+   *
+   * @param parentConcurrent  The number of subrequests of the parent currently holding a permit,
+   *                          incremented when admitted.
+   * @param path  The included path, for counting degraded subrequests.
+   *
+   * @return  {@code true} when admitted, or {@code false} when the subrequest should run serially on the parent thread
+   *
+   * @see  #getParentConcurrent(javax.servlet.ServletRequest)
+   */
+  boolean tryAcquire(AtomicInteger parentConcurrent, String path) {
+    while (true) {
+      int current = parentConcurrent.get();
+      if (current >= maxConcurrentPerParent) {
+        degradedPerParentCount.incrementAndGet();
+        degraded(path);
+        return false;
+      }
+      if (parentConcurrent.compareAndSet(current, current + 1)) {
+        break;
+      }
+    }
+    if (!permits.tryAcquire()) {
+      parentConcurrent.decrementAndGet();
+      degradedGlobalCount.incrementAndGet();
+      degraded(path);
+      return false;
+    }
+    concurrentCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Releases a permit obtained from {@link #tryAcquire(java.util.concurrent.atomic.AtomicInteger, java.lang.String)}.
+   */
+  void release(AtomicInteger parentConcurrent) {
+    parentConcurrent.decrementAndGet();
+    permits.release();
+  }
+
+  /**
+   * Releases a permit obtained from {@link #tryAcquire(java.util.concurrent.atomic.AtomicInteger, java.lang.String)}
+   * when the executor rejected the task, counting it as degraded instead of concurrent.
+   */
+  void rejected(AtomicInteger parentConcurrent, String path) {
+    withdrawn(parentConcurrent);
+    degradedRejectedCount.incrementAndGet();
+    degraded(path);
+  }
+
+  /**
+   * Releases a permit obtained from {@link #tryAcquire(java.util.concurrent.atomic.AtomicInteger, java.lang.String)}
+   * for a subrequest that will not be run, no longer counting it as concurrent.
+   */
+  void withdrawn(AtomicInteger parentConcurrent) {
+    concurrentCount.decrementAndGet();
+    release(parentConcurrent);
+  }
+
+  /**
+   * Gets the number of subrequests admitted to run concurrently.
+   */
+  public long getConcurrentCount() {
+    return concurrentCount.get();
+  }
+
+  /**
+   * Gets the number of subrequests run serially on the parent thread because all global permits were in use.
+   */
+  public long getDegradedGlobalCount() {
+    return degradedGlobalCount.get();
+  }
+
+  /**
+   * Gets the number of subrequests run serially on the parent thread because the parent was at its limit.
+   */
+  public long getDegradedPerParentCount() {
+    return degradedPerParentCount.get();
+  }
+
+  /**
+   * Gets the number of subrequests run serially on the parent thread because the executor rejected them.
+   */
+  public long getDegradedRejectedCount() {
+    return degradedRejectedCount.get();
+  }
+
+  /**
+   * Gets the total number of subrequests run serially on the parent thread.
+   */
+  public long getDegradedCount() {
+    return degradedGlobalCount.get() + degradedPerParentCount.get() + degradedRejectedCount.get();
+  }
+
+  /**
+   * Gets the number of subrequests run serially on the parent thread for each included path, for any reason.
+   * Only the first 1000 distinct paths are counted.
+   *
+   * @return  a snapshot of the counts, sorted by path
+   */
+  public Map<String, Long> getDegradedCountByPath() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : degradedCountByPath.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return AoCollections.optimalUnmodifiableMap(counts);
+  }
+
+  @Override
+  public String toString() {
+    return SubRequestAdmissionControl.class.getSimpleName()
+        + "(maxConcurrent=" + maxConcurrent
+        + ", maxConcurrentPerParent=" + maxConcurrentPerParent
+        + ", availablePermits=" + getAvailablePermits()
+        + ", concurrent=" + getConcurrentCount()
+        + ", degradedGlobal=" + getDegradedGlobalCount()
+        + ", degradedPerParent=" + getDegradedPerParentCount()
+        + ", degradedRejected=" + getDegradedRejectedCount()
+        + ")";
+  }
+}
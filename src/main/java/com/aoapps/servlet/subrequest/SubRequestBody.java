@@ -0,0 +1,305 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.tempfiles.TempFile;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+
+/**
+ * The body of a request, read once so that it may be read again by any number of concurrent subrequests.
+ * The body is kept in memory, moving to a temp file once larger than a threshold, as with
+ * {@link IServletSubResponse#getCapturedBytes()}.
+ *
+ * <p>Capture is opt-in: {@linkplain #capture(javax.servlet.ServletRequest, com.aoapps.tempfiles.TempFileContext) capture}
+ * the body of the parent request before including its subrequests.  The captured body is stored as a request
+ * attribute, so {@link ServletSubRequest#getInputStream()} and {@link ServletSubRequest#getReader()} of the
+ * subrequests each read their own, independent stream over the captured body.  Once captured, the parent must
+ * also read its body through {@link #newInputStream()}.</p>
+ *
+ * <p>A form body of {@code application/x-www-form-urlencoded} is parsed into parameters before capture, so that
+ * the parameters remain available to the parent and its subrequests.  Since the container reads the body when
+ * parsing the form, the captured body of a form is empty.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class SubRequestBody {
+
+  /**
+   * The request attribute holding the captured body.
+   */
+  static final String ATTRIBUTE = SubRequestBody.class.getName();
+
+  /**
+   * The number of bytes kept in memory before moving the body to a temp file.
+   */
+  public static final long DEFAULT_TEMP_FILE_THRESHOLD = 4L * 1024 * 1024;
+
+  /**
+   * Gets the captured body for the given request, inherited from its parent when not captured directly.
+   *
+   * @return  the body or {@code null} when the body has not been captured
+   */
+  public static SubRequestBody get(ServletRequest request) {
+    return (SubRequestBody) request.getAttribute(ATTRIBUTE);
+  }
+
+  /**
+   * Checks if the given content type is a form that the container parses into parameters.
+   */
+  private static boolean isForm(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int semicolon = contentType.indexOf(';');
+    String mediaType = (semicolon == -1) ? contentType : contentType.substring(0, semicolon);
+    return "application/x-www-form-urlencoded".equals(mediaType.trim().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Captures the body of the given request, reading it fully.  When already captured, the existing body
+   * is returned.
+   *
+   * <p>When the request is a {@link ThreadSafeServletRequest}, the body is captured under its write lock, so
+   * concurrent captures read the body once and share it.  Otherwise, the request must only be used by the
+   * calling thread during capture.</p>
+   *
+   * @param tempFileContext  The temp file list for bodies larger than {@code tempFileThreshold} or {@code null}
+   *                         to always keep the body in memory.  Must remain open while the body is in use.
+   */
+  public static SubRequestBody capture(
+      ServletRequest request,
+      TempFileContext tempFileContext,
+      long tempFileThreshold
+  ) throws IOException {
+    Lock lock = (request instanceof ThreadSafeServletRequest) ? ((ThreadSafeServletRequest) request).writeLock : null;
+    if (lock != null) {
+      LockMetrics.REQUEST_BODY.lock(lock);
+    }
+    try {
+      SubRequestBody body = get(request);
+      if (body == null) {
+        if (isForm(request.getContentType())) {
+          // Parsed before the body is read, otherwise the container finds the body consumed and has no parameters
+          request.getParameterMap();
+        }
+        ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, tempFileContext, tempFileThreshold);
+        try (InputStream in = request.getInputStream()) {
+          in.transferTo(out);
+        }
+        body = new SubRequestBody(out.getResult());
+        request.setAttribute(ATTRIBUTE, body);
+      }
+      return body;
+    } finally {
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Captures the body of the given request, moving to a temp file after {@link #DEFAULT_TEMP_FILE_THRESHOLD}.
+   *
+   * @see  #capture(javax.servlet.ServletRequest, com.aoapps.tempfiles.TempFileContext, long)
+   */
+  public static SubRequestBody capture(ServletRequest request, TempFileContext tempFileContext) throws IOException {
+    return capture(request, tempFileContext, DEFAULT_TEMP_FILE_THRESHOLD);
+  }
+
+  /**
+   * The body when in memory or {@code null} when in a temp file.
+   */
+  private final byte[] bytes;
+
+  /**
+   * The body when in a temp file or {@code null} when in memory.
+   */
+  private final TempFile tempFile;
+
+  private final long length;
+
+  private SubRequestBody(ByteResult result) {
+    this.bytes = result.bytes;
+    this.tempFile = result.tempFile;
+    this.length = result.getLength();
+  }
+
+  /**
+   * Gets the number of bytes in the body.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Checks if the body has been moved to a temp file.
+   */
+  public boolean isTempFile() {
+    return tempFile != null;
+  }
+
+  /**
+   * Creates a new stream reading the body from the beginning.  Each stream is independent and not thread safe.
+   */
+  public ServletInputStream newInputStream() throws IOException {
+    return (bytes != null)
+        ? new BodyInputStream(bytes, null, length)
+        : new BodyInputStream(null, new FileInputStream(tempFile.getFile()), length);
+  }
+
+  /**
+   * Creates a new reader decoding the body from the beginning.
+   *
+   * @param characterEncoding  The encoding of the body or {@code null} for ISO-8859-1
+   */
+  public BufferedReader newReader(String characterEncoding) throws UnsupportedEncodingException, IOException {
+    return new BufferedReader(
+        new InputStreamReader(
+            newInputStream(),
+            (characterEncoding == null) ? "ISO-8859-1" : characterEncoding
+        )
+    );
+  }
+
+  @Override
+  public String toString() {
+    return SubRequestBody.class.getSimpleName()
+        + "(length=" + length
+        + ", tempFile=" + isTempFile()
+        + ")";
+  }
+
+  /**
+   * Reads the body from either memory or a temp file.
+   */
+  private static final class BodyInputStream extends ServletInputStream {
+
+    private final byte[] bytes;
+    private final InputStream in;
+    private final long length;
+    private long pos;
+
+    private BodyInputStream(byte[] bytes, InputStream in, long length) {
+      this.bytes = bytes;
+      this.in = in;
+      this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b;
+      if (bytes != null) {
+        b = (pos < length) ? (bytes[(int) pos] & 0xff) : -1;
+      } else {
+        b = in.read();
+      }
+      if (b != -1) {
+        pos++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int count;
+      if (bytes != null) {
+        if (pos >= length) {
+          return -1;
+        }
+        count = (int) Math.min(len, length - pos);
+        System.arraycopy(bytes, (int) pos, b, off, count);
+      } else {
+        count = in.read(b, off, len);
+      }
+      if (count > 0) {
+        pos += count;
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped;
+      if (bytes != null) {
+        skipped = Math.max(0, Math.min(n, length - pos));
+      } else {
+        skipped = in.skip(n);
+      }
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
+
+    @Override
+    public boolean isFinished() {
+      return pos >= length;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    /**
+     * The body is always ready, so the listener is called immediately.
+     */
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      try {
+        if (!isFinished()) {
+          readListener.onDataAvailable();
+        }
+        if (isFinished()) {
+          readListener.onAllDataRead();
+        }
+      } catch (IOException e) {
+        readListener.onError(e);
+      }
+    }
+  }
+}
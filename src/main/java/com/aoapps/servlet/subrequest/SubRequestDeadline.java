@@ -0,0 +1,110 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletRequest;
+
+/**
+ * A latency budget for a request and all of its subrequests.
+ *
+ * <p>The deadline is stored as a request attribute.  Since subrequests read through to the attributes
+ * of their parent, nested subrequests inherit the deadline of their parent.  A subrequest may
+ * {@linkplain #set(javax.servlet.ServletRequest, long, java.util.concurrent.TimeUnit) set} a tighter
+ * deadline for itself, but never extend the deadline it inherited.</p>
+ *
+ * <p>Concurrent subrequests run in parallel, so they share the remaining budget of their parent
+ * instead of dividing it.</p>
+ *
+ * <p>This class is immutable and thread safe.</p>
+ *
+ * @see  SubRequestExecutor
+ */
+public final class SubRequestDeadline {
+
+  /**
+   * The request attribute holding the current deadline.
+   */
+  static final String ATTRIBUTE = SubRequestDeadline.class.getName();
+
+  /**
+   * Gets the deadline for the given request, inherited from its parent when not set directly.
+   *
+   * @return  the deadline or {@code null} when the request has no deadline
+   */
+  public static SubRequestDeadline get(ServletRequest request) {
+    return (SubRequestDeadline) request.getAttribute(ATTRIBUTE);
+  }
+
+  /**
+   * Sets the deadline for the given request to the given timeout from now.  When the request already has
+   * an earlier deadline, the earlier deadline is kept.
+   *
+   * @return  the effective deadline
+   */
+  public static SubRequestDeadline set(ServletRequest request, long timeout, TimeUnit unit) {
+    SubRequestDeadline deadline = new SubRequestDeadline(System.nanoTime() + unit.toNanos(timeout));
+    SubRequestDeadline existing = get(request);
+    if (existing != null && existing.deadline - deadline.deadline <= 0) {
+      return existing;
+    }
+    request.setAttribute(ATTRIBUTE, deadline);
+    return deadline;
+  }
+
+  /**
+   * Gets the later of two deadlines.
+   */
+  static SubRequestDeadline latest(SubRequestDeadline d1, SubRequestDeadline d2) {
+    return (d1.deadline - d2.deadline >= 0) ? d1 : d2;
+  }
+
+  /**
+   * Compared to {@link System#nanoTime()}.
+   */
+  private final long deadline;
+
+  private SubRequestDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * Gets the time remaining until this deadline, which will be negative once expired.
+   */
+  public long getRemaining(TimeUnit unit) {
+    return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Checks if this deadline has passed.
+   */
+  public boolean isExpired() {
+    return deadline - System.nanoTime() <= 0;
+  }
+
+  @Override
+  public String toString() {
+    return SubRequestDeadline.class.getSimpleName() + "(remaining=" + getRemaining(TimeUnit.MILLISECONDS) + "ms)";
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import javax.servlet.ServletException;
+
+/**
+ * Thrown when a subrequest in a {@link SubRequestScope} completes with an error status, such as
+ * by {@link javax.servlet.http.HttpServletResponse#sendError(int)}.
+ */
+public class SubRequestErrorException extends ServletException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String path;
+  private final int status;
+
+  public SubRequestErrorException(String path, int status, String statusMessage) {
+    super("Subrequest error " + status + (statusMessage == null ? "" : (" " + statusMessage)) + ": " + path);
+    this.path = path;
+    this.status = status;
+  }
+
+  /**
+   * Gets the path of the subrequest that failed.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Gets the error status of the subrequest.
+   */
+  public int getStatus() {
+    return status;
+  }
+}
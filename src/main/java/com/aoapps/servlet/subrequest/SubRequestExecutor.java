@@ -0,0 +1,1762 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.io.buffer.BufferResult;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Performs a set of includes concurrently, each as its own {@link HttpServletSubRequest}
+ * and {@link HttpServletSubResponse}.  The parent request and response are shared between
+ * the subrequests through {@link SnapshotHttpServletRequest} and
+ * {@link ThreadSafeHttpServletResponse}.
+ *
+ * <p>As required by {@link ServletSubRequest}, the parent request must not be changed
+ * while the subrequests are running.</p>
+ *
+ * <p>Subrequests may only read the body of the parent request once it has been
+ * {@linkplain SubRequestBody#capture(javax.servlet.ServletRequest, com.aoapps.tempfiles.TempFileContext) captured}.</p>
+ *
+ * <p>When the parent request has a {@link SubRequestDeadline}, the wait on each subrequest is bounded by it.
+ * A subrequest that exceeds the deadline is either replaced by the
+ * {@linkplain #setTimeoutFallback(com.aoapps.servlet.subrequest.SubRequestExecutor.TimeoutFallback) timeout fallback}
+ * or reported as a {@link SubRequestTimeoutException}, and is cancelled once no other include is waiting on it.</p>
+ *
+ * <p>An optional {@link SubRequestAdmissionControl} bounds the number of concurrent subrequests,
+ * running the remainder serially on the parent thread.</p>
+ *
+ * <p>An optional {@link AdaptiveDispatchPolicy} runs fragments that are learned to be fast inline on the
+ * parent thread, where dispatching them to another thread would cost more than it saves.</p>
+ *
+ * <p>An optional {@link HedgePolicy} issues a second, identical subrequest for idempotent fragments
+ * that are slower than usual, using whichever completes first.</p>
+ *
+ * <p>An optional {@link CoalescingKey} shares the output of identical subrequests of the same parent request,
+ * so that a fragment included several times is only rendered once.  An optional {@link SubRequestSingleFlight}
+ * shares in-flight renders of user-independent fragments between parent requests.</p>
+ *
+ * <p>{@link #includeAsync(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List)}
+ * returns a {@link CompletableFuture} of each {@link SubResult} without blocking on the subrequests, for
+ * composing fragment pipelines.</p>
+ *
+ * <p>{@link #startAsync(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List)}
+ * puts the parent request into asynchronous mode, so the container thread is released instead of blocking
+ * on the subrequests.</p>
+ *
+ * <p>{@link #openScope(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext)}
+ * opens a {@link SubRequestScope} of subrequests that fail together.</p>
+ *
+ * <p>With {@linkplain #setSharedSnapshot(boolean) shared snapshots}, the parent request is copied once
+ * instead of being read through locks by each subrequest.</p>
+ *
+ * <p>On Java 21+, {@link #newVirtualThreadPerTaskExecutor()} runs each subrequest on its
+ * own virtual thread.  The thread-safe wrappers use {@link java.util.concurrent.locks.ReentrantLock}
+ * instead of monitors so that blocking while holding a lock does not pin the carrier thread.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class SubRequestExecutor {
+
+  /**
+   * Lazy lookup of {@code Executors.newVirtualThreadPerTaskExecutor()}, which only exists in Java 21+.
+   */
+  private static class VirtualThreadPerTaskExecutorHolder {
+
+    private static final MethodHandle newVirtualThreadPerTaskExecutor;
+
+    static {
+      MethodHandle mh;
+      try {
+        mh = MethodHandles.publicLookup().findStatic(
+            Executors.class,
+            "newVirtualThreadPerTaskExecutor",
+            MethodType.methodType(ExecutorService.class)
+        );
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        mh = null;
+      }
+      newVirtualThreadPerTaskExecutor = mh;
+    }
+  }
+
+  /**
+   * Checks if the running Java version supports virtual threads.
+   *
+   * @see  #newVirtualThreadPerTaskExecutor()
+   */
+  public static boolean isVirtualThreadSupported() {
+    return VirtualThreadPerTaskExecutorHolder.newVirtualThreadPerTaskExecutor != null;
+  }
+
+  /**
+   * Creates a new executor that starts a new virtual thread for each subrequest.
+   * Each virtual thread creates its own {@link HttpServletSubRequest} and {@link HttpServletSubResponse},
+   * so fan-out is not limited by the size of a platform thread pool.
+   *
+   * <p>The caller is responsible for shutting down the returned executor.</p>
+   *
+   * @throws UnsupportedOperationException when virtual threads are not supported by the running Java version
+   *
+   * @see  #isVirtualThreadSupported()
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() throws UnsupportedOperationException {
+    MethodHandle mh = VirtualThreadPerTaskExecutorHolder.newVirtualThreadPerTaskExecutor;
+    if (mh == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21+");
+    }
+    try {
+      return (ExecutorService) mh.invokeExact();
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new UnsupportedOperationException(t);
+    }
+  }
+
+  private final ExecutorService executor;
+
+  /**
+   * @param executor  The executor that will run each subrequest.  The lifecycle of the executor
+   *                  is managed by the caller.
+   */
+  public SubRequestExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Gets the executor that runs each subrequest.
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Gets a thread-safe view of the parent request, reusing the request when already thread-safe.
+   * A new view is a {@link SnapshotHttpServletRequest}, so that the properties read by most
+   * subrequests are read without locking.
+   */
+  static ThreadSafeHttpServletRequest getThreadSafeRequest(HttpServletRequest req) {
+    return (req instanceof ThreadSafeHttpServletRequest)
+        ? (ThreadSafeHttpServletRequest) req
+        : new SnapshotHttpServletRequest(req);
+  }
+
+  /**
+   * Gets a thread-safe view of the parent response, reusing the response when already thread-safe.
+   */
+  static ThreadSafeHttpServletResponse getThreadSafeResponse(HttpServletResponse resp) {
+    return (resp instanceof ThreadSafeHttpServletResponse)
+        ? (ThreadSafeHttpServletResponse) resp
+        : new ThreadSafeHttpServletResponse(resp);
+  }
+
+  /**
+   * A single subrequest, with its {@link HttpServletSubRequest} and {@link HttpServletSubResponse}
+   * created on the submitting thread so that it may be cancelled from the joining thread.
+   */
+  static class SubRequestTask implements Callable<BufferResult> {
+
+    final String path;
+    final HttpServletSubRequest subRequest;
+    final HttpServletSubResponse subResponse;
+
+    /**
+     * The latest deadline of the includes waiting on this subrequest, or {@code null} once any has no deadline.
+     */
+    private final AtomicReference<SubRequestDeadline> deadline;
+    private final TempFileContext tempFileContext;
+    private final AdaptiveDispatchPolicy adaptivePolicy;
+    private final HedgePolicy hedgePolicy;
+
+    /**
+     * @param req  The parent request, which must be thread-safe when the task is run concurrently.
+     * @param resp  The parent response, which must be thread-safe when the task is run concurrently.
+     * @param adaptivePolicy  The policy to record latency to or {@code null} to not record.
+     * @param hedgePolicy  The policy to record latency to or {@code null} to not record.
+     */
+    SubRequestTask(
+        HttpServletRequest req,
+        HttpServletResponse resp,
+        TempFileContext tempFileContext,
+        String path,
+        AdaptiveDispatchPolicy adaptivePolicy,
+        HedgePolicy hedgePolicy
+    ) {
+      this.path = path;
+      this.tempFileContext = tempFileContext;
+      this.adaptivePolicy = adaptivePolicy;
+      this.hedgePolicy = hedgePolicy;
+      subRequest = new HttpServletSubRequest(req);
+      subResponse = new HttpServletSubResponse(resp, tempFileContext);
+      // Inherited through the parent request attributes
+      deadline = new AtomicReference<>(SubRequestDeadline.get(subRequest));
+    }
+
+    /**
+     * Extends the deadline of this subrequest for another include waiting on it, so that it is not considered too
+     * late to start while any include is still waiting.
+     *
+     * @param other  The deadline of the other include or {@code null} when it has no deadline
+     */
+    void extendDeadline(SubRequestDeadline other) {
+      deadline.updateAndGet(current -> (current == null || other == null) ? null : SubRequestDeadline.latest(current, other));
+    }
+
+    /**
+     * Includes the path as a subrequest, capturing its output.
+     *
+     * @return  the captured output
+     */
+    @Override
+    public BufferResult call() throws ServletException, IOException {
+      SubRequestDeadline latest = deadline.get();
+      if (latest != null && latest.isExpired()) {
+        // Do not start work that is already too late for every include waiting on it
+        subResponse.cancel();
+        throw new SubRequestTimeoutException(path);
+      }
+      RequestDispatcher dispatcher = subRequest.getRequestDispatcher(path);
+      if (dispatcher == null) {
+        throw new ServletException("Unable to find dispatcher for path: " + path);
+      }
+      long startNanos = System.nanoTime();
+      try {
+        dispatcher.include(subRequest, subResponse);
+      } finally {
+        // Unsubscribes from a broadcast body on completion, failure, cancel or timeout, so that a subrequest that
+        // stopped reading early does not hold back the other subscribers
+        subRequest.closeInputStream();
+      }
+      long latency = System.nanoTime() - startNanos;
+      if (adaptivePolicy != null) {
+        adaptivePolicy.record(path, latency, TimeUnit.NANOSECONDS);
+      }
+      if (hedgePolicy != null) {
+        hedgePolicy.record(path, latency, TimeUnit.NANOSECONDS);
+      }
+      BufferResult out = subResponse.getCapturedOut();
+      ByteResult bytes = subResponse.getCapturedBytes();
+      // Carried as bytes, so that they are not decoded when merged into a parent output stream
+      return (bytes.getLength() == 0)
+          ? out
+          : new EncodedBufferResult(bytes, subResponse.getCharacterEncoding(), tempFileContext);
+    }
+
+    /**
+     * Cancels the sub response so that any further writes fail fast.
+     */
+    void cancel() {
+      subResponse.cancel();
+    }
+  }
+
+  /**
+   * A subrequest that has been dispatched to the executor or run on the parent thread.
+   */
+  static class SubRequestFuture extends FutureTask<BufferResult> {
+
+    final SubRequestTask task;
+    final long dispatchNanos = System.nanoTime();
+    private final SubRequestAdmissionControl admission;
+    private final AtomicInteger parentConcurrent;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * The number of includes waiting on this subrequest, starting with the include that created it.
+     * Once every include has left, the subrequest is cancelled.
+     */
+    private final AtomicInteger attached = new AtomicInteger(1);
+
+    /**
+     * Completed once this future is done, for waiting on the first of several futures.
+     */
+    final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    /**
+     * Completed once no thread is running this subrequest, including when cancelled before it was run.
+     */
+    final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Whether dispatched to the executor, as opposed to run on the parent thread.
+     */
+    private volatile boolean dispatched;
+
+    /**
+     * Any hedge issued for this subrequest.  Only accessed by the parent thread.
+     */
+    SubRequestFuture hedge;
+
+    /**
+     * @param admission  The admission control to release a permit to when done or {@code null} when not holding a permit
+     * @param parentConcurrent  The number of subrequests of the parent currently holding a permit or {@code null}
+     *                          when not holding a permit
+     */
+    SubRequestFuture(SubRequestTask task, SubRequestAdmissionControl admission, AtomicInteger parentConcurrent) {
+      super(task);
+      this.task = task;
+      this.admission = admission;
+      this.parentConcurrent = parentConcurrent;
+    }
+
+    /**
+     * Releases the permit, if held, at most once.
+     */
+    private void release() {
+      if (admission != null && released.compareAndSet(false, true)) {
+        admission.release(parentConcurrent);
+      }
+    }
+
+    /**
+     * Releases the permit, if held, of a subrequest that will not be run.
+     *
+     * @param rejected  Whether rejected by the executor, to be counted as degraded
+     */
+    void withdraw(boolean rejected) {
+      if (admission != null && released.compareAndSet(false, true)) {
+        if (rejected) {
+          admission.rejected(parentConcurrent, task.path);
+        } else {
+          admission.withdrawn(parentConcurrent);
+        }
+      }
+    }
+
+    /**
+     * Releases the permit before the result is visible, so the permit is available once the parent has joined.
+     */
+    @Override
+    protected void set(BufferResult v) {
+      release();
+      super.set(v);
+    }
+
+    /**
+     * Releases the permit before the failure is visible, so the permit is available once the parent has joined.
+     */
+    @Override
+    protected void setException(Throwable t) {
+      release();
+      super.setException(t);
+    }
+
+    @Override
+    public void run() {
+      if (started.compareAndSet(false, true)) {
+        AdaptiveDispatchPolicy adaptivePolicy = task.adaptivePolicy;
+        if (dispatched && adaptivePolicy != null) {
+          adaptivePolicy.recordHandoff(System.nanoTime() - dispatchNanos, TimeUnit.NANOSECONDS);
+        }
+        try {
+          super.run();
+        } finally {
+          terminated.complete(null);
+        }
+      }
+    }
+
+    /**
+     * Called exactly once, whether completed or cancelled before running.
+     */
+    @Override
+    protected void done() {
+      release();
+      if (started.compareAndSet(false, true)) {
+        // Cancelled before running, will not be run
+        terminated.complete(null);
+      }
+      completion.complete(null);
+    }
+
+    /**
+     * Attaches another include to this subrequest.
+     *
+     * @return  {@code true} when attached, or {@code false} when every include has already left this subrequest,
+     *          which is cancelled
+     */
+    boolean attach() {
+      while (true) {
+        int count = attached.get();
+        if (count == 0 && (!isDone() || isCancelled())) {
+          return false;
+        }
+        if (attached.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Detaches an include from this subrequest, cancelling it once no include is left.
+     */
+    void detach() {
+      if (attached.decrementAndGet() == 0) {
+        cancelAll();
+      }
+    }
+
+    /**
+     * Checks if every include has left this subrequest before it completed, so it is cancelled or about to be.
+     */
+    boolean isAbandoned() {
+      return attached.get() == 0 && (!isDone() || isCancelled());
+    }
+
+    /**
+     * Cancels this subrequest and any hedge, interrupting if running.
+     */
+    void cancelAll() {
+      task.cancel();
+      cancel(true);
+      if (hedge != null) {
+        hedge.cancelAll();
+      }
+    }
+  }
+
+  /**
+   * Unwraps the cause of an {@link ExecutionException}, throwing it directly when it is
+   * one of the types declared by a servlet include.
+   */
+  static ServletException unwrap(ExecutionException e) throws IOException {
+    return unwrap(e.getCause());
+  }
+
+  /**
+   * Unwraps a failure, throwing it directly when it is one of the types declared by a servlet include.
+   */
+  static ServletException unwrap(Throwable cause) throws IOException {
+    if (cause instanceof ServletException) {
+      return (ServletException) cause;
+    }
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new ServletException(cause);
+  }
+
+  /**
+   * Receives the result of each subrequest, in submission order.
+   */
+  @FunctionalInterface
+  interface ResultHandler {
+    void handle(int index, BufferResult result) throws ServletException, IOException;
+  }
+
+  /**
+   * Merges the output of subrequests, in order, into a parent output stream.  Bytes captured from the output stream
+   * of a subrequest, in the character encoding of the parent, are written without being decoded, by
+   * {@link ByteResult#writeTo(java.io.OutputStream)}, which transfers bytes spilled to a temp file directly when
+   * the stream is backed by a channel.  All other output, including characters spilled to a temp file from the
+   * writer of a subrequest, is encoded in the character encoding of the parent.
+   */
+  static final class StreamMerge {
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final Writer encoder;
+
+    /**
+     * @param characterEncoding  The character encoding of the parent response or {@code null} for the servlet default
+     *                           of {@code ISO-8859-1}.
+     */
+    StreamMerge(OutputStream out, String characterEncoding) {
+      this.out = out;
+      this.charset = (characterEncoding == null) ? StandardCharsets.ISO_8859_1 : Charset.forName(characterEncoding);
+      this.encoder = new OutputStreamWriter(out, charset);
+    }
+
+    /**
+     * Writes the output of a subrequest, then flushes the stream.
+     */
+    void write(BufferResult result) throws IOException {
+      if (result instanceof EncodedBufferResult && ((EncodedBufferResult) result).writeTo(out, charset)) {
+        out.flush();
+      } else {
+        result.writeTo(encoder);
+        // Also flushes the stream, and keeps encoded output before any bytes written next
+        encoder.flush();
+      }
+    }
+  }
+
+  /**
+   * Provides substitute content for a subrequest that did not complete before its deadline.
+   *
+   * @see  #setTimeoutFallback(com.aoapps.servlet.subrequest.SubRequestExecutor.TimeoutFallback)
+   */
+  @FunctionalInterface
+  public interface TimeoutFallback {
+    /**
+     * Gets the content to use in place of the cancelled subrequest.
+     *
+     * @param timeout  The timeout, which may be thrown to fail the parent instead.
+     */
+    BufferResult getFallback(SubRequestTimeoutException timeout) throws ServletException, IOException;
+  }
+
+  private volatile TimeoutFallback timeoutFallback;
+
+  /**
+   * Gets the fallback used when a subrequest exceeds its deadline.
+   *
+   * @return  the fallback or {@code null} when timeouts are thrown
+   */
+  public TimeoutFallback getTimeoutFallback() {
+    return timeoutFallback;
+  }
+
+  /**
+   * Sets the fallback used when a subrequest exceeds its deadline.
+   *
+   * @param timeoutFallback  the fallback or {@code null} to throw {@link SubRequestTimeoutException}
+   */
+  public void setTimeoutFallback(TimeoutFallback timeoutFallback) {
+    this.timeoutFallback = timeoutFallback;
+  }
+
+  /**
+   * Declares which subrequests may be coalesced with identical subrequests of the same parent request.
+   *
+   * @see  #setCoalescingKey(com.aoapps.servlet.subrequest.SubRequestExecutor.CoalescingKey)
+   */
+  @FunctionalInterface
+  public interface CoalescingKey {
+    /**
+     * Gets the key for a subrequest, which is combined with its path and the method and query string of
+     * its parent.  Subrequests with equal keys render the same output.
+     *
+     * @param req  The parent request
+     *
+     * @return  the key or {@code null} to not coalesce the subrequest
+     */
+    Object getKey(HttpServletRequest req, String path);
+  }
+
+  private volatile CoalescingKey coalescingKey;
+
+  /**
+   * Gets the key deciding which subrequests are coalesced.
+   *
+   * @return  the key or {@code null} when no subrequests are coalesced
+   */
+  public CoalescingKey getCoalescingKey() {
+    return coalescingKey;
+  }
+
+  /**
+   * Sets the key deciding which subrequests are coalesced.  A subrequest identical to one of the same
+   * parent request, that is either in flight or completed, is not rendered again.  Instead, it shares the
+   * output of the first, which must therefore not depend on anything but the method, path, parameters, and key.
+   * The parameters are identified by the query string, without parsing the body of the parent, which is the
+   * same for all subrequests of the parent.
+   *
+   * <p>Output is only shared between includes using the same {@link TempFileContext}, since it may be
+   * buffered in its temp files.  Each include sharing a coalesced subrequest waits on it until its own deadline,
+   * and an include that times out, fails, or is cancelled only leaves the subrequest.  The subrequest is
+   * cancelled once every include sharing it has left.  Shared subrequests are not hedged by the includes sharing
+   * them.</p>
+   *
+   * @param coalescingKey  the key or {@code null} to not coalesce subrequests
+   */
+  public void setCoalescingKey(CoalescingKey coalescingKey) {
+    this.coalescingKey = coalescingKey;
+  }
+
+  private volatile SubRequestSingleFlight singleFlight;
+
+  /**
+   * Gets the single-flight sharing renders between parent requests.
+   *
+   * @return  the single-flight or {@code null} when renders are not shared between parent requests
+   */
+  public SubRequestSingleFlight getSingleFlight() {
+    return singleFlight;
+  }
+
+  /**
+   * Sets the single-flight sharing renders between parent requests.
+   *
+   * @param singleFlight  the single-flight or {@code null} to not share renders between parent requests
+   */
+  public void setSingleFlight(SubRequestSingleFlight singleFlight) {
+    this.singleFlight = singleFlight;
+  }
+
+  private volatile SubRequestAdmissionControl admissionControl;
+
+  /**
+   * Gets the admission control limiting the number of concurrent subrequests.
+   *
+   * @return  the admission control or {@code null} when every subrequest is dispatched to the executor
+   */
+  public SubRequestAdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  /**
+   * Sets the admission control limiting the number of concurrent subrequests.  Subrequests that are not
+   * admitted are run serially on the parent thread.
+   *
+   * @param admissionControl  the admission control or {@code null} to dispatch every subrequest to the executor
+   */
+  public void setAdmissionControl(SubRequestAdmissionControl admissionControl) {
+    this.admissionControl = admissionControl;
+  }
+
+  private volatile AdaptiveDispatchPolicy adaptiveDispatchPolicy;
+
+  /**
+   * Gets the policy deciding which paths are run inline on the parent thread.
+   *
+   * @return  the policy or {@code null} when all paths are run concurrently
+   */
+  public AdaptiveDispatchPolicy getAdaptiveDispatchPolicy() {
+    return adaptiveDispatchPolicy;
+  }
+
+  /**
+   * Sets the policy deciding which paths are run inline on the parent thread.  The latency of
+   * every subrequest is recorded to the policy.
+   *
+   * <p>When all paths of an include are run inline, the subrequests use the parent request and response
+   * directly, without the overhead of {@link ThreadSafeHttpServletRequest}.</p>
+   *
+   * @param adaptiveDispatchPolicy  the policy or {@code null} to run all paths concurrently
+   */
+  public void setAdaptiveDispatchPolicy(AdaptiveDispatchPolicy adaptiveDispatchPolicy) {
+    this.adaptiveDispatchPolicy = adaptiveDispatchPolicy;
+  }
+
+  private volatile HedgePolicy hedgePolicy;
+
+  /**
+   * Gets the policy for issuing hedged subrequests.
+   *
+   * @return  the policy or {@code null} when subrequests are not hedged
+   */
+  public HedgePolicy getHedgePolicy() {
+    return hedgePolicy;
+  }
+
+  /**
+   * Sets the policy for issuing hedged subrequests.  The latency of every subrequest is recorded to the policy.
+   *
+   * @param hedgePolicy  the policy or {@code null} to not hedge subrequests
+   */
+  public void setHedgePolicy(HedgePolicy hedgePolicy) {
+    this.hedgePolicy = hedgePolicy;
+  }
+
+  private volatile boolean sharedSnapshot;
+
+  /**
+   * Checks if the subrequests of a parent request share a single snapshot of the parent request.
+   *
+   * @see  #setSharedSnapshot(boolean)
+   */
+  public boolean isSharedSnapshot() {
+    return sharedSnapshot;
+  }
+
+  /**
+   * Sets if the subrequests of a parent request share a single snapshot of the parent request.
+   *
+   * <p>When enabled, the parent request is captured once by a lazy {@link UnmodifiableCopyHttpServletRequest},
+   * which is reused by every include of the same parent, and each subrequest is a lightweight view over the
+   * snapshot with its own attributes.  The parameters, headers, and locales of the parent are each copied
+   * at most once, on first access by any subrequest, after which they are read without locking.  The attributes
+   * are copied at most once per include, since the parent may set attributes between includes.  This is
+   * best when many fragments read the same properties of the parent.</p>
+   *
+   * <p>The subrequests may not modify the parent request through the snapshot, such as by reading its
+   * body or setting its attributes.  Attributes set on the parent by the executor itself, such as for
+   * {@linkplain #setCoalescingKey(com.aoapps.servlet.subrequest.SubRequestExecutor.CoalescingKey) coalescing},
+   * are set on the original parent request.  When disabled, the default, the parent is shared through a
+   * {@link SnapshotHttpServletRequest}.</p>
+   *
+   * @param sharedSnapshot  {@code true} to share a single snapshot of the parent request
+   */
+  public void setSharedSnapshot(boolean sharedSnapshot) {
+    this.sharedSnapshot = sharedSnapshot;
+  }
+
+  /**
+   * The request attribute holding the shared snapshot of a parent request.
+   */
+  static final String SHARED_SNAPSHOT_ATTRIBUTE = SubRequestExecutor.class.getName() + ".sharedSnapshot";
+
+  /**
+   * Gets the view of the parent request shared by concurrent subrequests.  A shared snapshot is taken
+   * once per parent request and reused by its later includes, with only its attributes copied again, since
+   * the parent may set attributes between includes.
+   *
+   * <p>Only called by the parent thread, before any subrequest of the include is started.</p>
+   *
+   * @see  #setSharedSnapshot(boolean)
+   */
+  private HttpServletRequest getSharedRequest(HttpServletRequest req) {
+    if (sharedSnapshot) {
+      if (req instanceof UnmodifiableCopyHttpServletRequest) {
+        return req;
+      }
+      Object attribute = req.getAttribute(SHARED_SNAPSHOT_ATTRIBUTE);
+      if (
+          (attribute instanceof UnmodifiableCopyHttpServletRequest)
+              // Attributes may be shared with other wrappers of the same request
+              && ((UnmodifiableCopyHttpServletRequest) attribute).isCopyOf(req)
+      ) {
+        UnmodifiableCopyHttpServletRequest snapshot = (UnmodifiableCopyHttpServletRequest) attribute;
+        snapshot.refreshAttributes();
+        return snapshot;
+      }
+      UnmodifiableCopyHttpServletRequest snapshot = new UnmodifiableCopyHttpServletRequest(req, true);
+      req.setAttribute(SHARED_SNAPSHOT_ATTRIBUTE, snapshot);
+      return snapshot;
+    }
+    return getThreadSafeRequest(req);
+  }
+
+  /**
+   * The state of a single call to include, with the configuration captured at the start of the call.
+   * Only accessed by the parent thread, other than being cancelled once all subrequests are dispatched.
+   */
+  class FanOut {
+
+    /**
+     * The original parent request, which is only used before any subrequest is started, such as for
+     * attributes that must be set on the parent itself.
+     */
+    private final HttpServletRequest parentReq;
+
+    /**
+     * The view of the parent request read by the subrequests, and by this include once subrequests are running.
+     * This is the parent request itself when all subrequests run on the parent thread.
+     */
+    private final HttpServletRequest sharedReq;
+
+    private final HttpServletResponse parentResp;
+    private final TempFileContext tempFileContext;
+
+    /**
+     * The deadline of this include, which bounds its wait on every subrequest, including those shared with
+     * includes that have other deadlines.
+     */
+    private final SubRequestDeadline deadline;
+
+    private final SubRequestAdmissionControl admission = admissionControl;
+    private final AdaptiveDispatchPolicy adaptivePolicy = adaptiveDispatchPolicy;
+    private final HedgePolicy hedge = hedgePolicy;
+    private final TimeoutFallback fallback = timeoutFallback;
+    private final CoalescingKey coalescing = coalescingKey;
+    private final SubRequestSingleFlight flight = singleFlight;
+
+    /**
+     * The number of subrequests of the parent request currently holding a permit, shared by all includes of
+     * the parent, or {@code null} when there is no admission control.
+     */
+    private final AtomicInteger parentConcurrent;
+
+    private final List<SubRequestFuture> futures;
+
+    /**
+     * The registry of coalesced subrequests or {@code null} when not coalescing.
+     */
+    private final CoalescedSubRequests coalesced;
+
+    /**
+     * The subrequests shared with other includes, which are not cancelled or hedged by this include.
+     * Thread safe, since read by completion callbacks.
+     */
+    private final Set<SubRequestFuture> shared;
+
+    /**
+     * The subrequests this include is {@linkplain SubRequestFuture#attach() attached} to and has not yet left.
+     * Thread safe, since left by completion callbacks.
+     */
+    private final Set<SubRequestFuture> attached = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The subrequests to run on the current thread once all concurrent subrequests are dispatched.
+     */
+    private final List<SubRequestFuture> deferred = new ArrayList<>();
+
+    private FanOut(
+        HttpServletRequest parentReq,
+        HttpServletRequest sharedReq,
+        HttpServletResponse parentResp,
+        TempFileContext tempFileContext,
+        int size
+    ) {
+      this.parentReq = parentReq;
+      this.sharedReq = sharedReq;
+      this.parentResp = parentResp;
+      this.tempFileContext = tempFileContext;
+      this.deadline = SubRequestDeadline.get(parentReq);
+      this.futures = new ArrayList<>(size);
+      coalesced = (coalescing == null) ? null : CoalescedSubRequests.getInstance(parentReq);
+      parentConcurrent = (admission == null) ? null : SubRequestAdmissionControl.getParentConcurrent(parentReq);
+      // Futures are compared by identity
+      shared = (coalescing == null && flight == null) ? null : ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Gets the key to coalesce the given path.
+     *
+     * @return  the key or {@code null} when the path is not coalesced
+     */
+    private SubRequestKey getKey(String path) {
+      if (coalescing == null) {
+        return null;
+      }
+      Object key = coalescing.getKey(sharedReq, path);
+      return (key == null) ? null : new SubRequestKey(sharedReq, path, key, tempFileContext);
+    }
+
+    /**
+     * Gets the registered subrequest for the given key, not yet part of this include.
+     *
+     * @return  the subrequest or {@code null} when none registered
+     */
+    private SubRequestFuture getCoalesced(SubRequestKey key) {
+      SubRequestFuture future = coalesced.get(key);
+      if (future != null && !attached.contains(future)) {
+        if (!attach(future)) {
+          // Every include has left it
+          return null;
+        }
+        if (!futures.contains(future)) {
+          shared.add(future);
+        }
+      }
+      return future;
+    }
+
+    /**
+     * Registers the given subrequest for the given key.  When another subrequest has been registered
+     * concurrently, this include leaves the given subrequest in favor of the other.
+     *
+     * @return  the registered subrequest
+     */
+    private SubRequestFuture register(SubRequestKey key, SubRequestFuture future) {
+      while (true) {
+        SubRequestFuture registered = coalesced.register(key, future);
+        if (registered == future) {
+          return future;
+        }
+        if (attach(registered)) {
+          leave(future);
+          if (!futures.contains(registered)) {
+            shared.add(registered);
+          }
+          return registered;
+        }
+        // Every include has left the registered subrequest, which is replaced on the next attempt
+      }
+    }
+
+    /**
+     * Attaches this include to a subrequest started by another include.
+     *
+     * @return  {@code true} when attached, or {@code false} when every include has already left the subrequest
+     */
+    private boolean attach(SubRequestFuture future) {
+      if (future.attach()) {
+        future.task.extendDeadline(deadline);
+        attached.add(future);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Checks if the given subrequest was started by this include.
+     */
+    private boolean isOwned(SubRequestFuture future) {
+      return shared == null || !shared.contains(future);
+    }
+
+    /**
+     * Leaves the given subrequest, at most once, which cancels it when no other include is still waiting on it.
+     */
+    private void leave(SubRequestFuture future) {
+      if (attached.remove(future)) {
+        future.detach();
+      }
+    }
+
+    private SubRequestTask newTask(String path) {
+      return new SubRequestTask(sharedReq, parentResp, tempFileContext, path, adaptivePolicy, hedge);
+    }
+
+    /**
+     * Starts a subrequest for the given path, or shares an identical subrequest that is already started.
+     * Subrequests to be run on the current thread are deferred until {@link #runDeferred()}.
+     *
+     * @param inline  Whether to run a new subrequest on the current thread
+     */
+    private SubRequestFuture start(String path, boolean inline) {
+      SubRequestKey key = getKey(path);
+      SubRequestFuture future = (key == null) ? null : getCoalesced(key);
+      if (future != null) {
+        if (!isOwned(future) && !future.dispatched) {
+          // Run here when not yet started, such as an inline subrequest of the include that registered it.
+          // A dispatched subrequest is left to the executor, so this include may still time out on it.
+          deferred.add(future);
+        }
+      } else {
+        SubRequestKey flightKey = (flight == null) ? null : flight.getKey(sharedReq, path);
+        if (flightKey != null) {
+          future = startShared(path, flightKey);
+        }
+        if (future != null) {
+          shared.add(future);
+        } else {
+          SubRequestTask task = newTask(path);
+          future = inline ? null : tryDispatch(task);
+          if (future == null) {
+            // Run after being registered, so that identical subrequests share it instead of rendering again
+            future = new SubRequestFuture(task, null, null);
+            deferred.add(future);
+          }
+          attached.add(future);
+        }
+        if (key != null) {
+          future = register(key, future);
+        }
+      }
+      futures.add(future);
+      return future;
+    }
+
+    /**
+     * Runs the deferred subrequests on the current thread, unless already started elsewhere.
+     */
+    private void runDeferred() {
+      for (SubRequestFuture future : deferred) {
+        future.run();
+      }
+      deferred.clear();
+    }
+
+    /**
+     * Dispatches a subrequest to the executor when admitted.
+     *
+     * @return  the future or {@code null} when not admitted or rejected by the executor
+     */
+    private SubRequestFuture tryDispatch(SubRequestTask task) {
+      SubRequestFuture future = tryAdmit(task);
+      return (future != null && tryExecute(future)) ? future : null;
+    }
+
+    /**
+     * Creates a future for a subrequest, holding a permit when there is admission control.
+     *
+     * @return  the future, not yet run, or {@code null} when not admitted
+     */
+    private SubRequestFuture tryAdmit(SubRequestTask task) {
+      if (admission == null) {
+        return new SubRequestFuture(task, null, null);
+      }
+      if (admission.tryAcquire(parentConcurrent, task.path)) {
+        return new SubRequestFuture(task, admission, parentConcurrent);
+      }
+      return null;
+    }
+
+    /**
+     * Dispatches an admitted subrequest to the executor.
+     *
+     * @return  {@code true} when dispatched, or {@code false} when rejected by the executor
+     */
+    private boolean tryExecute(SubRequestFuture future) {
+      future.dispatched = true;
+      if (admission == null) {
+        executor.execute(future);
+        return true;
+      }
+      try {
+        executor.execute(future);
+        return true;
+      } catch (RejectedExecutionException e) {
+        future.dispatched = false;
+        future.withdraw(true);
+        return false;
+      }
+    }
+
+    /**
+     * Starts a render shared with other parent requests, or shares the render of another parent
+     * already in flight.  The render is dispatched before being registered, since other parents may be
+     * waiting on it as soon as registered.  The render is against a detached copy of the parent, since it
+     * is not cancelled when this parent completes or times out.
+     *
+     * @return  the shared render or {@code null} to not share when a new render is not admitted or is rejected
+     *          by the executor, since a shared render is never run on the current thread
+     */
+    private SubRequestFuture startShared(String path, SubRequestKey flightKey) {
+      SubRequestFuture future = flight.get(flightKey);
+      if (future != null && attach(future)) {
+        return future;
+      }
+      // Buffered in memory, since shared with other parents that outlive the temp files of this parent
+      SubRequestTask task = new SubRequestTask(
+          new DetachedHttpServletRequest(sharedReq),
+          new DetachedHttpServletResponse(parentResp),
+          null,
+          path,
+          adaptivePolicy,
+          hedge
+      );
+      future = tryDispatch(task);
+      if (future == null) {
+        return null;
+      }
+      attached.add(future);
+      while (true) {
+        SubRequestFuture registered = flight.register(flightKey, future);
+        if (registered == future) {
+          return future;
+        }
+        if (attach(registered)) {
+          // Lost the race with an identical render of another parent
+          leave(future);
+          return registered;
+        }
+        // Every parent has left the registered render, which is replaced on the next attempt
+      }
+    }
+
+    /**
+     * Dispatches a subrequest, or runs it on the current thread when the {@link AdaptiveDispatchPolicy}
+     * has learned it is fast.
+     */
+    SubRequestFuture fork(String path) {
+      SubRequestFuture future = start(path, adaptivePolicy != null && adaptivePolicy.isInline(path));
+      runDeferred();
+      return future;
+    }
+
+    /**
+     * Waits for the given future, bounded by the deadline of this include.
+     */
+    private <V> V await(Future<V> future)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (deadline == null) {
+        return future.get();
+      }
+      return future.get(Math.max(0, deadline.getRemaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Issues a hedge when the subrequest is idempotent and has not completed by the hedge delay of its path.
+     *
+     * @return  the result when completed before the hedge delay, or {@code null} when hedged or not hedgeable
+     */
+    private BufferResult awaitHedgeDelay(SubRequestFuture future)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      SubRequestTask task = future.task;
+      if (hedge == null || future.isDone() || !isOwned(future) || !hedge.isHedgeable(task.subRequest)) {
+        return null;
+      }
+      long delay = hedge.getHedgeDelay(task.path, TimeUnit.NANOSECONDS);
+      if (delay < 0) {
+        return null;
+      }
+      long wait = delay - (System.nanoTime() - future.dispatchNanos);
+      if (deadline != null) {
+        long remaining = deadline.getRemaining(TimeUnit.NANOSECONDS);
+        if (remaining <= wait) {
+          // Deadline comes first, no time to hedge
+          return null;
+        }
+      }
+      try {
+        return future.get(Math.max(0, wait), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        future.hedge = tryDispatch(newTask(task.path));
+        if (future.hedge != null) {
+          hedge.hedged();
+        }
+        return null;
+      }
+    }
+
+    /**
+     * Waits for the first of a subrequest and its hedge to complete successfully, cancelling the other.
+     */
+    private BufferResult awaitHedged(SubRequestFuture primary)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      SubRequestFuture secondary = primary.hedge;
+      await(CompletableFuture.anyOf(primary.completion, secondary.completion));
+      SubRequestFuture first = primary.isDone() ? primary : secondary;
+      SubRequestFuture second = (first == primary) ? secondary : primary;
+      BufferResult result;
+      try {
+        result = first.get();
+      } catch (ExecutionException e) {
+        // The other may still succeed
+        try {
+          result = await(second);
+        } catch (ExecutionException e2) {
+          throw (first == primary) ? e : e2;
+        }
+        first = second;
+        second = null;
+      }
+      if (second != null) {
+        // Discard the loser
+        second.task.cancel();
+        second.cancel(true);
+      }
+      if (first == secondary) {
+        hedge.hedgeWon();
+      }
+      return result;
+    }
+
+    /**
+     * Waits for the given subrequest to complete, bounded by the deadline of this include.  When the deadline
+     * passes, this include leaves the subrequest.  Once no other include is waiting on it, the subrequest is
+     * cancelled, interrupting its thread and causing its captured writer to fail fast.
+     *
+     * @return  the captured output or any {@linkplain #getTimeoutFallback() fallback}
+     */
+    private BufferResult join(SubRequestFuture future)
+        throws InterruptedException, ExecutionException, ServletException, IOException {
+      SubRequestTask task = future.task;
+      SubRequestTimeoutException timeout;
+      try {
+        BufferResult result = awaitHedgeDelay(future);
+        if (result != null) {
+          return result;
+        }
+        if (future.hedge != null) {
+          return awaitHedged(future);
+        }
+        return await(future);
+      } catch (TimeoutException e) {
+        leave(future);
+        timeout = new SubRequestTimeoutException(task.path);
+        timeout.initCause(e);
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof SubRequestTimeoutException)) {
+          throw e;
+        }
+        timeout = (SubRequestTimeoutException) e.getCause();
+      }
+      if (fallback == null) {
+        throw timeout;
+      }
+      return fallback.getFallback(timeout);
+    }
+
+    /**
+     * Gets the timeout fallback result or the timeout when there is no fallback.  The sub response is not read,
+     * since the subrequest may still be running.
+     */
+    private SubResult getFallback(SubRequestTask task, SubRequestTimeoutException timeout) throws ServletException, IOException {
+      if (fallback == null) {
+        throw timeout;
+      }
+      return SubResult.ofFallback(task.path, fallback.getFallback(timeout));
+    }
+
+    /**
+     * Completes the given result from the given completed subrequest.
+     */
+    private void complete(SubRequestFuture future, CompletableFuture<SubResult> result) {
+      SubRequestTask task = future.task;
+      try {
+        try {
+          result.complete(SubResult.of(task.path, task.subResponse, future.get()));
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof SubRequestTimeoutException) {
+            result.complete(getFallback(task, (SubRequestTimeoutException) cause));
+          } else {
+            result.completeExceptionally(cause);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Not expected since the subrequest is done
+        Thread.currentThread().interrupt();
+        result.completeExceptionally(e);
+      } catch (Throwable t) {
+        result.completeExceptionally(t);
+      }
+    }
+
+    /**
+     * Gets a result that completes once the subrequest has completed, without blocking the current thread.
+     * When the deadline of this include passes first, the result is completed with the fallback or timeout
+     * and this include leaves the subrequest.  Cancelling the result also leaves the subrequest.  Once no other
+     * include is waiting on it, the subrequest is cancelled.
+     */
+    CompletableFuture<SubResult> joinAsync(SubRequestFuture future) {
+      SubRequestTask task = future.task;
+      CompletableFuture<SubResult> result = new CompletableFuture<>();
+      future.completion.thenRun(() -> complete(future, result));
+      if (deadline != null && !future.isDone()) {
+        CompletableFuture.delayedExecutor(
+            Math.max(0, deadline.getRemaining(TimeUnit.NANOSECONDS)),
+            TimeUnit.NANOSECONDS
+        ).execute(() -> {
+          if (!future.isDone()) {
+            // Complete with timeout before cancelling, so the result is not completed by the cancellation
+            SubRequestTimeoutException timeout = new SubRequestTimeoutException(task.path);
+            try {
+              result.complete(getFallback(task, timeout));
+            } catch (Throwable t) {
+              result.completeExceptionally(t);
+            }
+            leave(future);
+          }
+        });
+      }
+      result.whenComplete((r, t) -> {
+        if (result.isCancelled()) {
+          leave(future);
+        }
+      });
+      return result;
+    }
+
+    /**
+     * Leaves all subrequests, cancelling those no other include is waiting on and interrupting any that are running.
+     */
+    void cancelAll() {
+      for (SubRequestFuture future : futures) {
+        leave(future);
+      }
+    }
+
+    /**
+     * Gets a future that is completed once no thread is running any subrequest started by this include,
+     * including hedges.  Subrequests shared from other includes are not waited for, since they are not
+     * cancelled by this include.
+     */
+    CompletableFuture<Void> terminated() {
+      List<CompletableFuture<Void>> owned = new ArrayList<>(futures.size());
+      for (SubRequestFuture future : futures) {
+        for (SubRequestFuture f = future; f != null && isOwned(f); f = f.hedge) {
+          owned.add(f.terminated);
+        }
+      }
+      return CompletableFuture.allOf(owned.toArray(new CompletableFuture<?>[owned.size()]));
+    }
+  }
+
+  /**
+   * Dispatches all the given paths, running any inline subrequests on the current thread once all
+   * concurrent subrequests are dispatched.
+   */
+  private FanOut dispatchAll(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths
+  ) {
+    int size = paths.size();
+    AdaptiveDispatchPolicy policy = adaptiveDispatchPolicy;
+    boolean[] inline = new boolean[size];
+    // Shared renders are always run concurrently
+    boolean anyConcurrent = singleFlight != null;
+    for (int i = 0; i < size; i++) {
+      inline[i] = policy != null && policy.isInline(paths.get(i));
+      if (!inline[i]) {
+        anyConcurrent = true;
+      }
+    }
+    // Plain parent request and response when all run inline on this thread
+    FanOut fanOut = new FanOut(
+        req,
+        anyConcurrent ? getSharedRequest(req) : req,
+        anyConcurrent ? getThreadSafeResponse(resp) : resp,
+        tempFileContext,
+        size
+    );
+    try {
+      for (int i = 0; i < size; i++) {
+        fanOut.start(paths.get(i), inline[i]);
+      }
+      fanOut.runDeferred();
+    } catch (Throwable t) {
+      fanOut.cancelAll();
+      throw t;
+    }
+    return fanOut;
+  }
+
+  /**
+   * Includes all the given paths concurrently, handling each result in submission order as soon
+   * as it and all prior results are available.  Subrequests later in the list continue to run
+   * while earlier results are being handled.
+   *
+   * <p>When any subrequest fails, the remaining subrequests are cancelled and the first
+   * failure, in submission order, is thrown.</p>
+   */
+  void include(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths,
+      ResultHandler handler
+  ) throws ServletException, IOException {
+    int size = paths.size();
+    if (size == 0) {
+      return;
+    }
+    FanOut fanOut = dispatchAll(req, resp, tempFileContext, paths);
+    List<SubRequestFuture> futures = fanOut.futures;
+    try {
+      for (int i = 0; i < size; i++) {
+        handler.handle(i, fanOut.join(futures.get(i)));
+      }
+    } catch (InterruptedException e) {
+      fanOut.cancelAll();
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+      InterruptedIOException ioErr = new InterruptedIOException();
+      ioErr.initCause(e);
+      throw ioErr;
+    } catch (ExecutionException e) {
+      fanOut.cancelAll();
+      throw unwrap(e);
+    } catch (Throwable t) {
+      fanOut.cancelAll();
+      throw t;
+    }
+  }
+
+  /**
+   * Includes all the given paths concurrently.
+   *
+   * <p>When any subrequest fails, the remaining subrequests are cancelled and the first
+   * failure, in submission order, is thrown.</p>
+   *
+   * @param tempFileContext  The temp file list for auto temp files.  Must remain open
+   *                         while the results are in use.
+   *
+   * @return  the captured output of each path, in the same order as the paths
+   */
+  public List<BufferResult> include(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths
+  ) throws ServletException, IOException {
+    int size = paths.size();
+    if (size == 0) {
+      return Collections.emptyList();
+    }
+    List<BufferResult> results = new ArrayList<>(size);
+    include(req, resp, tempFileContext, paths, (index, result) -> results.add(result));
+    return results;
+  }
+
+  /**
+   * Includes all the given paths concurrently, streaming the output of each to the given writer
+   * in order.  The output of a path is written and flushed as soon as it and all the paths before
+   * it have completed, while later paths continue to render in the background.  This reduces the
+   * time to first byte from the slowest path to roughly the first path.
+   *
+   * <p>Since the writer is flushed after each path, the parent response will typically be committed
+   * after the first path is written.</p>
+   *
+   * <p>When any subrequest fails, the remaining subrequests are cancelled and the first
+   * failure, in submission order, is thrown.  Output of the paths before the failure will have
+   * already been written.</p>
+   *
+   * @param tempFileContext  The temp file list for auto temp files.
+   * @param out  The writer to merge output into, typically {@link HttpServletResponse#getWriter()}
+   *             of the parent response.  Only accessed by the calling thread.
+   */
+  public void include(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths,
+      Writer out
+  ) throws ServletException, IOException {
+    include(req, resp, tempFileContext, paths, (index, result) -> {
+      result.writeTo(out);
+      out.flush();
+    });
+  }
+
+  /**
+   * Includes all the given paths concurrently, streaming the output of each to the given output stream
+   * in order, as {@link #include(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List, java.io.Writer)}.
+   *
+   * <p>Output the subrequests wrote to their {@linkplain IServletSubResponse#getOutputStream() output stream},
+   * in the character encoding of the parent response, is written without being decoded.  All other output is
+   * encoded in the character encoding of the parent response.</p>
+   *
+   * @param tempFileContext  The temp file list for auto temp files.
+   * @param out  The stream to merge output into, typically {@link HttpServletResponse#getOutputStream()}
+   *             of the parent response.  Only accessed by the calling thread.
+   */
+  public void include(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths,
+      OutputStream out
+  ) throws ServletException, IOException {
+    StreamMerge merge = new StreamMerge(out, resp.getCharacterEncoding());
+    include(req, resp, tempFileContext, paths, (index, result) -> merge.write(result));
+  }
+
+  /**
+   * Dispatches all the given paths concurrently, returning without waiting for them to complete.
+   * This allows fragment pipelines to be composed without blocking a container thread on each join.
+   *
+   * <p>Subrequests run inline by the {@link AdaptiveDispatchPolicy}, or serially due to
+   * {@link SubRequestAdmissionControl}, are run on the current thread before returning.</p>
+   *
+   * <p>When the parent request has a {@link SubRequestDeadline}, a subrequest that exceeds the deadline
+   * is cancelled and its result is completed with the timeout fallback or {@link SubRequestTimeoutException}.
+   * Cancelling a result cancels its subrequest.  Subrequests are not hedged.</p>
+   *
+   * <p>Unlike the blocking forms, a failed subrequest does not cancel the others.</p>
+   *
+   * @param req  The parent request, which must not be changed until all results are complete.
+   * @param tempFileContext  The temp file list for auto temp files.  Must remain open
+   *                         while the results are in use.
+   *
+   * @return  a result for each path, in the same order as the paths
+   */
+  public List<CompletableFuture<SubResult>> includeAsync(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths
+  ) {
+    int size = paths.size();
+    if (size == 0) {
+      return Collections.emptyList();
+    }
+    FanOut fanOut = dispatchAll(req, resp, tempFileContext, paths);
+    List<CompletableFuture<SubResult>> results = new ArrayList<>(size);
+    for (SubRequestFuture future : fanOut.futures) {
+      results.add(fanOut.joinAsync(future));
+    }
+    return results;
+  }
+
+  /**
+   * Puts the parent request into asynchronous mode and includes all the given paths concurrently,
+   * streaming the output of each to the parent response in order as in
+   * {@link #include(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List, java.io.OutputStream)}.
+   * The writer of the parent response is used instead when the parent has already written to it.
+   * Returns once the subrequests are dispatched, so the container thread may be released by returning from
+   * the servlet.  The {@link AsyncContext} is completed once all output is written.
+   *
+   * <p>When any subrequest fails, or the {@link AsyncContext} times out, the remaining subrequests are cancelled.
+   * Once no thread is running any of them, an {@link HttpServletResponse#SC_INTERNAL_SERVER_ERROR} is sent when
+   * the response is not yet committed, and the {@link AsyncContext} is completed.</p>
+   *
+   * <p>Output is written by whichever thread completes each subrequest, using blocking I/O.</p>
+   *
+   * @param req  The parent request, which must support asynchronous operation.
+   * @param tempFileContext  The temp file list for auto temp files.  Must remain open
+   *                         until the returned future is complete, such as by closing it in
+   *                         {@link CompletableFuture#whenComplete(java.util.function.BiConsumer)}.
+   *
+   * @return  a future that is completed once the {@link AsyncContext} is completed, or is completed
+   *          exceptionally with the first failure, in submission order
+   *
+   * @throws  IllegalStateException  when the request does not support asynchronous operation
+   */
+  public CompletableFuture<Void> startAsync(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext,
+      List<String> paths
+  ) throws IllegalStateException {
+    AsyncContext asyncContext = req.isAsyncStarted() ? req.getAsyncContext() : req.startAsync(req, resp);
+    AsyncInclude include = new AsyncInclude(asyncContext, resp);
+    // Registered before dispatching, since subrequests run on the current thread may take long enough to time out
+    asyncContext.addListener(include);
+    include.start(req, tempFileContext, paths);
+    return include.done;
+  }
+
+  /**
+   * An include started by {@link #startAsync(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List)},
+   * which listens to its own {@link AsyncContext}.
+   */
+  private class AsyncInclude implements AsyncListener {
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse resp;
+
+    /**
+     * Completed once all subrequests are dispatched, or exceptionally when dispatching failed.
+     */
+    private final CompletableFuture<FanOut> dispatched = new CompletableFuture<>();
+
+    /**
+     * The first failure, which is reported even when the subrequests are then cancelled.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /**
+     * Held while writing to the response, so that no output is merged once completing.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    /**
+     * Merges into the output stream of the response, when available.  Only accessed while holding the write lock.
+     */
+    private StreamMerge merge;
+
+    /**
+     * The writer of the response, when the output stream is not available.  Only accessed while holding the write
+     * lock.
+     */
+    private PrintWriter writer;
+
+    private AsyncInclude(AsyncContext asyncContext, HttpServletResponse resp) {
+      this.asyncContext = asyncContext;
+      this.resp = resp;
+    }
+
+    /**
+     * Dispatches the subrequests and merges their output in order.
+     */
+    private void start(HttpServletRequest req, TempFileContext tempFileContext, List<String> paths) {
+      FanOut fanOut;
+      try {
+        fanOut = dispatchAll(req, resp, tempFileContext, paths);
+      } catch (Throwable t) {
+        dispatched.completeExceptionally(t);
+        failure.compareAndSet(null, t);
+        complete();
+        return;
+      }
+      dispatched.complete(fanOut);
+      CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+      for (SubRequestFuture future : fanOut.futures) {
+        CompletableFuture<SubResult> result = fanOut.joinAsync(future);
+        chain = chain.thenCompose(v -> result).thenAccept(this::write);
+      }
+      chain.whenComplete((v, t) -> {
+        if (t != null) {
+          if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+          }
+          failure.compareAndSet(null, t);
+          fanOut.cancelAll();
+          // Not blocking, since this may be the thread of a subrequest that is not yet terminated
+          fanOut.terminated().whenComplete((v2, t2) -> complete());
+        } else {
+          complete();
+        }
+      });
+    }
+
+    /**
+     * Merges the output of a subrequest into the response, unless already completing.  The output stream of the
+     * response is used unless the parent has already used its writer.
+     */
+    private void write(SubResult subResult) {
+      writeLock.lock();
+      try {
+        if (!completed.get()) {
+          if (merge == null && writer == null) {
+            try {
+              merge = new StreamMerge(resp.getOutputStream(), resp.getCharacterEncoding());
+            } catch (IllegalStateException e) {
+              // The parent has already written to its writer
+              writer = resp.getWriter();
+            }
+          }
+          if (merge != null) {
+            merge.write(subResult.getOutput());
+          } else {
+            subResult.getOutput().writeTo(writer);
+            writer.flush();
+          }
+        }
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    /**
+     * Cancels the subrequests and waits for their threads to leave them, so the response is not
+     * touched while any subrequest is still running, then completes with the given failure.
+     * Called by a container thread, which must not return before the async context is completed.
+     */
+    private void fail(Throwable t) {
+      failure.compareAndSet(null, t);
+      FanOut fanOut;
+      try {
+        // Waits for any subrequests still being dispatched
+        fanOut = dispatched.join();
+      } catch (CompletionException | CancellationException e) {
+        fanOut = null;
+      }
+      if (fanOut != null) {
+        fanOut.cancelAll();
+        // Uninterruptible, since the response may not be touched until every subrequest has left it
+        fanOut.terminated().join();
+      }
+      complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      // Nothing to do
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      fail(new TimeoutException("Async context timed out"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      Throwable t = event.getThrowable();
+      fail((t != null) ? t : new ServletException("Async context error"));
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // Nothing to do
+    }
+
+    /**
+     * Completes the async context at most once, with the first failure, sending an error first on failure.
+     */
+    private void complete() {
+      if (completed.compareAndSet(false, true)) {
+        Throwable t = failure.get();
+        writeLock.lock();
+        try {
+          if (t == null) {
+            // Writes any output still buffered by the response, such as the segments of a ThreadSafeServletResponse
+            resp.flushBuffer();
+          } else if (!resp.isCommitted()) {
+            resp.reset();
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          }
+        } catch (IOException | RuntimeException e) {
+          if (t == null) {
+            t = e;
+          } else {
+            t.addSuppressed(e);
+          }
+        } finally {
+          writeLock.unlock();
+          try {
+            asyncContext.complete();
+          } catch (RuntimeException e) {
+            if (t == null) {
+              t = e;
+            } else {
+              t.addSuppressed(e);
+            }
+          }
+          if (t == null) {
+            done.complete(null);
+          } else {
+            done.completeExceptionally(t);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens a scope for subrequests that fail together.
+   *
+   * @param req  The parent request, which must not be changed until the scope is closed.
+   * @param tempFileContext  The temp file list for auto temp files.  Must remain open
+   *                         while the results are in use.
+   */
+  public SubRequestScope openScope(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      TempFileContext tempFileContext
+  ) {
+    return new SubRequestScope(new FanOut(req, getSharedRequest(req), getThreadSafeResponse(resp), tempFileContext, 10));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.tempfiles.TempFileContext;
+import java.util.Objects;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Identifies subrequests that would render the same output, for coalescing.
+ *
+ * <p>The parameters of the parent are identified by its query string, rather than its parameter map, so that
+ * building a key never parses, and so consumes, the body of the parent.  Parameters from the body are
+ * therefore not part of the key.</p>
+ *
+ * <p>This class is immutable and thread safe.</p>
+ */
+final class SubRequestKey {
+
+  private final String method;
+  private final String path;
+  private final String queryString;
+  private final Object key;
+  private final TempFileContext tempFileContext;
+  private final int hash;
+
+  /**
+   * @param req  The parent request, providing the method and query string.
+   * @param key  The key declared by the caller.
+   * @param tempFileContext  Compared by identity, since the output may be buffered in its temp files.
+   */
+  SubRequestKey(HttpServletRequest req, String path, Object key, TempFileContext tempFileContext) {
+    this.method = req.getMethod();
+    this.path = path;
+    this.queryString = req.getQueryString();
+    this.key = key;
+    this.tempFileContext = tempFileContext;
+    this.hash = Objects.hash(method, path, queryString, key, System.identityHashCode(tempFileContext));
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof SubRequestKey)) {
+      return false;
+    }
+    SubRequestKey other = (SubRequestKey) obj;
+    return hash == other.hash
+        && tempFileContext == other.tempFileContext
+        && path.equals(other.path)
+        && Objects.equals(method, other.method)
+        && key.equals(other.key)
+        && Objects.equals(queryString, other.queryString);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return SubRequestKey.class.getSimpleName() + "(" + method + " " + path + ", key=" + key + ")";
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import javax.servlet.ServletException;
+
+/**
+ * A group of subrequests that fail together, in the style of the structured concurrency
+ * {@code StructuredTaskScope.ShutdownOnFailure}.  Subrequests are forked by {@link #fork(java.lang.String)},
+ * waited for by {@link #join()}, and the scope is closed by {@link #close()}, typically in try-with-resources:
+ *
+ * <pre>try (SubRequestScope scope = executor.openScope(req, resp, tempFileContext)) {
+ *   SubRequestScope.Subtask header = scope.fork("/header.jsp");
+ *   SubRequestScope.Subtask body = scope.fork("/body.jsp");
+ *   scope.join();
+ *   header.get().getOutput().writeTo(out);
+ *   body.get().getOutput().writeTo(out);
+ * }</pre>
+ *
+ * <p>As soon as any subrequest fails, or completes with an error status of {@code 400} or higher, all the
+ * other subrequests are cancelled, without waiting for the owner to reach them in order.  A subrequest that
+ * exceeds the {@link SubRequestDeadline} of the parent request is replaced by the
+ * {@linkplain SubRequestExecutor#setTimeoutFallback(com.aoapps.servlet.subrequest.SubRequestExecutor.TimeoutFallback) timeout fallback}
+ * or fails the scope with {@link SubRequestTimeoutException}.</p>
+ *
+ * <p>{@link #close()} does not return until every subrequest thread has left its subrequest, so no subrequest
+ * started by the scope outlives it.  Subrequests shared with other includes, by
+ * {@linkplain SubRequestExecutor#setCoalescingKey(com.aoapps.servlet.subrequest.SubRequestExecutor.CoalescingKey) coalescing}
+ * or a {@link SubRequestSingleFlight}, are only cancelled once no other include is waiting on them.  Those started
+ * by another include are not waited for.</p>
+ *
+ * <p>{@code StructuredTaskScope} is a preview API through at least Java 21 and this project supports Java 11,
+ * so this is implemented directly on {@link SubRequestExecutor}, whose executor may be
+ * {@linkplain SubRequestExecutor#newVirtualThreadPerTaskExecutor() virtual threads}.</p>
+ *
+ * <p>This class is not thread safe.  It may only be used by the thread that opened it.</p>
+ *
+ * @see  SubRequestExecutor#openScope(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext)
+ */
+public final class SubRequestScope implements AutoCloseable {
+
+  /**
+   * A subrequest forked in a scope.  Its result is available once the scope has joined successfully.
+   */
+  public static final class Subtask implements Supplier<SubResult> {
+
+    private final String path;
+    private final CompletableFuture<SubResult> result;
+
+    private Subtask(String path, CompletableFuture<SubResult> result) {
+      this.path = path;
+      this.result = result;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Gets the result of the subrequest.
+     *
+     * @throws  IllegalStateException  when the scope has not joined successfully
+     */
+    @Override
+    public SubResult get() throws IllegalStateException {
+      SubResult r = result.getNow(null);
+      if (r == null || result.isCompletedExceptionally()) {
+        throw new IllegalStateException("Subtask not completed successfully: " + path);
+      }
+      return r;
+    }
+
+    @Override
+    public String toString() {
+      return "SubRequestScope.Subtask(" + path + ")";
+    }
+  }
+
+  private final Thread owner = Thread.currentThread();
+  private final SubRequestExecutor.FanOut fanOut;
+  private final List<Subtask> subtasks = new ArrayList<>();
+
+  /**
+   * Completed with the first failure, in completion order.
+   */
+  private final CompletableFuture<Throwable> failed = new CompletableFuture<>();
+
+  private boolean joined;
+  private boolean closed;
+
+  SubRequestScope(SubRequestExecutor.FanOut fanOut) {
+    this.fanOut = fanOut;
+  }
+
+  private void checkOwner() throws IllegalStateException {
+    if (Thread.currentThread() != owner) {
+      throw new IllegalStateException("Scope may only be used by the thread that opened it");
+    }
+  }
+
+  /**
+   * Forks a subrequest for the given path.  When the subrequest is not admitted by the
+   * {@link SubRequestAdmissionControl}, or is run inline by the {@link AdaptiveDispatchPolicy},
+   * it is run on the current thread before returning.
+   *
+   * @throws  IllegalStateException  when the scope has already joined or been closed
+   */
+  public Subtask fork(String path) throws IllegalStateException {
+    checkOwner();
+    if (joined || closed) {
+      throw new IllegalStateException("Scope already joined or closed");
+    }
+    SubRequestExecutor.SubRequestFuture future = fanOut.fork(path);
+    CompletableFuture<SubResult> result = fanOut.joinAsync(future);
+    Subtask subtask = new Subtask(path, result);
+    subtasks.add(subtask);
+    result.whenComplete((r, t) -> {
+      if (t != null) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+          t = t.getCause();
+        }
+        // Has no effect when cancelled due to an earlier failure, but fails the scope when cancelled elsewhere
+        failed.complete(t);
+      } else if (r.getStatus() >= 400) {
+        failed.complete(new SubRequestErrorException(path, r.getStatus(), r.getStatusMessage()));
+      }
+    });
+    // Cancels immediately on failure, including when forked after the failure
+    failed.thenRun(() -> result.cancel(true));
+    return subtask;
+  }
+
+  /**
+   * Waits for all forked subrequests to complete, or for the first to fail.  On failure, the other
+   * subrequests have been cancelled and the failure is thrown.
+   *
+   * @throws  IllegalStateException  when the scope has already joined or been closed
+   */
+  public void join() throws IllegalStateException, ServletException, IOException {
+    checkOwner();
+    if (joined || closed) {
+      throw new IllegalStateException("Scope already joined or closed");
+    }
+    joined = true;
+    CompletableFuture<?>[] results = new CompletableFuture<?>[subtasks.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = subtasks.get(i).result;
+    }
+    try {
+      CompletableFuture.anyOf(CompletableFuture.allOf(results), failed).get();
+    } catch (ExecutionException e) {
+      // Failures are reported through failed
+    } catch (InterruptedException e) {
+      failed.complete(e);
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+      InterruptedIOException ioErr = new InterruptedIOException();
+      ioErr.initCause(e);
+      throw ioErr;
+    }
+    Throwable t = failed.getNow(null);
+    if (t != null) {
+      throw SubRequestExecutor.unwrap(t);
+    }
+  }
+
+  /**
+   * Cancels any subrequests that are still running and waits for the threads of those started by this scope
+   * to leave them.
+   */
+  @Override
+  public void close() throws IllegalStateException {
+    checkOwner();
+    if (!closed) {
+      closed = true;
+      for (Subtask subtask : subtasks) {
+        subtask.result.cancel(true);
+      }
+      // Uninterruptible, so that no subrequest outlives the scope
+      fanOut.terminated().join();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Collapses concurrent identical subrequests of different parent requests into a single render.
+ * Share a single instance between all {@link SubRequestExecutor} for JVM-wide single-flight.
+ *
+ * <p>Only subrequests declared user-independent by the {@link SubRequestExecutor.CoalescingKey} are shared,
+ * keyed on their path, the key, and the method and query string of their parent.  Since parameters from the
+ * body of the parent are not part of the key, only subrequests of {@code GET} and {@code HEAD} parents are shared.  While a render is in flight,
+ * identical subrequests attach to it and share its output.  Once complete, the render is forgotten, so
+ * this is not a cache: it collapses a thundering herd without serving anything stale.</p>
+ *
+ * <p>Shared renders are buffered in memory only, since the temp files of the parent request that started
+ * the render may be deleted before the other parents have written the output.  Shared renders are never run
+ * inline on the parent thread and are never hedged.  Each parent waits on a shared render until its own deadline,
+ * and the render is only cancelled once every parent sharing it has timed out, failed, or been cancelled.  A subrequest that would
+ * start a new render, but is not admitted or is rejected by the executor, is not shared and is rendered by its
+ * parent alone.  Since they may outlive the parent that started them, shared renders are against a detached
+ * copy of that parent that never reads-through to it.  The copy has no user, session, cookies, credential
+ * headers, roles, or parts, does not have the deadline of that parent, and does not encode URLs with the session.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @see  SubRequestExecutor#setSingleFlight(com.aoapps.servlet.subrequest.SubRequestSingleFlight)
+ */
+public class SubRequestSingleFlight {
+
+  private final SubRequestExecutor.CoalescingKey userIndependentKey;
+
+  private final ConcurrentMap<SubRequestKey, SubRequestExecutor.SubRequestFuture> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong renderedCount = new AtomicLong();
+  private final AtomicLong sharedCount = new AtomicLong();
+
+  /**
+   * @param userIndependentKey  Gets the key for subrequests whose output does not depend on the user,
+   *                            or {@code null} for subrequests that must not be shared between parents.
+   */
+  public SubRequestSingleFlight(SubRequestExecutor.CoalescingKey userIndependentKey) {
+    if (userIndependentKey == null) {
+      throw new IllegalArgumentException("userIndependentKey is null");
+    }
+    this.userIndependentKey = userIndependentKey;
+  }
+
+  /**
+   * Gets the key to share the given path.
+   *
+   * @param req  The parent request
+   *
+   * @return  the key or {@code null} when the path is not shared, including for parents that may have parameters
+   *          in their body
+   */
+  SubRequestKey getKey(HttpServletRequest req, String path) {
+    String method = req.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      // May have parameters in its body
+      return null;
+    }
+    Object key = userIndependentKey.getKey(req, path);
+    return (key == null) ? null : new SubRequestKey(req, path, key, null);
+  }
+
+  /**
+   * Checks if the given render may no longer be shared, since it is complete or every parent has left it.
+   */
+  private static boolean isEnded(SubRequestExecutor.SubRequestFuture future) {
+    return future.isDone() || future.isAbandoned();
+  }
+
+  /**
+   * Gets the in-flight render for the given key.
+   *
+   * @return  the render or {@code null} when none in flight, including when every parent has left it
+   */
+  SubRequestExecutor.SubRequestFuture get(SubRequestKey key) {
+    SubRequestExecutor.SubRequestFuture future = inFlight.get(key);
+    if (future == null || isEnded(future)) {
+      return null;
+    }
+    sharedCount.incrementAndGet();
+    return future;
+  }
+
+  /**
+   * Registers the given render as in flight unless another has already been registered for the key.
+   * The render is forgotten once complete, and is replaced once every parent has left it.
+   *
+   * @return  the render registered for the key, which is the given render when registered
+   */
+  SubRequestExecutor.SubRequestFuture register(SubRequestKey key, SubRequestExecutor.SubRequestFuture future) {
+    while (true) {
+      SubRequestExecutor.SubRequestFuture existing = inFlight.putIfAbsent(key, future);
+      if (existing == null) {
+        renderedCount.incrementAndGet();
+        future.completion.thenRun(() -> inFlight.remove(key, future));
+        return future;
+      }
+      if (!isEnded(existing)) {
+        sharedCount.incrementAndGet();
+        return existing;
+      }
+      // Completed or abandoned, but not yet forgotten
+      inFlight.remove(key, existing);
+    }
+  }
+
+  /**
+   * Gets the number of shared renders started.
+   */
+  public long getRenderedCount() {
+    return renderedCount.get();
+  }
+
+  /**
+   * Gets the number of subrequests that shared an in-flight render instead of rendering.
+   */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  /**
+   * Gets the number of shared renders currently in flight.
+   */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  @Override
+  public String toString() {
+    return SubRequestSingleFlight.class.getSimpleName()
+        + "(inFlight=" + getInFlightCount()
+        + ", rendered=" + getRenderedCount()
+        + ", shared=" + getSharedCount()
+        + ')';
+  }
+}
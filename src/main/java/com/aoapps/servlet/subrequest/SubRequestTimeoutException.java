@@ -0,0 +1,51 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import javax.servlet.ServletException;
+
+/**
+ * Thrown when a subrequest does not complete before its {@link SubRequestDeadline}.
+ * The subrequest has been cancelled by the time this is thrown.
+ *
+ * @see  SubRequestExecutor.TimeoutFallback
+ */
+public class SubRequestTimeoutException extends ServletException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String path;
+
+  public SubRequestTimeoutException(String path) {
+    super("Subrequest timed out: " + path);
+    this.path = path;
+  }
+
+  /**
+   * Gets the path of the subrequest that timed out.
+   */
+  public String getPath() {
+    return path;
+  }
+}
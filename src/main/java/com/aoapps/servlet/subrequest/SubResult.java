@@ -0,0 +1,176 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.servlet.subrequest;
+
+import com.aoapps.collections.AoCollections;
+import com.aoapps.io.buffer.BufferResult;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The outcome of a completed subrequest: its captured output along with the status, headers, cookies,
+ * and redirect location set on its {@link IHttpServletSubResponse}.
+ *
+ * <p>This class is immutable and thread safe, although the {@link Cookie} instances are not copied.</p>
+ *
+ * @see  SubRequestExecutor#includeAsync(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.aoapps.tempfiles.TempFileContext, java.util.List)
+ */
+public final class SubResult {
+
+  /**
+   * Captures the state of the given sub response.
+   *
+   * @param output  The captured output, which may be substitute content such as a timeout fallback
+   */
+  static SubResult of(String path, IHttpServletSubResponse subResponse, BufferResult output) {
+    return new SubResult(
+        path,
+        output,
+        subResponse.getStatus(),
+        subResponse.getStatusMessage(),
+        subResponse.getContentType(),
+        subResponse.getAddedHeaders(),
+        AoCollections.optimalUnmodifiableMap(new LinkedHashMap<>(subResponse.getCookies())),
+        subResponse.getRedirectLocation()
+    );
+  }
+
+  /**
+   * Creates the result of a subrequest replaced by substitute content, such as a timeout fallback.
+   * The sub response is not read, since its subrequest may still be running.
+   *
+   * @param output  The substitute content
+   */
+  static SubResult ofFallback(String path, BufferResult output) {
+    return new SubResult(
+        path,
+        output,
+        HttpServletResponse.SC_OK,
+        null,
+        null,
+        Collections.emptyMap(),
+        Collections.emptyMap(),
+        null
+    );
+  }
+
+  private final String path;
+  private final BufferResult output;
+  private final int status;
+  private final String statusMessage;
+  private final String contentType;
+  private final Map<String, List<String>> headers;
+  private final Map<String, Cookie> cookies;
+  private final String redirectLocation;
+
+  private SubResult(
+      String path,
+      BufferResult output,
+      int status,
+      String statusMessage,
+      String contentType,
+      Map<String, List<String>> headers,
+      Map<String, Cookie> cookies,
+      String redirectLocation
+  ) {
+    this.path = path;
+    this.output = output;
+    this.status = status;
+    this.statusMessage = statusMessage;
+    this.contentType = contentType;
+    this.headers = headers;
+    this.cookies = cookies;
+    this.redirectLocation = redirectLocation;
+  }
+
+  /**
+   * Gets the path that was included.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Gets the captured output.
+   *
+   * @see  IServletSubResponse#getCapturedOut()
+   */
+  public BufferResult getOutput() {
+    return output;
+  }
+
+  /**
+   * Gets the status of the sub response, which is the status of the parent response when not set.
+   * This is {@link HttpServletResponse#SC_OK} for a timeout fallback.
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * Gets any status message set.
+   */
+  public String getStatusMessage() {
+    return statusMessage;
+  }
+
+  /**
+   * Gets the content type of the sub response.
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Gets the headers set or added on the sub response.
+   *
+   * @see  IHttpServletSubResponse#getAddedHeaders()
+   */
+  public Map<String, List<String>> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Gets the cookies added on the sub response.
+   */
+  public Map<String, Cookie> getCookies() {
+    return cookies;
+  }
+
+  /**
+   * Gets any redirect location.
+   */
+  public String getRedirectLocation() {
+    return redirectLocation;
+  }
+
+  @Override
+  public String toString() {
+    return SubResult.class.getSimpleName() + "(path=" + path + ", status=" + status + ")";
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,6 +23,7 @@
 
 package com.aoapps.servlet.subrequest;
 
+import com.aoapps.collections.AoCollections;
 import java.io.IOException;
 import java.security.Principal;
 import java.util.ArrayList;
@@ -30,6 +31,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.Cookie;
@@ -40,57 +42,82 @@ import javax.servlet.http.HttpUpgradeHandler;
 import javax.servlet.http.Part;
 
 /**
- * Synchronizes access to the wrapped request.
+ * Synchronizes access to the wrapped request.  Reads share a read lock, so that concurrent subrequests
+ * read in parallel, while changes take an exclusive write lock.
  */
 public class ThreadSafeHttpServletRequest extends ThreadSafeServletRequest implements HttpServletRequest {
 
   private HttpServletRequest req;
 
-  public ThreadSafeHttpServletRequest(HttpServletRequest req) {
-    super(req);
+  private final AtomicBoolean cookiesParsed = new AtomicBoolean();
+
+  /**
+   * @param concurrentAttributes  When {@code true}, attributes are held in a map owned by this wrapper.
+   *
+   * @see  ThreadSafeServletRequest#ThreadSafeServletRequest(javax.servlet.ServletRequest, boolean)
+   */
+  public ThreadSafeHttpServletRequest(HttpServletRequest req, boolean concurrentAttributes) {
+    super(req, concurrentAttributes);
     this.req = req;
   }
 
+  public ThreadSafeHttpServletRequest(HttpServletRequest req) {
+    this(req, false);
+  }
+
   @Override
   public void setRequest(ServletRequest request) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       this.req = (HttpServletRequest) request;
       super.setRequest(request);
+      cookiesParsed.set(false);
+      parts = null;
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String getAuthType() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(readLock);
+    try {
       return req.getAuthType();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public Cookie[] getCookies() {
-    synchronized (lock) {
-      return req.getCookies();
-    }
+    return lazyRead(LockMetrics.REQUEST_HEADERS, cookiesParsed, () -> req.getCookies());
   }
 
   @Override
   public long getDateHeader(String name) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_HEADERS.lock(readLock);
+    try {
       return req.getDateHeader(name);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getHeader(String name) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_HEADERS.lock(readLock);
+    try {
       return req.getHeader(name);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public Enumeration<String> getHeaders(String name) {
     List<String> headers;
-    synchronized (lock) {
+    LockMetrics.REQUEST_HEADERS.lock(readLock);
+    try {
       Enumeration<String> e = req.getHeaders(name);
       if (e == null) {
         return null;
@@ -100,6 +127,8 @@ public class ThreadSafeHttpServletRequest extends ThreadSafeServletRequest imple
           headers.add(e.nextElement());
         }
       }
+    } finally {
+      readLock.unlock();
     }
     return Collections.enumeration(headers);
   }
@@ -107,7 +136,8 @@ public class ThreadSafeHttpServletRequest extends ThreadSafeServletRequest imple
   @Override
   public Enumeration<String> getHeaderNames() {
     List<String> headerNames;
-    synchronized (lock) {
+    LockMetrics.REQUEST_HEADERS.lock(readLock);
+    try {
       Enumeration<String> e = req.getHeaderNames();
       if (e == null) {
         return null;
@@ -117,196 +147,289 @@ public class ThreadSafeHttpServletRequest extends ThreadSafeServletRequest imple
           headerNames.add(e.nextElement());
         }
       }
+    } finally {
+      readLock.unlock();
     }
     return Collections.enumeration(headerNames);
   }
 
   @Override
   public int getIntHeader(String name) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_HEADERS.lock(readLock);
+    try {
       return req.getIntHeader(name);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getMethod() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getMethod();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getPathInfo() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getPathInfo();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getPathTranslated() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getPathTranslated();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getContextPath() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getContextPath();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getQueryString() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getQueryString();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getRemoteUser() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(readLock);
+    try {
       return req.getRemoteUser();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean isUserInRole(String role) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(readLock);
+    try {
       return req.isUserInRole(role);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public Principal getUserPrincipal() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(readLock);
+    try {
       return req.getUserPrincipal();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getRequestedSessionId() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(readLock);
+    try {
       return req.getRequestedSessionId();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getRequestURI() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getRequestURI();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public StringBuffer getRequestURL() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getRequestURL();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getServletPath() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return req.getServletPath();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public HttpSession getSession(boolean create) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(writeLock);
+    try {
       return req.getSession(create);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public HttpSession getSession() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(writeLock);
+    try {
       return req.getSession();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String changeSessionId() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(writeLock);
+    try {
       return req.changeSessionId();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public boolean isRequestedSessionIdValid() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(readLock);
+    try {
       return req.isRequestedSessionIdValid();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean isRequestedSessionIdFromCookie() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(readLock);
+    try {
       return req.isRequestedSessionIdFromCookie();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean isRequestedSessionIdFromURL() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(readLock);
+    try {
       return req.isRequestedSessionIdFromURL();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public boolean isRequestedSessionIdFromUrl() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SESSION.lock(readLock);
+    try {
       return req.isRequestedSessionIdFromUrl();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean authenticate(HttpServletResponse response) throws IOException, ServletException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(writeLock);
+    try {
       return req.authenticate(response);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public void login(String username, String password) throws ServletException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(writeLock);
+    try {
       req.login(username, password);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public void logout() throws ServletException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_SECURITY.lock(writeLock);
+    try {
       req.logout();
+    } finally {
+      writeLock.unlock();
     }
   }
 
+  /**
+   * The parts, wrapped once on first access.  Reset when the wrapped request is changed.
+   */
+  private volatile List<Part> parts;
+
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: parts is volatile
   public Collection<Part> getParts() throws IOException, ServletException {
-    synchronized (lock) {
-      Collection<Part> parts = req.getParts();
-      List<Part> wrapped = new ArrayList<>(parts.size());
-      for (Part part : parts) {
-        wrapped.add(new ThreadSafePart(part, lock));
+    List<Part> p = parts;
+    if (p == null) {
+      LockMetrics.REQUEST_BODY.lock(writeLock);
+      try {
+        p = parts;
+        if (p == null) {
+          Collection<Part> reqParts = req.getParts();
+          List<Part> wrapped = new ArrayList<>(reqParts.size());
+          for (Part part : reqParts) {
+            wrapped.add(new ThreadSafePart(part, writeLock));
+          }
+          p = AoCollections.optimalUnmodifiableList(wrapped);
+          parts = p;
+        }
+      } finally {
+        writeLock.unlock();
       }
-      return wrapped;
     }
+    return p;
   }
 
   @Override
   public Part getPart(String name) throws IOException, ServletException {
-    synchronized (lock) {
-      Part part = req.getPart(name);
-      return part == null ? null : new ThreadSafePart(part, lock);
+    for (Part part : getParts()) {
+      if (part.getName().equals(name)) {
+        return part;
+      }
     }
+    return null;
   }
 
   @Override
   public <T extends HttpUpgradeHandler> T upgrade(Class<T> type) throws IOException, ServletException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(writeLock);
+    try {
       return req.upgrade(type);
+    } finally {
+      writeLock.unlock();
     }
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -37,166 +37,241 @@ public class ThreadSafeHttpServletResponse extends ThreadSafeServletResponse imp
 
   private HttpServletResponse resp;
 
-  public ThreadSafeHttpServletResponse(HttpServletResponse resp) {
-    super(resp);
+  /**
+   * @param outputSegmentSize  When positive, each thread writing to the output stream buffers up to this many bytes.
+   *
+   * @see  ThreadSafeServletResponse#ThreadSafeServletResponse(javax.servlet.ServletResponse, int)
+   */
+  public ThreadSafeHttpServletResponse(HttpServletResponse resp, int outputSegmentSize) {
+    super(resp, outputSegmentSize);
     this.resp = resp;
   }
 
+  public ThreadSafeHttpServletResponse(HttpServletResponse resp) {
+    this(resp, 0);
+  }
+
   @Override
   public void setResponse(ServletResponse response) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       this.resp = (HttpServletResponse) response;
       super.setResponse(response);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void addCookie(Cookie cookie) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.addCookie(cookie);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean containsHeader(String name) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return resp.containsHeader(name);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String encodeURL(String url) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return resp.encodeURL(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String encodeRedirectURL(String url) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return resp.encodeRedirectURL(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public String encodeUrl(String url) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return resp.encodeUrl(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public String encodeRedirectUrl(String url) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return resp.encodeRedirectUrl(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void sendError(int sc, String msg) throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       resp.sendError(sc, msg);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void sendError(int sc) throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       resp.sendError(sc);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void sendRedirect(String location) throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       resp.sendRedirect(location);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setDateHeader(String name, long date) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.setDateHeader(name, date);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void addDateHeader(String name, long date) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.addDateHeader(name, date);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setHeader(String name, String value) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.setHeader(name, value);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void addHeader(String name, String value) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.addHeader(name, value);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setIntHeader(String name, int value) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.setIntHeader(name, value);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void addIntHeader(String name, int value) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       resp.addIntHeader(name, value);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setStatus(int sc) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       resp.setStatus(sc);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public void setStatus(int sc, String sm) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       resp.setStatus(sc, sm);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int getStatus() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_STATUS.lock(lock);
+    try {
       return resp.getStatus();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getHeader(String name) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return resp.getHeader(name);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public Collection<String> getHeaders(String name) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return new ArrayList<>(resp.getHeaders(name));
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public Collection<String> getHeaderNames() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return new ArrayList<>(resp.getHeaderNames());
+    } finally {
+      lock.unlock();
     }
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,92 +23,135 @@
 
 package com.aoapps.servlet.subrequest;
 
+import com.aoapps.collections.AoCollections;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import javax.servlet.http.Part;
 
 /**
  * Synchronizes access to the wrapped part.
+ *
+ * <p>The name, content type, submitted file name, size, and headers are copied when wrapped, so they are read
+ * without locking.  Each call to {@link #getInputStream()} only holds the lock while opening the stream, and
+ * the streams are read independently.</p>
  */
 public class ThreadSafePart implements Part {
 
   protected final Part part;
-  protected final Object lock;
+  protected final Lock lock;
 
-  public ThreadSafePart(Part part, Object lock) {
+  /**
+   * @param lock  The lock shared with the request the part was obtained from.
+   */
+  public ThreadSafePart(Part part, Lock lock) {
     this.part = part;
     this.lock = lock;
+    LockMetrics.PART_METADATA.lock(lock);
+    try {
+      name = part.getName();
+      contentType = part.getContentType();
+      submittedFileName = part.getSubmittedFileName();
+      size = part.getSize();
+      Collection<String> names = part.getHeaderNames();
+      List<String> newHeaderNames = new ArrayList<>(names.size());
+      Map<String, List<String>> newHeaders = AoCollections.newLinkedHashMap(names.size());
+      for (String headerName : names) {
+        newHeaderNames.add(headerName);
+        newHeaders.put(
+            headerName.toLowerCase(Locale.ROOT),
+            AoCollections.optimalUnmodifiableList(new ArrayList<>(part.getHeaders(headerName)))
+        );
+      }
+      headerNames = AoCollections.optimalUnmodifiableList(newHeaderNames);
+      headers = AoCollections.optimalUnmodifiableMap(newHeaders);
+    } finally {
+      this.lock.unlock();
+    }
   }
 
+  private final String name;
+  private final String contentType;
+  private final String submittedFileName;
+  private final long size;
+  private final List<String> headerNames;
+
+  /**
+   * The values of each header, by lower-case name.
+   */
+  private final Map<String, List<String>> headers;
+
   @Override
   public InputStream getInputStream() throws IOException {
-    synchronized (lock) {
+    LockMetrics.PART_CONTENT.lock(lock);
+    try {
       return part.getInputStream();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getContentType() {
-    synchronized (lock) {
-      return part.getContentType();
-    }
+    return contentType;
   }
 
   @Override
   public String getName() {
-    synchronized (lock) {
-      return part.getName();
-    }
+    return name;
   }
 
   @Override
   public String getSubmittedFileName() {
-    synchronized (lock) {
-      return part.getSubmittedFileName();
-    }
+    return submittedFileName;
   }
 
   @Override
   public long getSize() {
-    synchronized (lock) {
-      return part.getSize();
-    }
+    return size;
   }
 
   @Override
   public void write(String fileName) throws IOException {
-    synchronized (lock) {
+    LockMetrics.PART_CONTENT.lock(lock);
+    try {
       part.write(fileName);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void delete() throws IOException {
-    synchronized (lock) {
+    LockMetrics.PART_CONTENT.lock(lock);
+    try {
       part.delete();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getHeader(String name) {
-    synchronized (lock) {
-      return part.getHeader(name);
-    }
+    List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+    return (values == null || values.isEmpty()) ? null : values.get(0);
   }
 
   @Override
   public Collection<String> getHeaders(String name) {
-    synchronized (lock) {
-      return new ArrayList<>(part.getHeaders(name));
-    }
+    List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+    return (values == null) ? Collections.emptyList() : values;
   }
 
   @Override
   public Collection<String> getHeaderNames() {
-    synchronized (lock) {
-      return new ArrayList<>(part.getHeaderNames());
-    }
+    return headerNames;
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,15 +24,28 @@
 package com.aoapps.servlet.subrequest;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
 /**
  * Synchronizes access to the wrapped input stream.
+ *
+ * <p>Optionally, the wrapped stream is broadcast to any number of {@linkplain #subscribe() subscribers}, each
+ * reading the entire stream through its own cursor.  The wrapped stream is read once, into a bounded ring of chunks,
+ * and each chunk is released once all subscribers have read past it.  Memory is bounded by how far the fastest
+ * subscriber may get ahead of the slowest, not by the length of the stream.  A subscriber that gets a full ring
+ * ahead waits for the slowest, so every subscriber must either read to the end or be closed.</p>
  */
 public class ThreadSafeServletInputStream extends ServletInputStream {
 
-  private static class Lock {
+  private static class Lock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
@@ -40,98 +53,441 @@ public class ThreadSafeServletInputStream extends ServletInputStream {
 
   private final ServletInputStream in;
 
+  /**
+   * The size of each chunk in broadcast mode or {@code 0} when not broadcasting.
+   */
+  private final int chunkSize;
+
+  /**
+   * The chunks read from the wrapped stream and not yet released, indexed by chunk number modulo its length.
+   * {@code null} when not broadcasting.
+   */
+  private final byte[][] ring;
+
+  /**
+   * Signalled when a chunk is added or released.
+   */
+  private final Condition changed;
+
+  /**
+   * The open subscribers.
+   */
+  private final List<Subscriber> subscribers;
+
+  /**
+   * The number of the oldest chunk not yet released.
+   */
+  private long firstChunk;
+
+  /**
+   * The number of the next chunk to be read from the wrapped stream.
+   */
+  private long nextChunk;
+
+  /**
+   * Set while a subscriber reads the next chunk from the wrapped stream, without holding the lock.
+   */
+  private boolean reading;
+
+  private boolean eof;
+
+  /**
+   * @param chunkSize  The number of bytes read from the wrapped stream at a time in broadcast mode
+   * @param maxChunks  The maximum number of chunks held for slower subscribers in broadcast mode
+   *
+   * @see  #subscribe()
+   */
+  public ThreadSafeServletInputStream(ServletInputStream in, int chunkSize, int maxChunks) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize < 1: " + chunkSize);
+    }
+    if (maxChunks < 1) {
+      throw new IllegalArgumentException("maxChunks < 1: " + maxChunks);
+    }
+    this.in = in;
+    this.chunkSize = chunkSize;
+    this.ring = new byte[maxChunks][];
+    this.changed = lock.newCondition();
+    this.subscribers = new ArrayList<>();
+  }
+
   public ThreadSafeServletInputStream(ServletInputStream in) {
     this.in = in;
+    this.chunkSize = 0;
+    this.ring = null;
+    this.changed = null;
+    this.subscribers = null;
+  }
+
+  /**
+   * Checks if the wrapped stream is broadcast to subscribers.
+   */
+  public boolean isBroadcast() {
+    return ring != null;
+  }
+
+  /**
+   * In broadcast mode, the wrapped stream is only read through subscribers.
+   */
+  private void checkNotBroadcast() throws IllegalStateException {
+    if (ring != null) {
+      throw new IllegalStateException("Broadcast stream may only be read by subscribers");
+    }
+  }
+
+  /**
+   * Subscribes a new reader of the entire wrapped stream.  All subscribers should be added before any has read
+   * past the first chunk, since released chunks are not available to later subscribers.
+   *
+   * @throws IllegalStateException when not in broadcast mode or the first chunk has already been released
+   */
+  public ServletInputStream subscribe() throws IllegalStateException {
+    if (ring == null) {
+      throw new IllegalStateException("Not a broadcast stream");
+    }
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
+      if (firstChunk > 0) {
+        throw new IllegalStateException("Subscribed too late, first chunk already released");
+      }
+      Subscriber subscriber = new Subscriber();
+      subscribers.add(subscriber);
+      return subscriber;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the chunks that all subscribers have read past.  The lock must be held.
+   */
+  private void release() {
+    long minChunk = nextChunk;
+    for (Subscriber subscriber : subscribers) {
+      minChunk = Math.min(minChunk, subscriber.chunk);
+    }
+    if (minChunk > firstChunk) {
+      while (firstChunk < minChunk) {
+        ring[(int) (firstChunk % ring.length)] = null;
+        firstChunk++;
+      }
+      changed.signalAll();
+    }
+  }
+
+  /**
+   * Reads the next chunk from the wrapped stream without holding the lock.  The lock must be held on entry and
+   * is held on return.
+   */
+  private void readChunk() throws IOException {
+    reading = true;
+    byte[] chunk = null;
+    int count = 0;
+    boolean end = false;
+    lock.unlock();
+    try {
+      chunk = new byte[chunkSize];
+      while (count < chunkSize) {
+        int read = in.read(chunk, count, chunkSize - count);
+        if (read == -1) {
+          end = true;
+          break;
+        }
+        count += read;
+      }
+    } finally {
+      LockMetrics.INPUT_STREAM_READ.lock(lock);
+      reading = false;
+      changed.signalAll();
+    }
+    if (count > 0) {
+      ring[(int) (nextChunk % ring.length)] = (count == chunkSize) ? chunk : Arrays.copyOf(chunk, count);
+      nextChunk++;
+    }
+    if (end) {
+      eof = true;
+    }
+  }
+
+  /**
+   * Reads the entire wrapped stream in broadcast mode.  Not thread safe.
+   */
+  private class Subscriber extends ServletInputStream {
+
+    /**
+     * The number of the chunk being read.
+     */
+    private long chunk;
+
+    /**
+     * The position within the chunk being read.
+     */
+    private int offset;
+
+    private boolean closed;
+
+    /**
+     * Waits for the chunk being read, reading it from the wrapped stream when needed.  The lock must be held.
+     *
+     * @return  the chunk or {@code null} at the end of the stream
+     */
+    private byte[] getChunk() throws IOException {
+      while (true) {
+        if (closed) {
+          throw new IOException("Stream closed");
+        }
+        if (chunk < nextChunk) {
+          return ring[(int) (chunk % ring.length)];
+        }
+        if (eof) {
+          return null;
+        }
+        if (!reading && nextChunk - firstChunk < ring.length) {
+          readChunk();
+        } else {
+          try {
+            changed.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+      }
+    }
+
+    /**
+     * Advances past the given number of bytes of the current chunk.  The lock must be held.
+     */
+    private void advance(byte[] current, int count) {
+      offset += count;
+      if (offset == current.length) {
+        chunk++;
+        offset = 0;
+        release();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      LockMetrics.INPUT_STREAM_READ.lock(lock);
+      try {
+        byte[] current = getChunk();
+        if (current == null) {
+          return -1;
+        }
+        int b = current[offset] & 0xff;
+        advance(current, 1);
+        return b;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      LockMetrics.INPUT_STREAM_READ.lock(lock);
+      try {
+        byte[] current = getChunk();
+        if (current == null) {
+          return -1;
+        }
+        int count = Math.min(len, current.length - offset);
+        System.arraycopy(current, offset, b, off, count);
+        advance(current, count);
+        return count;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      LockMetrics.INPUT_STREAM_READ.lock(lock);
+      try {
+        return (chunk < nextChunk) ? (ring[(int) (chunk % ring.length)].length - offset) : 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Unsubscribes, so that chunks are no longer held for this subscriber.
+     */
+    @Override
+    public void close() throws IOException {
+      LockMetrics.INPUT_STREAM_STATE.lock(lock);
+      try {
+        if (!closed) {
+          closed = true;
+          subscribers.remove(this);
+          release();
+          changed.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean isFinished() {
+      LockMetrics.INPUT_STREAM_STATE.lock(lock);
+      try {
+        return eof && chunk >= nextChunk;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      throw new IllegalStateException("Non-blocking reads are not supported by broadcast subscribers");
+    }
   }
 
   @Override
   public int read() throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.read();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int read(byte[] b) throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.read(b);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.read(b, off, len);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public long skip(long n) throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.skip(n);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int available() throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.available();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void close() throws IOException {
-    synchronized (lock) {
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       in.close();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void mark(int readlimit) {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       in.mark(readlimit);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void reset() throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       in.reset();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean markSupported() {
-    synchronized (lock) {
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       return in.markSupported();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int readLine(byte[] b, int off, int len) throws IOException {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_READ.lock(lock);
+    try {
       return in.readLine(b, off, len);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean isFinished() {
-    synchronized (lock) {
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       return in.isFinished();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean isReady() {
-    synchronized (lock) {
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       return in.isReady();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setReadListener(ReadListener readListener) {
-    synchronized (lock) {
+    checkNotBroadcast();
+    LockMetrics.INPUT_STREAM_STATE.lock(lock);
+    try {
       in.setReadListener(readListener);
+    } finally {
+      lock.unlock();
     }
   }
 }
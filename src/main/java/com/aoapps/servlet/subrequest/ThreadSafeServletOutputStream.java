@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,15 +24,32 @@
 package com.aoapps.servlet.subrequest;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
 /**
  * Synchronizes access to the wrapped output stream.
+ *
+ * <p>Optionally, each thread writes into its own segment, which is written to the wrapped stream as a whole
+ * when full.  This takes the lock of the wrapped stream once per segment instead of once per write, and the bytes
+ * of a segment are never interleaved with the bytes of other threads.  Each segment has its own lock, which is
+ * only contended while the segment is being handed off, so the segments of all threads are written safely by
+ * {@link #flush()}, {@link #close()}, and {@link ThreadSafeServletResponse#flushBuffer()}.  A thread hands off its
+ * own segment, without flushing the wrapped stream, by {@link #writeSegment()} once done writing.  Bytes still in
+ * a segment are not written until then, so the stream must be flushed or closed, or the response
+ * {@linkplain ThreadSafeServletResponse#flushBuffer() flushed}, once all threads are done writing.
+ * In this mode, the {@code print} and {@code println} methods are encoded by {@link ServletOutputStream}
+ * instead of the wrapped stream.</p>
  */
 public final class ThreadSafeServletOutputStream extends ServletOutputStream {
 
-  private static class Lock {
+  private static class Lock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
@@ -40,161 +57,491 @@ public final class ThreadSafeServletOutputStream extends ServletOutputStream {
 
   private final ServletOutputStream out;
 
-  public ThreadSafeServletOutputStream(ServletOutputStream out) {
+  /**
+   * The bytes written by one thread, not yet written to the wrapped stream.
+   */
+  private static class Segment {
+
+    /**
+     * Held by the writing thread while writing, and by any thread handing off the segment.  Always acquired before
+     * the lock of the wrapped stream.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final byte[] buf;
+    private int count;
+
+    private Segment(int segmentSize) {
+      buf = new byte[segmentSize];
+    }
+  }
+
+  private final int segmentSize;
+
+  /**
+   * The segment of each thread or {@code null} when writes are not buffered.  Held by this stream instead of in a
+   * {@link ThreadLocal}, so that segments are not reachable from pooled threads once the stream is discarded.
+   */
+  private final ConcurrentMap<Thread, Segment> threadSegments;
+
+  /**
+   * The segments of all threads, in the order first written to.
+   */
+  private final Queue<Segment> segments;
+
+  /**
+   * @param segmentSize  When positive, each thread buffers up to this many bytes before writing them to the
+   *                     wrapped stream.  When {@code 0}, each write is passed directly to the wrapped stream.
+   */
+  public ThreadSafeServletOutputStream(ServletOutputStream out, int segmentSize) {
+    if (segmentSize < 0) {
+      throw new IllegalArgumentException("segmentSize < 0: " + segmentSize);
+    }
     this.out = out;
+    this.segmentSize = segmentSize;
+    if (segmentSize == 0) {
+      threadSegments = null;
+      segments = null;
+    } else {
+      threadSegments = new ConcurrentHashMap<>();
+      segments = new ConcurrentLinkedQueue<>();
+    }
+  }
+
+  public ThreadSafeServletOutputStream(ServletOutputStream out) {
+    this(out, 0);
+  }
+
+  /**
+   * Gets the segment of the current thread, creating it on first write.  Only called in segment mode.
+   */
+  private Segment getSegment() {
+    Thread thread = Thread.currentThread();
+    Segment s = threadSegments.get(thread);
+    if (s == null) {
+      s = new Segment(segmentSize);
+      // Only the current thread adds its own segment
+      threadSegments.put(thread, s);
+      segments.add(s);
+    }
+    return s;
+  }
+
+  /**
+   * Writes and empties a segment.  Both the segment lock and the lock of the wrapped stream must be held.
+   */
+  private void writeBuffered(Segment s) throws IOException {
+    if (s.count > 0) {
+      out.write(s.buf, 0, s.count);
+      s.count = 0;
+    }
+  }
+
+  /**
+   * Writes and empties a segment.  The segment lock must be held.
+   */
+  private void writeSegment(Segment s) throws IOException {
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
+      writeBuffered(s);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hands off the segment of the current thread, if any, to the wrapped stream without flushing the wrapped
+   * stream.  A thread should call this once done writing, which also forgets its segment.  A later write by the
+   * thread starts a new segment.
+   */
+  public void writeSegment() throws IOException {
+    if (threadSegments != null) {
+      Segment s = threadSegments.remove(Thread.currentThread());
+      if (s != null) {
+        try {
+          s.lock.lock();
+          try {
+            writeSegment(s);
+          } finally {
+            s.lock.unlock();
+          }
+        } finally {
+          segments.remove(s);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands off the segments of all threads, if any, to the wrapped stream without flushing the wrapped stream.
+   * The bytes of a thread still writing are written up to the end of its last write.
+   */
+  void writeSegments() throws IOException {
+    if (segments != null) {
+      for (Segment s : segments) {
+        s.lock.lock();
+        try {
+          writeSegment(s);
+        } finally {
+          s.lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Discards the bytes in the segments of all threads, if any, such as when the response buffer is reset.
+   */
+  void discardSegments() {
+    if (segments != null) {
+      for (Segment s : segments) {
+        s.lock.lock();
+        try {
+          s.count = 0;
+        } finally {
+          s.lock.unlock();
+        }
+      }
+    }
   }
 
   @Override
   public void write(int b) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      Segment s = getSegment();
+      s.lock.lock();
+      try {
+        if (s.count == s.buf.length) {
+          writeSegment(s);
+        }
+        s.buf[s.count++] = (byte) b;
+      } finally {
+        s.lock.unlock();
+      }
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.write(b);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void write(byte[] b) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      write(b, 0, b.length);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.write(b);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      Segment s = getSegment();
+      s.lock.lock();
+      try {
+        if (s.count + len > s.buf.length) {
+          LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+          try {
+            writeBuffered(s);
+            if (len >= s.buf.length) {
+              // Too large for the segment, written along with the segment
+              out.write(b, off, len);
+              return;
+            }
+          } finally {
+            lock.unlock();
+          }
+        }
+        System.arraycopy(b, off, s.buf, s.count, len);
+        s.count += len;
+      } finally {
+        s.lock.unlock();
+      }
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.write(b, off, len);
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In segment mode, the segments of all threads are written first.</p>
+   */
   @Override
   public void flush() throws IOException {
-    synchronized (lock) {
+    writeSegments();
+    LockMetrics.OUTPUT_STREAM_FLUSH.lock(lock);
+    try {
       out.flush();
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In segment mode, the segments of all threads are written first, then forgotten.</p>
+   */
   @Override
   public void close() throws IOException {
-    synchronized (lock) {
+    try {
+      writeSegments();
+    } finally {
+      if (threadSegments != null) {
+        threadSegments.clear();
+        segments.clear();
+      }
+    }
+    LockMetrics.OUTPUT_STREAM_FLUSH.lock(lock);
+    try {
       out.close();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(String s) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(s);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(s);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(boolean b) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(b);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(b);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(char c) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(c);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(c);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(int i) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(i);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(i);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(long l) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(l);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(l);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(float f) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(f);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(f);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void print(double d) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.print(d);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.print(d);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println() throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println();
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(String s) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(s);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(s);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(boolean b) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(b);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(b);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(char c) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(c);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(c);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(int i) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(i);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(i);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(long l) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(l);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(l);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(float f) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(f);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(f);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void println(double d) throws IOException {
-    synchronized (lock) {
+    if (threadSegments != null) {
+      super.println(d);
+      return;
+    }
+    LockMetrics.OUTPUT_STREAM_WRITE.lock(lock);
+    try {
       out.println(d);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean isReady() {
-    synchronized (lock) {
+    LockMetrics.OUTPUT_STREAM_STATE.lock(lock);
+    try {
       return out.isReady();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setWriteListener(WriteListener wl) {
-    synchronized (lock) {
+    LockMetrics.OUTPUT_STREAM_STATE.lock(lock);
+    try {
       out.setWriteListener(wl);
+    } finally {
+      lock.unlock();
     }
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -32,6 +32,11 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
@@ -41,85 +46,204 @@ import javax.servlet.ServletRequestWrapper;
 import javax.servlet.ServletResponse;
 
 /**
- * Synchronizes access to the wrapped request.
+ * Synchronizes access to the wrapped request.  Reads share a read lock, so that concurrent subrequests
+ * read in parallel, while changes take an exclusive write lock.
+ *
+ * <p>Optionally, attributes are held in a {@link ConcurrentHashMap} owned by this wrapper, so that
+ * concurrent subrequests publishing or reading attributes do not contend for the lock.  In this mode, attributes
+ * set or removed through this wrapper are not passed along to the wrapped request.</p>
  */
 public class ThreadSafeServletRequest extends ServletRequestWrapper {
 
-  protected static class Lock {
+  protected static class Lock extends ReentrantReadWriteLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
+  /**
+   * The lock of this wrapper.  Subclasses must acquire {@link #readLock} or {@link #writeLock}:
+   * {@code synchronized (lock)} only takes the monitor of this object, which does not exclude the access of
+   * this wrapper.
+   */
   protected final Lock lock = new Lock();
 
-  public ThreadSafeServletRequest(ServletRequest req) {
+  /**
+   * Shared by reads of the wrapped request, so that concurrent subrequests read in parallel.
+   */
+  protected final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+
+  /**
+   * Exclusive for changes to the wrapped request, including reads that change its state, such as
+   * reading the body or getting a session.
+   */
+  protected final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+
+  private final AtomicBoolean parametersParsed = new AtomicBoolean();
+  private final AtomicBoolean localesParsed = new AtomicBoolean();
+
+  /**
+   * The attributes owned by this wrapper or {@code null} when attributes are read and written through
+   * to the wrapped request.  Only replaced as a whole, by {@link #setRequest(javax.servlet.ServletRequest)}.
+   */
+  private volatile ConcurrentMap<String, Object> attributes;
+
+  /**
+   * @param concurrentAttributes  When {@code true}, the attributes of the wrapped request are copied into a
+   *                              {@link ConcurrentHashMap} owned by this wrapper, so that attributes are
+   *                              accessed without locking and {@link #getAttributeNames()} is weakly consistent.
+   *                              Changes to attributes are not passed along to the wrapped request, and changes
+   *                              to the attributes of the wrapped request are not seen.  Replacing the wrapped
+   *                              request by {@link #setRequest(javax.servlet.ServletRequest)} copies its
+   *                              attributes again, discarding any changes made through this wrapper.
+   */
+  public ThreadSafeServletRequest(ServletRequest req, boolean concurrentAttributes) {
     super(req);
+    attributes = concurrentAttributes ? new ConcurrentHashMap<>(ServletSubRequest.getAllAttributes(req)) : null;
+  }
+
+  public ThreadSafeServletRequest(ServletRequest req) {
+    this(req, false);
+  }
+
+  /**
+   * Reads from the wrapped request, where the first read may lazily initialize state in the wrapped request,
+   * such as parsing parameters.  The write lock is held until a first read has completed, after which reads
+   * share the read lock.
+   *
+   * @param metrics  The method group to record the acquisition to
+   * @param initialized  Set once a first read has completed
+   */
+  protected <T> T lazyRead(LockMetrics metrics, AtomicBoolean initialized, Supplier<T> read) {
+    if (initialized.get()) {
+      metrics.lock(readLock);
+      try {
+        return read.get();
+      } finally {
+        readLock.unlock();
+      }
+    }
+    metrics.lock(writeLock);
+    try {
+      T result = read.get();
+      initialized.set(true);
+      return result;
+    } finally {
+      writeLock.unlock();
+    }
   }
 
   @Override
   public ServletRequest getRequest() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getRequest();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public void setRequest(ServletRequest request) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       super.setRequest(request);
+      parametersParsed.set(false);
+      localesParsed.set(false);
+      if (attributes != null) {
+        // Published by a single write, so readers never see the attributes partially copied
+        attributes = new ConcurrentHashMap<>(ServletSubRequest.getAllAttributes(request));
+      }
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public Object getAttribute(String name) {
-    synchronized (lock) {
+    ConcurrentMap<String, Object> a = attributes;
+    if (a != null) {
+      return a.get(name);
+    }
+    LockMetrics.REQUEST_ATTRIBUTES.lock(readLock);
+    try {
       return super.getAttribute(name);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public Enumeration<String> getAttributeNames() {
     List<String> attributeNames = new ArrayList<>();
-    synchronized (lock) {
+    ConcurrentMap<String, Object> a = attributes;
+    if (a != null) {
+      // Weakly consistent
+      for (String attrName : a.keySet()) {
+        if (!ServletSubRequest.hiddenAttributeNames.contains(attrName)) {
+          attributeNames.add(attrName);
+        }
+      }
+      return Collections.enumeration(attributeNames);
+    }
+    LockMetrics.REQUEST_ATTRIBUTES.lock(readLock);
+    try {
       Enumeration<String> e = super.getAttributeNames();
       while (e.hasMoreElements()) {
         attributeNames.add(e.nextElement());
       }
+    } finally {
+      readLock.unlock();
     }
     return Collections.enumeration(attributeNames);
   }
 
   @Override
   public String getCharacterEncoding() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(readLock);
+    try {
       return super.getCharacterEncoding();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public void setCharacterEncoding(String enc) throws UnsupportedEncodingException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(writeLock);
+    try {
       super.setCharacterEncoding(enc);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public int getContentLength() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(readLock);
+    try {
       return super.getContentLength();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public long getContentLengthLong() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(readLock);
+    try {
       return super.getContentLengthLong();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getContentType() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(readLock);
+    try {
       return super.getContentType();
+    } finally {
+      readLock.unlock();
     }
   }
 
@@ -127,231 +251,353 @@ public class ThreadSafeServletRequest extends ServletRequestWrapper {
 
   @Override
   public ThreadSafeServletInputStream getInputStream() throws IOException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(writeLock);
+    try {
       if (in == null) {
         in = new ThreadSafeServletInputStream(super.getInputStream());
       }
       return in;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Broadcasts the body of the wrapped request, so that each concurrent subrequest reads the entire body through
+   * its own {@linkplain ThreadSafeServletInputStream#subscribe() subscription} without the body being held in
+   * memory.  Subsequent calls return the same stream.
+   *
+   * @param chunkSize  The number of bytes read from the wrapped stream at a time
+   * @param maxChunks  The maximum number of chunks held for slower subscribers
+   *
+   * @throws IllegalStateException when the input stream has already been obtained without broadcasting
+   *
+   * @see  ThreadSafeServletInputStream#ThreadSafeServletInputStream(javax.servlet.ServletInputStream, int, int)
+   */
+  public ThreadSafeServletInputStream broadcastInputStream(int chunkSize, int maxChunks) throws IOException {
+    LockMetrics.REQUEST_BODY.lock(writeLock);
+    try {
+      if (in == null) {
+        in = new ThreadSafeServletInputStream(super.getInputStream(), chunkSize, maxChunks);
+      } else if (!in.isBroadcast()) {
+        throw new IllegalStateException("Input stream already obtained without broadcasting");
+      }
+      return in;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the stream broadcasting the body of the wrapped request.
+   *
+   * @return  the stream or {@code null} when the body is not broadcast
+   *
+   * @see  #broadcastInputStream(int, int)
+   */
+  public ThreadSafeServletInputStream getBroadcastInputStream() {
+    LockMetrics.REQUEST_BODY.lock(readLock);
+    try {
+      return (in != null && in.isBroadcast()) ? in : null;
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getParameter(String name) {
-    synchronized (lock) {
-      return super.getParameter(name);
-    }
+    return lazyRead(LockMetrics.REQUEST_PARAMETERS, parametersParsed, () -> super.getParameter(name));
   }
 
   @Override
   public Map<String, String[]> getParameterMap() {
-    synchronized (lock) {
-      return Collections.synchronizedMap(super.getParameterMap());
-    }
+    return lazyRead(LockMetrics.REQUEST_PARAMETERS, parametersParsed, () -> Collections.synchronizedMap(super.getParameterMap()));
   }
 
   @Override
   public Enumeration<String> getParameterNames() {
-    synchronized (lock) {
-      return super.getParameterNames();
-    }
+    return lazyRead(LockMetrics.REQUEST_PARAMETERS, parametersParsed, () -> super.getParameterNames());
   }
 
   @Override
   public String[] getParameterValues(String name) {
-    synchronized (lock) {
-      return super.getParameterValues(name);
-    }
+    return lazyRead(LockMetrics.REQUEST_PARAMETERS, parametersParsed, () -> super.getParameterValues(name));
   }
 
   @Override
   public String getProtocol() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getProtocol();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getScheme() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getScheme();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public String getServerName() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getServerName();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public int getServerPort() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getServerPort();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public BufferedReader getReader() throws IOException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_BODY.lock(writeLock);
+    try {
       // Implementation of BufferedReader looks to be thread safe, but that is not in it's documented specification
       return super.getReader();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String getRemoteAddr() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getRemoteAddr();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String getRemoteHost() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getRemoteHost();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public void setAttribute(String name, Object o) {
-    synchronized (lock) {
+    ConcurrentMap<String, Object> a = attributes;
+    if (a != null) {
+      if (o == null) {
+        a.remove(name);
+      } else {
+        a.put(name, o);
+      }
+      return;
+    }
+    LockMetrics.REQUEST_ATTRIBUTES.lock(writeLock);
+    try {
       super.setAttribute(name, o);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public void removeAttribute(String name) {
-    synchronized (lock) {
+    ConcurrentMap<String, Object> a = attributes;
+    if (a != null) {
+      a.remove(name);
+      return;
+    }
+    LockMetrics.REQUEST_ATTRIBUTES.lock(writeLock);
+    try {
       super.removeAttribute(name);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public Locale getLocale() {
-    synchronized (lock) {
-      return super.getLocale();
-    }
+    return lazyRead(LockMetrics.REQUEST_HEADERS, localesParsed, () -> super.getLocale());
   }
 
   @Override
   public Enumeration<Locale> getLocales() {
-    synchronized (lock) {
-      return super.getLocales();
-    }
+    return lazyRead(LockMetrics.REQUEST_HEADERS, localesParsed, () -> super.getLocales());
   }
 
   @Override
   public boolean isSecure() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.isSecure();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public RequestDispatcher getRequestDispatcher(String path) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getRequestDispatcher(path);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public String getRealPath(String path) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getRealPath(path);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public int getRemotePort() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getRemotePort();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String getLocalName() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getLocalName();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public String getLocalAddr() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getLocalAddr();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public int getLocalPort() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(writeLock);
+    try {
       return super.getLocalPort();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public ServletContext getServletContext() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getServletContext();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public AsyncContext startAsync() throws IllegalStateException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(writeLock);
+    try {
       return super.startAsync();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(writeLock);
+    try {
       return super.startAsync(servletRequest, servletResponse);
+    } finally {
+      writeLock.unlock();
     }
   }
 
   @Override
   public boolean isAsyncStarted() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(readLock);
+    try {
       return super.isAsyncStarted();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean isAsyncSupported() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(readLock);
+    try {
       return super.isAsyncSupported();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public AsyncContext getAsyncContext() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_ASYNC.lock(readLock);
+    try {
       return super.getAsyncContext();
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public boolean isWrapperFor(ServletRequest wrapped) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.isWrapperFor(wrapped);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   @SuppressWarnings("rawtypes")
   public boolean isWrapperFor(Class wrappedType) {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.isWrapperFor(wrappedType);
+    } finally {
+      readLock.unlock();
     }
   }
 
   @Override
   public DispatcherType getDispatcherType() {
-    synchronized (lock) {
+    LockMetrics.REQUEST_PROPERTIES.lock(readLock);
+    try {
       return super.getDispatcherType();
+    } finally {
+      readLock.unlock();
     }
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -26,6 +26,7 @@ package com.aoapps.servlet.subrequest;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.ServletResponse;
 import javax.servlet.ServletResponseWrapper;
 
@@ -34,41 +35,78 @@ import javax.servlet.ServletResponseWrapper;
  */
 public class ThreadSafeServletResponse extends ServletResponseWrapper {
 
-  protected static class Lock {
+  protected static class Lock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
+  /**
+   * The lock of this wrapper.  Subclasses must acquire it by {@link Lock#lock()}:
+   * {@code synchronized (lock)} only takes the monitor of this object, which does not exclude the access of
+   * this wrapper.
+   */
   protected final Lock lock = new Lock();
 
-  public ThreadSafeServletResponse(ServletResponse resp) {
+  private final int outputSegmentSize;
+
+  /**
+   * @param outputSegmentSize  When positive, each thread writing to the {@linkplain #getOutputStream() output stream}
+   *                           buffers up to this many bytes before writing them to the wrapped stream.  The buffered
+   *                           bytes of all threads are written by {@link #flushBuffer()}, which must be called once
+   *                           all threads are done writing, and discarded by {@link #reset()} and
+   *                           {@link #resetBuffer()}.
+   *
+   * @see  ThreadSafeServletOutputStream#ThreadSafeServletOutputStream(javax.servlet.ServletOutputStream, int)
+   */
+  public ThreadSafeServletResponse(ServletResponse resp, int outputSegmentSize) {
     super(resp);
+    if (outputSegmentSize < 0) {
+      throw new IllegalArgumentException("outputSegmentSize < 0: " + outputSegmentSize);
+    }
+    this.outputSegmentSize = outputSegmentSize;
+  }
+
+  public ThreadSafeServletResponse(ServletResponse resp) {
+    this(resp, 0);
   }
 
   @Override
   public ServletResponse getResponse() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return super.getResponse();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setResponse(ServletResponse response) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       super.setResponse(response);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setCharacterEncoding(String charset) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       super.setCharacterEncoding(charset);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getCharacterEncoding() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return super.getCharacterEncoding();
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -76,118 +114,175 @@ public class ThreadSafeServletResponse extends ServletResponseWrapper {
 
   @Override
   public ThreadSafeServletOutputStream getOutputStream() throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
       if (out == null) {
-        out = new ThreadSafeServletOutputStream(super.getOutputStream());
+        out = new ThreadSafeServletOutputStream(super.getOutputStream(), outputSegmentSize);
       }
       return out;
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public PrintWriter getWriter() throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
       // Implementation of PrintWriter looks to be thread safe, but that is not in it's documented specification
       return super.getWriter();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setContentLength(int len) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       super.setContentLength(len);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setContentLengthLong(long len) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       super.setContentLengthLong(len);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setContentType(String type) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       super.setContentType(type);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getContentType() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return super.getContentType();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setBufferSize(int size) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
       super.setBufferSize(size);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public int getBufferSize() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
       return super.getBufferSize();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void flushBuffer() throws IOException {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
+      if (out != null) {
+        out.writeSegments();
+      }
       super.flushBuffer();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean isCommitted() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
       return super.isCommitted();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void reset() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
+      if (out != null) {
+        out.discardSegments();
+      }
       super.reset();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void resetBuffer() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_OUTPUT.lock(lock);
+    try {
+      if (out != null) {
+        out.discardSegments();
+      }
       super.resetBuffer();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setLocale(Locale loc) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       super.setLocale(loc);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public Locale getLocale() {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_HEADERS.lock(lock);
+    try {
       return super.getLocale();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean isWrapperFor(ServletResponse wrapped) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return super.isWrapperFor(wrapped);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   @SuppressWarnings("rawtypes")
   public boolean isWrapperFor(Class wrappedType) {
-    synchronized (lock) {
+    LockMetrics.RESPONSE_PROPERTIES.lock(lock);
+    try {
       return super.isWrapperFor(wrappedType);
+    } finally {
+      lock.unlock();
     }
   }
 }
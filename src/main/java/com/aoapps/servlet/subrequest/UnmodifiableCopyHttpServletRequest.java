@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,6 +23,7 @@
 
 package com.aoapps.servlet.subrequest;
 
+import com.aoapps.collections.AoCollections;
 import com.aoapps.collections.MinimalList;
 import com.aoapps.collections.MinimalMap;
 import java.io.IOException;
@@ -33,6 +34,8 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -44,6 +47,36 @@ import org.apache.commons.lang3.NotImplementedException;
 
 public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletRequest implements HttpServletRequest {
 
+  /**
+   * Copies the cookies of the wrapped request.
+   *
+   * @return  the copy or {@link #NO_COOKIES} when the request has no cookies
+   */
+  private static Cookie[] copyCookies(HttpServletRequest req) {
+    Cookie[] cookies = copyCookies(req.getCookies());
+    return (cookies == null) ? NO_COOKIES : cookies;
+  }
+
+  /**
+   * Copies the values of a single header.
+   *
+   * @return  the values or an empty list when the header is not present
+   */
+  private static List<String> copyHeader(HttpServletRequest req, String name) {
+    List<String> values = null;
+    Enumeration<String> headerValues = req.getHeaders(name);
+    // May be null when the container does not allow access to headers
+    if (headerValues != null) {
+      while (headerValues.hasMoreElements()) {
+        values = MinimalList.add(
+            values,
+            headerValues.nextElement()
+        );
+      }
+    }
+    return MinimalList.unmodifiable(values);
+  }
+
   private static Cookie[] copyCookies(Cookie[] cookies) {
     if (cookies == null) {
       return null;
@@ -57,9 +90,25 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
 
   private final HttpServletRequest req;
 
+  /**
+   * Marks that the wrapped request has no cookies, once copied.
+   */
+  private static final Cookie[] NO_COOKIES = new Cookie[0];
+
   private final String authType;
-  private final Cookie[] cookies;
+  private volatile Cookie[] cookies;
+
+  /**
+   * All headers, or {@code null} in lazy mode.
+   */
   private final Map<String, List<String>> headers;
+
+  /**
+   * The headers copied so far in lazy mode, with an empty list for headers that are not present.
+   */
+  private final ConcurrentMap<String, List<String>> lazyHeaders;
+
+  private volatile List<String> headerNames;
   private final String method;
   private final String pathInfo;
   private final String pathTranslated;
@@ -75,30 +124,39 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   private final boolean requestedSessionIdFromURL;
 
   public UnmodifiableCopyHttpServletRequest(HttpServletRequest req) {
-    super(req);
+    this(req, false);
+  }
+
+  /**
+   * @param lazy  When {@code true}, the attributes, parameters, locales, and cookies are each copied on
+   *              first access, and each header is copied when first accessed by name.
+   */
+  public UnmodifiableCopyHttpServletRequest(HttpServletRequest req, boolean lazy) {
+    super(req, lazy);
     this.req = req;
 
     authType = req.getAuthType();
-    cookies = copyCookies(req.getCookies());
-    Map<String, List<String>> newHeaders = null;
-    Enumeration<String> headerNames = req.getHeaderNames();
-    while (headerNames.hasMoreElements()) {
-      String name = headerNames.nextElement();
-      List<String> values = null;
-      Enumeration<String> headerValues = req.getHeaders(name);
-      while (headerValues.hasMoreElements()) {
-        values = MinimalList.add(
-            values,
-            headerValues.nextElement()
+    if (lazy) {
+      headers = null;
+      lazyHeaders = new ConcurrentHashMap<>();
+    } else {
+      cookies = copyCookies(req);
+      Map<String, List<String>> newHeaders = null;
+      List<String> newHeaderNames = new ArrayList<>();
+      Enumeration<String> e = req.getHeaderNames();
+      while (e.hasMoreElements()) {
+        String name = e.nextElement();
+        newHeaderNames.add(name);
+        newHeaders = MinimalMap.put(
+            newHeaders,
+            name,
+            copyHeader(req, name)
         );
       }
-      newHeaders = MinimalMap.put(
-          newHeaders,
-          name,
-          MinimalList.unmodifiable(values)
-      );
+      headers = MinimalMap.unmodifiable(newHeaders);
+      lazyHeaders = null;
+      headerNames = AoCollections.optimalUnmodifiableList(newHeaderNames);
     }
-    headers = MinimalMap.unmodifiable(newHeaders);
     method = req.getMethod();
     pathInfo = req.getPathInfo();
     pathTranslated = req.getPathTranslated();
@@ -120,30 +178,65 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   }
 
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: cookies is volatile
   public Cookie[] getCookies() {
-    return copyCookies(cookies);
+    if (cookies == null) {
+      lock.lock();
+      try {
+        if (cookies == null) {
+          cookies = copyCookies(req);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return (cookies == NO_COOKIES) ? null : copyCookies(cookies);
+  }
+
+  /**
+   * Gets the values of a header, copying it on first access in lazy mode.
+   *
+   * @return  the values or {@code null} when the header is not present
+   */
+  private List<String> getHeaderValues(String name) {
+    if (headers != null) {
+      return headers.get(name);
+    }
+    List<String> values = lazyHeaders.get(name);
+    if (values == null) {
+      lock.lock();
+      try {
+        values = lazyHeaders.computeIfAbsent(name, n -> copyHeader(req, n));
+      } finally {
+        lock.unlock();
+      }
+    }
+    return values.isEmpty() ? null : values;
   }
 
   @Override
   public long getDateHeader(String name) {
-    if (!headers.containsKey(name)) {
+    if (getHeaderValues(name) == null) {
       return -1;
     }
     // TODO: cache here?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getDateHeader(name);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String getHeader(String name) {
-    List<String> values = headers.get(name);
+    List<String> values = getHeaderValues(name);
     return values == null ? null : values.get(0);
   }
 
   @Override
   public Enumeration<String> getHeaders(String name) {
-    List<String> values = headers.get(name);
+    List<String> values = getHeaderValues(name);
     if (values == null) {
       return Collections.emptyEnumeration();
     }
@@ -151,8 +244,24 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   }
 
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: headerNames is volatile
   public Enumeration<String> getHeaderNames() {
-    return Collections.enumeration(headers.keySet());
+    if (headerNames == null) {
+      lock.lock();
+      try {
+        if (headerNames == null) {
+          List<String> newHeaderNames = new ArrayList<>();
+          Enumeration<String> e = req.getHeaderNames();
+          while (e.hasMoreElements()) {
+            newHeaderNames.add(e.nextElement());
+          }
+          headerNames = AoCollections.optimalUnmodifiableList(newHeaderNames);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return Collections.enumeration(headerNames);
   }
 
   @Override
@@ -194,8 +303,11 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   @Override
   public boolean isUserInRole(String role) {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.isUserInRole(role);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -217,8 +329,11 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   @Override
   public StringBuffer getRequestURL() {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getRequestURL();
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -230,24 +345,33 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
   @Override
   public HttpSession getSession(boolean create) {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getSession(create);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public HttpSession getSession() {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getSession();
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String changeSessionId() {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.changeSessionId();
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -287,33 +411,53 @@ public class UnmodifiableCopyHttpServletRequest extends UnmodifiableCopyServletR
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * The parts, wrapped once on first access.
+   */
+  private volatile List<Part> parts;
+
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: parts is volatile
   public Collection<Part> getParts() throws IOException, ServletException {
-    // TODO: Cache?
-    synchronized (lock) {
-      Collection<Part> parts = req.getParts();
-      List<Part> wrapped = new ArrayList<>(parts.size());
-      for (Part part : parts) {
-        wrapped.add(new ThreadSafePart(part, lock));
+    List<Part> p = parts;
+    if (p == null) {
+      lock.lock();
+      try {
+        p = parts;
+        if (p == null) {
+          Collection<Part> reqParts = req.getParts();
+          List<Part> wrapped = new ArrayList<>(reqParts.size());
+          for (Part part : reqParts) {
+            wrapped.add(new ThreadSafePart(part, lock));
+          }
+          p = AoCollections.optimalUnmodifiableList(wrapped);
+          parts = p;
+        }
+      } finally {
+        lock.unlock();
       }
-      return wrapped;
     }
+    return p;
   }
 
   @Override
   public Part getPart(String name) throws IOException, ServletException {
-    // TODO: Cache?
-    synchronized (lock) {
-      Part part = req.getPart(name);
-      return part == null ? null : new ThreadSafePart(part, lock);
+    for (Part part : getParts()) {
+      if (part.getName().equals(name)) {
+        return part;
+      }
     }
+    return null;
   }
 
   @Override
   public <T extends HttpUpgradeHandler> T upgrade(Class<T> type) throws IOException, ServletException {
     // TODO: Cache?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.upgrade(type);
+    } finally {
+      lock.unlock();
     }
   }
 }
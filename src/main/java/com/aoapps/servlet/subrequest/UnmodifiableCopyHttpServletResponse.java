@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -68,31 +68,43 @@ public class UnmodifiableCopyHttpServletResponse extends UnmodifiableCopyServlet
 
   @Override
   public String encodeURL(String url) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return resp.encodeURL(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public String encodeRedirectURL(String url) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return resp.encodeRedirectURL(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public String encodeUrl(String url) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return resp.encodeUrl(url);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Deprecated(forRemoval = false)
   @Override
   public String encodeRedirectUrl(String url) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return resp.encodeRedirectUrl(url);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
@@ -36,6 +37,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
@@ -43,7 +45,6 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
-import org.apache.commons.lang3.NotImplementedException;
 
 /**
  * Achieves thread safety by making copies of most fields during constructor and being unmodifiable.
@@ -52,31 +53,40 @@ import org.apache.commons.lang3.NotImplementedException;
  * <p>Some methods have to read-through to the wrapped request, so it should not change
  * state while this wrapper is in use.
  * Synchronizes access to the wrapped request.</p>
+ *
+ * <p>In lazy mode, the attributes, parameters, and locales are each copied on first access instead of
+ * during constructor, so that taking a copy costs little when only a few properties are read.</p>
  */
 public class UnmodifiableCopyServletRequest implements ServletRequest {
 
-  protected static class Lock {
+  protected static class Lock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
+  /**
+   * The lock of this wrapper.  Subclasses must acquire it by {@link Lock#lock()}:
+   * {@code synchronized (lock)} only takes the monitor of this object, which does not exclude the access of
+   * this wrapper.
+   */
   protected final Lock lock = new Lock();
 
   private final ServletRequest req;
 
-  private final Map<String, Object> attributes;
+  private volatile Map<String, Object> attributes;
   private final String characterEncoding;
   private final int contentLength;
   private final long contentLengthLong;
   private final String contentType;
-  private final Map<String, String[]> parameterMap;
+  private volatile Map<String, String[]> parameterMap;
   private final String protocol;
   private final String scheme;
   private final String serverName;
   private final int serverPort;
   private final String remoteAddr;
   private volatile String remoteHost;
-  private final Locale locale;
-  private final List<Locale> locales;
+  private volatile Locale locale;
+  private volatile List<Locale> locales;
   private final boolean secure;
   private final int remotePort;
   private volatile String localName;
@@ -86,25 +96,30 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   private final DispatcherType dispatcherType;
 
   public UnmodifiableCopyServletRequest(ServletRequest req) {
+    this(req, false);
+  }
+
+  /**
+   * @param lazy  When {@code true}, the attributes, parameters, and locales are each copied on first access.
+   *              Since the parameters are only parsed when first accessed, the body is not read unless needed.
+   */
+  public UnmodifiableCopyServletRequest(ServletRequest req, boolean lazy) {
     this.req = req;
-    attributes = ServletSubRequest.getAllAttributes(req);
+    if (!lazy) {
+      attributes = copyAttributes(req);
+      parameterMap = new LinkedHashMap<>(req.getParameterMap());
+      locale = req.getLocale();
+      locales = copyLocales(req);
+    }
     characterEncoding = req.getCharacterEncoding();
     contentLength = req.getContentLength();
     contentLengthLong = req.getContentLengthLong();
     contentType = req.getContentType();
-    parameterMap = new LinkedHashMap<>(req.getParameterMap());
     protocol = req.getProtocol();
     scheme = req.getScheme();
     serverName = req.getServerName();
     serverPort = req.getServerPort();
     remoteAddr = req.getRemoteAddr();
-    locale = req.getLocale();
-    List<Locale> newLocales = new ArrayList<>();
-    Enumeration<Locale> e = req.getLocales();
-    while (e.hasMoreElements()) {
-      newLocales.add(e.nextElement());
-    }
-    locales = AoCollections.optimalUnmodifiableList(newLocales);
     secure = req.isSecure();
     remotePort = req.getRemotePort();
     localAddr = req.getLocalAddr();
@@ -113,14 +128,99 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
     dispatcherType = req.getDispatcherType();
   }
 
+  private static List<Locale> copyLocales(ServletRequest req) {
+    List<Locale> newLocales = new ArrayList<>();
+    Enumeration<Locale> e = req.getLocales();
+    while (e.hasMoreElements()) {
+      newLocales.add(e.nextElement());
+    }
+    return AoCollections.optimalUnmodifiableList(newLocales);
+  }
+
+  /**
+   * Copies the attributes of the given request into an unmodifiable map, which is only ever replaced, never
+   * changed, so that readers of a previous copy are not affected.
+   */
+  private static Map<String, Object> copyAttributes(ServletRequest req) {
+    return Collections.unmodifiableMap(ServletSubRequest.getAllAttributes(req));
+  }
+
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: attributes is volatile
+  private Map<String, Object> getAttributes() {
+    Map<String, Object> a = attributes;
+    if (a == null) {
+      lock.lock();
+      try {
+        a = attributes;
+        if (a == null) {
+          a = copyAttributes(req);
+          attributes = a;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return a;
+  }
+
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: parameterMap is volatile
+  private Map<String, String[]> getParameters() {
+    Map<String, String[]> p = parameterMap;
+    if (p == null) {
+      lock.lock();
+      try {
+        p = parameterMap;
+        if (p == null) {
+          p = new LinkedHashMap<>(req.getParameterMap());
+          parameterMap = p;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Checks if this is a copy of the given request.
+   */
+  boolean isCopyOf(ServletRequest request) {
+    return req == request;
+  }
+
+  /**
+   * Copies the attributes again, so that a copy may be reused after the attributes of the wrapped request have
+   * changed.  The new copy replaces the previous by a single volatile write: threads still using this wrapper
+   * see either copy in full, and never read-through to the wrapped request.
+   *
+   * <p>Must be called by the thread that owns the wrapped request.</p>
+   */
+  void refreshAttributes() {
+    attributes = copyAttributes(req);
+  }
+
+  /**
+   * Removes the given attributes from the copy, such as those only meaningful to the wrapped request.
+   */
+  void removeAttributes(Collection<String> names) {
+    lock.lock();
+    try {
+      Map<String, Object> newAttributes = new LinkedHashMap<>(getAttributes());
+      newAttributes.keySet().removeAll(names);
+      attributes = Collections.unmodifiableMap(newAttributes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public Object getAttribute(String name) {
-    return attributes.get(name);
+    return getAttributes().get(name);
   }
 
   @Override
   public Enumeration<String> getAttributeNames() {
-    Set<String> attrNames = attributes.keySet();
+    Set<String> attrNames = getAttributes().keySet();
     List<String> nonHiddenAttributeNames = new ArrayList<>(attrNames.size());
     for (String attrName : attrNames) {
       if (!ServletSubRequest.hiddenAttributeNames.contains(attrName)) {
@@ -157,28 +257,32 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
 
   @Override
   public ServletInputStream getInputStream() throws IOException {
-    throw new NotImplementedException("TODO");
+    SubRequestBody body = SubRequestBody.get(this);
+    if (body == null) {
+      throw new IllegalStateException("Not allowed on concurrent request");
+    }
+    return body.newInputStream();
   }
 
   @Override
   public String getParameter(String name) {
-    String[] values = parameterMap.get(name);
+    String[] values = getParameters().get(name);
     return values == null ? null : values[0];
   }
 
   @Override
   public Map<String, String[]> getParameterMap() {
-    return new LinkedHashMap<>(parameterMap);
+    return new LinkedHashMap<>(getParameters());
   }
 
   @Override
   public Enumeration<String> getParameterNames() {
-    return Collections.enumeration(parameterMap.keySet());
+    return Collections.enumeration(getParameters().keySet());
   }
 
   @Override
   public String[] getParameterValues(String name) {
-    String[] values = parameterMap.get(name);
+    String[] values = getParameters().get(name);
     if (values == null) {
       return null;
     }
@@ -207,7 +311,11 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
 
   @Override
   public BufferedReader getReader() throws IOException {
-    throw new NotImplementedException("TODO");
+    SubRequestBody body = SubRequestBody.get(this);
+    if (body == null) {
+      throw new IllegalStateException("Not allowed on concurrent request");
+    }
+    return body.newReader(getCharacterEncoding());
   }
 
   @Override
@@ -219,10 +327,13 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   @SuppressWarnings("DoubleCheckedLocking") // Safe: remoteHost is volatile
   public String getRemoteHost() {
     if (remoteHost == null) {
-      synchronized (lock) {
+      lock.lock();
+      try {
         if (remoteHost == null) {
           remoteHost = req.getRemoteHost();
         }
+      } finally {
+        lock.unlock();
       }
     }
     return remoteHost;
@@ -239,12 +350,34 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   }
 
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: locale is volatile
   public Locale getLocale() {
+    if (locale == null) {
+      lock.lock();
+      try {
+        if (locale == null) {
+          locale = req.getLocale();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
     return locale;
   }
 
   @Override
+  @SuppressWarnings("DoubleCheckedLocking") // Safe: locales is volatile
   public Enumeration<Locale> getLocales() {
+    if (locales == null) {
+      lock.lock();
+      try {
+        if (locales == null) {
+          locales = copyLocales(req);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
     return Collections.enumeration(locales);
   }
 
@@ -256,8 +389,11 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   @Override
   public RequestDispatcher getRequestDispatcher(String path) {
     // TODO: Cache here?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getRequestDispatcher(path);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -265,8 +401,11 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   @Override
   public String getRealPath(String path) {
     // TODO: Cache here?
-    synchronized (lock) {
+    lock.lock();
+    try {
       return req.getRealPath(path);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -279,10 +418,13 @@ public class UnmodifiableCopyServletRequest implements ServletRequest {
   @SuppressWarnings("DoubleCheckedLocking") // Safe: localName is volatile
   public String getLocalName() {
     if (localName == null) {
-      synchronized (lock) {
+      lock.lock();
+      try {
         if (localName == null) {
           localName = req.getLocalName();
         }
+      } finally {
+        lock.unlock();
       }
     }
     return localName;
@@ -1,6 +1,6 @@
 /*
  * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
- * Copyright (C) 2016, 2019, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2016, 2019, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -26,6 +26,7 @@ package com.aoapps.servlet.subrequest;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
 
@@ -39,10 +40,16 @@ import javax.servlet.ServletResponse;
  */
 public class UnmodifiableCopyServletResponse implements ServletResponse {
 
-  protected static class Lock {
+  protected static class Lock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
     // Empty lock class to help heap profile
   }
 
+  /**
+   * The lock of this wrapper.  Subclasses must acquire it by {@link Lock#lock()}:
+   * {@code synchronized (lock)} only takes the monitor of this object, which does not exclude the access of
+   * this wrapper.
+   */
   protected final Lock lock = new Lock();
 
   // private final ServletResponse resp;
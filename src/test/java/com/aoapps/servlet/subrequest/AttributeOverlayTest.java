@@ -0,0 +1,130 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.ServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AttributeOverlayTest {
+
+  private Map<String, Object> attributes;
+  private ServletRequest req;
+  private AttributeOverlay overlay;
+
+  @Before
+  public void setUp() {
+    attributes = new LinkedHashMap<>();
+    attributes.put("a", "wrapped-a");
+    attributes.put("b", "wrapped-b");
+    req = (ServletRequest) Proxy.newProxyInstance(
+        ServletRequest.class.getClassLoader(),
+        new Class<?>[]{ServletRequest.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAttribute":
+              return attributes.get((String) args[0]);
+            case "getAttributeNames":
+              return Collections.enumeration(attributes.keySet());
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        }
+    );
+    overlay = new AttributeOverlay();
+  }
+
+  private List<String> getNames(Set<String> hiddenAttributeNames) {
+    return new ArrayList<>(Collections.list(overlay.getNames(req, hiddenAttributeNames)));
+  }
+
+  @Test
+  public void testFallsBackToWrapped() {
+    assertEquals("wrapped-a", overlay.get(req, "a"));
+    assertNull(overlay.get(req, "c"));
+    assertEquals(Arrays.asList("a", "b"), getNames(Collections.emptySet()));
+  }
+
+  @Test
+  public void testSetOverridesWrapped() {
+    Object value = new Object();
+    overlay.set(req, "a", value);
+    assertSame(value, overlay.get(req, "a"));
+    assertEquals("wrapped-a", attributes.get("a"));
+    assertEquals(Arrays.asList("a", "b"), getNames(Collections.emptySet()));
+  }
+
+  @Test
+  public void testRemoveWrappedLeavesTombstone() {
+    overlay.set(req, "a", null);
+    assertNull(overlay.get(req, "a"));
+    assertEquals("wrapped-a", attributes.get("a"));
+    assertEquals(Collections.singletonList("b"), getNames(Collections.emptySet()));
+  }
+
+  @Test
+  public void testSetAfterTombstone() {
+    overlay.set(req, "a", null);
+    overlay.set(req, "a", "changed-a");
+    assertEquals("changed-a", overlay.get(req, "a"));
+    assertEquals(Arrays.asList("a", "b"), getNames(Collections.emptySet()));
+  }
+
+  @Test
+  public void testRemoveAddedOnlyDropsChange() {
+    overlay.set(req, "c", "added-c");
+    assertEquals(Arrays.asList("a", "b", "c"), getNames(Collections.emptySet()));
+    overlay.set(req, "c", null);
+    assertNull(overlay.get(req, "c"));
+    assertEquals(Arrays.asList("a", "b"), getNames(Collections.emptySet()));
+    // No tombstone left behind: appears once set on the wrapped request
+    attributes.put("c", "wrapped-c");
+    assertEquals("wrapped-c", overlay.get(req, "c"));
+  }
+
+  @Test
+  public void testTombstoneHidesLaterWrappedValue() {
+    overlay.set(req, "a", null);
+    attributes.put("a", "wrapped-a2");
+    assertNull(overlay.get(req, "a"));
+    assertEquals(Collections.singletonList("b"), getNames(Collections.emptySet()));
+  }
+
+  @Test
+  public void testHiddenAttributeNames() {
+    overlay.set(req, "c", "added-c");
+    assertEquals(Collections.singletonList("b"), getNames(Set.of("a", "c")));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteCaptureOutputStreamTest {
+
+  private static final long THRESHOLD = 16;
+
+  private static byte[] newBytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    byte[] buff = new byte[7];
+    int read;
+    while ((read = in.read(buff)) != -1) {
+      bout.write(buff, 0, read);
+    }
+    return bout.toByteArray();
+  }
+
+  private TempFileContext tempFileContext;
+
+  @Before
+  public void setUp() {
+    tempFileContext = new TempFileContext();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    tempFileContext.close();
+  }
+
+  @Test
+  public void testInMemory() throws IOException {
+    byte[] bytes = newBytes((int) THRESHOLD);
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, tempFileContext, THRESHOLD);
+    out.write(bytes, 0, bytes.length);
+    ByteResult result = out.getResult();
+    assertFalse(result.isTempFile());
+    assertEquals(bytes.length, result.getLength());
+    assertArrayEquals(bytes, result.toByteArray());
+  }
+
+  @Test
+  public void testInMemoryWithoutTempFileContext() throws IOException {
+    byte[] bytes = newBytes(1000);
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, null, THRESHOLD);
+    out.write(bytes, 0, bytes.length);
+    ByteResult result = out.getResult();
+    assertFalse(result.isTempFile());
+    assertArrayEquals(bytes, result.toByteArray());
+  }
+
+  /**
+   * Single bytes written after the spill are buffered, and all are in the temp file once the result is taken.
+   */
+  @Test
+  public void testSpillsToTempFile() throws IOException {
+    byte[] bytes = newBytes(1000);
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, tempFileContext, THRESHOLD);
+    out.write(bytes, 0, 10);
+    for (int i = 10; i < 100; i++) {
+      out.write(bytes[i]);
+    }
+    out.write(bytes, 100, bytes.length - 100);
+    ByteResult result = out.getResult();
+    assertTrue(result.isTempFile());
+    assertEquals(bytes.length, result.getLength());
+    assertEquals("Flushed to the temp file", bytes.length, result.tempFile.getFile().length());
+    assertArrayEquals(bytes, result.toByteArray());
+    try (InputStream in = result.getInputStream()) {
+      assertArrayEquals(bytes, readFully(in));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteAfterResult() throws IOException {
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, tempFileContext, THRESHOLD);
+    out.write(1);
+    out.getResult();
+    out.write(2);
+  }
+
+  @Test(expected = CancellationException.class)
+  public void testWriteAfterCancel() throws IOException {
+    ServletSubResponse response = new ServletSubResponse(new ServletMocks.Response().response, tempFileContext);
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(response, tempFileContext, THRESHOLD);
+    out.write(newBytes(100), 0, 100);
+    response.cancel();
+    out.write(1);
+  }
+
+  @Test(expected = CancellationException.class)
+  public void testResultAfterCancel() throws IOException {
+    ServletSubResponse response = new ServletSubResponse(new ServletMocks.Response().response, tempFileContext);
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(response, tempFileContext, THRESHOLD);
+    out.write(newBytes(100), 0, 100);
+    response.cancel();
+    out.getResult();
+  }
+
+  /**
+   * The bytes written to a sub response output stream are captured, undecoded, apart from its writer.
+   */
+  @Test
+  public void testSubResponseCapturesBytes() throws IOException {
+    byte[] bytes = newBytes(100);
+    ServletSubResponse response = new ServletSubResponse(new ServletMocks.Response().response, tempFileContext);
+    response.getOutputStream().write(bytes);
+    assertEquals(0, response.getCapturedOut().getLength());
+    assertArrayEquals(bytes, response.getCapturedBytes().toByteArray());
+  }
+}
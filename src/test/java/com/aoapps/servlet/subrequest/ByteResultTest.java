@@ -0,0 +1,136 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.aoapps.tempfiles.TempFile;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteResultTest {
+
+  private static byte[] newBytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    return bytes;
+  }
+
+  private TempFileContext tempFileContext;
+
+  @Before
+  public void setUp() {
+    tempFileContext = new TempFileContext();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    tempFileContext.close();
+  }
+
+  /**
+   * Captures the given bytes, moving them to a temp file when more than the threshold.
+   */
+  private ByteResult capture(byte[] bytes, long tempFileThreshold) throws IOException {
+    ByteCaptureOutputStream out = new ByteCaptureOutputStream(null, tempFileContext, tempFileThreshold);
+    out.write(bytes, 0, bytes.length);
+    return out.getResult();
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    ByteResult empty = ByteResult.getEmpty();
+    assertEquals(0, empty.getLength());
+    assertFalse(empty.isTempFile());
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    empty.writeTo(bout);
+    assertEquals(0, bout.size());
+  }
+
+  @Test
+  public void testInMemoryWriteTo() throws IOException {
+    byte[] bytes = newBytes(1000);
+    ByteResult result = capture(bytes, bytes.length);
+    assertFalse(result.isTempFile());
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    result.writeTo(bout);
+    assertArrayEquals(bytes, bout.toByteArray());
+    bout.reset();
+    result.writeTo(Channels.newChannel(bout));
+    assertArrayEquals(bytes, bout.toByteArray());
+  }
+
+  /**
+   * A stream that is not a channel is written through a channel over the stream, and is not closed.
+   */
+  @Test
+  public void testTempFileWriteToStream() throws IOException {
+    byte[] bytes = newBytes(200_000);
+    ByteResult result = capture(bytes, 16);
+    assertTrue(result.isTempFile());
+    class ClosedOutputStream extends ByteArrayOutputStream {
+      private boolean closed;
+
+      @Override
+      public void close() {
+        closed = true;
+      }
+    }
+    ClosedOutputStream bout = new ClosedOutputStream();
+    result.writeTo(bout);
+    assertArrayEquals(bytes, bout.toByteArray());
+    assertFalse(bout.closed);
+  }
+
+  @Test
+  public void testTempFileWriteToFile() throws IOException {
+    byte[] bytes = newBytes(200_000);
+    ByteResult result = capture(bytes, 16);
+    TempFile copy = tempFileContext.createTempFile("ByteResultTest");
+    try (FileOutputStream out = new FileOutputStream(copy.getFile())) {
+      result.writeTo(out);
+    }
+    assertArrayEquals(bytes, Files.readAllBytes(copy.getFile().toPath()));
+  }
+
+  @Test
+  public void testTempFileWriteToChannel() throws IOException {
+    byte[] bytes = newBytes(200_000);
+    ByteResult result = capture(bytes, 16);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    result.writeTo(Channels.newChannel(bout));
+    assertArrayEquals(bytes, bout.toByteArray());
+  }
+}
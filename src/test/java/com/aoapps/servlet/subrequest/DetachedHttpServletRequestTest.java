@@ -0,0 +1,127 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DetachedHttpServletRequestTest {
+
+  private DetachedHttpServletRequest detached;
+
+  @Before
+  public void setUp() {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("accept", "text/html");
+    headers.put("authorization", "Basic dXNlcjpwYXNz");
+    headers.put("cookie", "JSESSIONID=1234");
+    headers.put("proxy-authorization", "Basic dXNlcjpwYXNz");
+    HttpServletRequest req = new HttpServletRequestWrapper(
+        ServletMocks.newRequest("GET", headers, Collections.emptyMap())
+    ) {
+      @Override
+      public String getAuthType() {
+        return BASIC_AUTH;
+      }
+
+      @Override
+      public String getRemoteUser() {
+        return "user";
+      }
+
+      @Override
+      public Principal getUserPrincipal() {
+        return () -> "user";
+      }
+
+      @Override
+      public String getRequestedSessionId() {
+        return "1234";
+      }
+
+      @Override
+      public boolean isRequestedSessionIdValid() {
+        return true;
+      }
+
+      @Override
+      public boolean isRequestedSessionIdFromCookie() {
+        return true;
+      }
+
+      @Override
+      public Cookie[] getCookies() {
+        return new Cookie[]{new Cookie("JSESSIONID", "1234")};
+      }
+    };
+    req.setAttribute("fragment", "value");
+    SubRequestDeadline.set(req, 1, TimeUnit.MINUTES);
+    SubRequestAdmissionControl.getParentConcurrent(req);
+    detached = new DetachedHttpServletRequest(req);
+  }
+
+  @Test
+  public void testNoIdentity() {
+    assertNull(detached.getAuthType());
+    assertNull(detached.getRemoteUser());
+    assertNull(detached.getUserPrincipal());
+  }
+
+  @Test
+  public void testNoSession() {
+    assertNull(detached.getRequestedSessionId());
+    assertFalse(detached.isRequestedSessionIdValid());
+    assertFalse(detached.isRequestedSessionIdFromCookie());
+    assertNull(detached.getSession(false));
+    assertNull(detached.getCookies());
+  }
+
+  @Test
+  public void testNoCredentialHeaders() {
+    assertEquals("text/html", detached.getHeader("accept"));
+    assertNull(detached.getHeader("Authorization"));
+    assertNull(detached.getHeader("cookie"));
+    assertFalse(detached.getHeaders("Proxy-Authorization").hasMoreElements());
+    assertEquals(Collections.singletonList("accept"), Collections.list(detached.getHeaderNames()));
+  }
+
+  @Test
+  public void testParentAttributesNotCopied() {
+    assertEquals("value", detached.getAttribute("fragment"));
+    assertNull("Deadline belongs to the parent", SubRequestDeadline.get(detached));
+    assertNull(detached.getAttribute(SubRequestAdmissionControl.PARENT_CONCURRENT_ATTRIBUTE));
+    assertEquals(Collections.singletonList("fragment"), Collections.list(detached.getAttributeNames()));
+  }
+}
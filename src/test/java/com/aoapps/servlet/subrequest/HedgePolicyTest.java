@@ -0,0 +1,155 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HedgePolicyTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPercentileOne() {
+    new HedgePolicy(1, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMinSamplesZero() {
+    new HedgePolicy(0.5, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWindowZero() {
+    new HedgePolicy(0.5, 1, 0, TimeUnit.SECONDS, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxPathsZero() {
+    new HedgePolicy(0.5, 1, 1, TimeUnit.SECONDS, 0);
+  }
+
+  @Test
+  public void testNotHedgedUntilMinSamples() {
+    HedgePolicy policy = new HedgePolicy(0.5, 3);
+    assertEquals(-1, policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS));
+    policy.record("/a", 10, TimeUnit.MILLISECONDS);
+    policy.record("/a", 10, TimeUnit.MILLISECONDS);
+    assertEquals(-1, policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS));
+    policy.record("/a", 10, TimeUnit.MILLISECONDS);
+    assertTrue(policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS) >= 0);
+    assertEquals("Paths are tracked separately", -1, policy.getHedgeDelay("/b", TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * The histogram has four buckets per power of two, so the delay is at least the
+   * recorded latency and within 25% above it.
+   */
+  @Test
+  public void testDelayWithinBucketResolution() {
+    for (long latency : new long[]{1, 3, 7, 100, 1000, 12345, 1_000_000, 987_654_321}) {
+      HedgePolicy policy = new HedgePolicy(0.5, 1);
+      policy.record("/a", latency, TimeUnit.NANOSECONDS);
+      long delay = policy.getHedgeDelay("/a", TimeUnit.NANOSECONDS);
+      assertTrue("delay " + delay + " < latency " + latency, delay >= latency);
+      assertTrue("delay " + delay + " > 125% of latency " + latency, delay <= latency + latency / 4);
+    }
+  }
+
+  @Test
+  public void testPercentile() {
+    HedgePolicy policy = new HedgePolicy(0.9, 1);
+    for (int i = 0; i < 90; i++) {
+      policy.record("/a", 1, TimeUnit.MILLISECONDS);
+    }
+    for (int i = 0; i < 10; i++) {
+      policy.record("/a", 1, TimeUnit.SECONDS);
+    }
+    long delay = policy.getHedgeDelay("/a", TimeUnit.MICROSECONDS);
+    assertTrue("90th percentile in the fast bucket: " + delay, delay >= 1000 && delay <= 1250);
+    policy.record("/a", 1, TimeUnit.SECONDS);
+    delay = policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS);
+    assertTrue("90th percentile in the slow bucket: " + delay, delay >= 1000 && delay <= 1250);
+  }
+
+  @Test
+  public void testZeroAndMaxLatency() {
+    HedgePolicy policy = new HedgePolicy(0.5, 1);
+    policy.record("/zero", 0, TimeUnit.NANOSECONDS);
+    assertTrue(policy.getHedgeDelay("/zero", TimeUnit.NANOSECONDS) >= 0);
+    policy.record("/max", Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    assertEquals(Long.MAX_VALUE, policy.getHedgeDelay("/max", TimeUnit.NANOSECONDS));
+  }
+
+  @Test
+  public void testClear() {
+    HedgePolicy policy = new HedgePolicy(0.5, 1);
+    policy.record("/a", 10, TimeUnit.MILLISECONDS);
+    assertTrue(policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS) >= 10);
+    policy.clear();
+    assertEquals(-1, policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Samples are kept for between one and two windows, so the delay follows the recent latency.
+   */
+  @Test
+  public void testWindowForgetsOldSamples() throws InterruptedException {
+    HedgePolicy policy = new HedgePolicy(0.5, 2, 50, TimeUnit.MILLISECONDS, 10);
+    policy.record("/a", 1, TimeUnit.SECONDS);
+    policy.record("/a", 1, TimeUnit.SECONDS);
+    assertTrue(policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS) >= 1000);
+    Thread.sleep(150);
+    assertEquals("Samples older than two windows are forgotten", -1, policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS));
+    policy.record("/a", 1, TimeUnit.MILLISECONDS);
+    policy.record("/a", 1, TimeUnit.MILLISECONDS);
+    long delay = policy.getHedgeDelay("/a", TimeUnit.MICROSECONDS);
+    assertTrue("Follows recent latency: " + delay, delay >= 1000 && delay <= 1250);
+  }
+
+  @Test
+  public void testMaxPathsForgetsLeastRecent() throws InterruptedException {
+    HedgePolicy policy = new HedgePolicy(0.5, 1, 1, TimeUnit.MINUTES, 2);
+    policy.record("/a", 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(1);
+    policy.record("/b", 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(1);
+    policy.record("/a", 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(1);
+    policy.record("/c", 1, TimeUnit.MILLISECONDS);
+    assertTrue(policy.getHedgeDelay("/a", TimeUnit.MILLISECONDS) >= 0);
+    assertEquals("Least recently recorded is forgotten", -1, policy.getHedgeDelay("/b", TimeUnit.MILLISECONDS));
+    assertTrue(policy.getHedgeDelay("/c", TimeUnit.MILLISECONDS) >= 0);
+  }
+
+  @Test
+  public void testHedgeableFollowsMethod() {
+    HedgePolicy policy = new HedgePolicy();
+    assertTrue(policy.isHedgeable(ServletMocks.newRequest("GET", Collections.emptyMap(), Collections.emptyMap())));
+    assertTrue(policy.isHedgeable(ServletMocks.newRequest("HEAD", Collections.emptyMap(), Collections.emptyMap())));
+    assertFalse(policy.isHedgeable(ServletMocks.newRequest("POST", Collections.emptyMap(), Collections.emptyMap())));
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.aoapps.io.buffer.BufferResult;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.junit.Test;
+
+public class HttpServletSubResponseTest {
+
+  @Test
+  public void testAddedHeadersCopy() throws IOException {
+    try (TempFileContext tempFileContext = new TempFileContext()) {
+      HttpServletSubResponse subResponse = new HttpServletSubResponse(new ServletMocks.Response().response, tempFileContext);
+      assertTrue(subResponse.getAddedHeaders().isEmpty());
+      subResponse.addHeader("X-A", "1");
+      Map<String, List<String>> added = subResponse.getAddedHeaders();
+      subResponse.addHeader("X-A", "2");
+      subResponse.setHeader("X-B", "3");
+      assertEquals("Not affected by later changes", Collections.singletonMap("X-A", Collections.singletonList("1")), added);
+      added = subResponse.getAddedHeaders();
+      assertEquals(Arrays.asList("1", "2"), added.get("X-A"));
+      assertEquals(Collections.singletonList("3"), added.get("X-B"));
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testAddedHeadersUnmodifiable() throws IOException {
+    try (TempFileContext tempFileContext = new TempFileContext()) {
+      HttpServletSubResponse subResponse = new HttpServletSubResponse(new ServletMocks.Response().response, tempFileContext);
+      subResponse.addHeader("X-A", "1");
+      subResponse.getAddedHeaders().put("X-B", Collections.emptyList());
+    }
+  }
+
+  /**
+   * Implementations from before {@link IHttpServletSubResponse#getAddedHeaders()} have no added headers.
+   */
+  @Test
+  public void testAddedHeadersDefault() {
+    class LegacySubResponse extends HttpServletResponseWrapper implements IHttpServletSubResponse {
+      LegacySubResponse() {
+        super(new ServletMocks.Response().response);
+      }
+
+      @Override
+      public BufferResult getCapturedOut() {
+        return null;
+      }
+
+      @Override
+      public Map<String, Cookie> getCookies() {
+        return Collections.emptyMap();
+      }
+
+      @Override
+      public String getRedirectLocation() {
+        return null;
+      }
+
+      @Override
+      public String getStatusMessage() {
+        return null;
+      }
+    }
+    assertTrue(new LegacySubResponse().getAddedHeaders().isEmpty());
+  }
+}
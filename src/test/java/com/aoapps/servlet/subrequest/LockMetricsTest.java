@@ -0,0 +1,133 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockMetricsTest {
+
+  private final LockMetrics metrics = LockMetrics.REQUEST_ATTRIBUTES;
+
+  @Before
+  public void setUp() {
+    metrics.reset();
+    LockMetrics.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() {
+    LockMetrics.setEnabled(false);
+    metrics.reset();
+  }
+
+  @Test
+  public void testNotRecordedWhileDisabled() {
+    LockMetrics.setEnabled(false);
+    ReentrantLock lock = new ReentrantLock();
+    metrics.lock(lock);
+    lock.unlock();
+    assertEquals(0, metrics.getAcquisitionCount());
+  }
+
+  @Test
+  public void testContended() throws InterruptedException {
+    ReentrantLock lock = new ReentrantLock();
+    CountDownLatch locked = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      lock.lock();
+      try {
+        locked.countDown();
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        lock.unlock();
+      }
+    });
+    holder.start();
+    assertTrue(locked.await(10, TimeUnit.SECONDS));
+    metrics.lock(lock);
+    lock.unlock();
+    holder.join();
+    assertEquals(1, metrics.getAcquisitionCount());
+    assertEquals(1, metrics.getContendedCount());
+    assertTrue(metrics.getWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+    long[] histogram = metrics.getWaitHistogram();
+    assertEquals(1, histogram[histogram.length - 2] + histogram[histogram.length - 1]);
+  }
+
+  /**
+   * A reader recording its acquisition still queues behind a waiting writer, instead of barging ahead of it.
+   */
+  @Test
+  public void testReaderDoesNotBargeWriter() throws InterruptedException {
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    lock.readLock().lock();
+    Thread writer = new Thread(() -> {
+      lock.writeLock().lock();
+      try {
+        order.add("writer");
+      } finally {
+        lock.writeLock().unlock();
+      }
+    });
+    Thread reader = new Thread(() -> {
+      metrics.lock(lock.readLock());
+      try {
+        order.add("reader");
+      } finally {
+        lock.readLock().unlock();
+      }
+    });
+    try {
+      writer.start();
+      while (!lock.hasQueuedThread(writer)) {
+        Thread.sleep(1);
+      }
+      reader.start();
+      while (!lock.hasQueuedThread(reader) && reader.isAlive()) {
+        Thread.sleep(1);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    writer.join();
+    reader.join();
+    assertEquals(Arrays.asList("writer", "reader"), order);
+    assertEquals(1, metrics.getContendedCount());
+  }
+}
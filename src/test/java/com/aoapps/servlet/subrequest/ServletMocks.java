@@ -0,0 +1,277 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal requests and responses for testing subrequests without a container.
+ */
+final class ServletMocks {
+
+  /**
+   * Renders an included path.
+   */
+  @FunctionalInterface
+  interface Servlet {
+    void service(ServletRequest req, ServletResponse resp) throws ServletException, IOException;
+  }
+
+  /**
+   * Writes the given text to the writer of the response.
+   */
+  static Servlet write(String text) {
+    return (req, resp) -> resp.getWriter().write(text);
+  }
+
+  private ServletMocks() {
+    throw new AssertionError();
+  }
+
+  private static Object getDefault(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[]{type}, handler);
+  }
+
+  /**
+   * Gets a dispatcher that includes the servlet for the given path, or {@code null} when there is none.
+   */
+  private static RequestDispatcher getDispatcher(Map<String, Servlet> servlets, String path) {
+    Servlet servlet = servlets.get(path);
+    if (servlet == null) {
+      return null;
+    }
+    return newProxy(RequestDispatcher.class, (proxy, method, args) -> {
+      if ("include".equals(method.getName())) {
+        servlet.service((ServletRequest) args[0], (ServletResponse) args[1]);
+        return null;
+      }
+      throw new UnsupportedOperationException(method.getName());
+    });
+  }
+
+  /**
+   * Creates a parent request dispatching to the given servlets, by path.
+   *
+   * @param headers  The headers, by lower-case name
+   */
+  static HttpServletRequest newRequest(String method, Map<String, String> headers, Map<String, Servlet> servlets) {
+    Map<String, Object> attributes = new ConcurrentHashMap<>();
+    ServletContext context = newProxy(ServletContext.class, (proxy, m, args) ->
+        "getRequestDispatcher".equals(m.getName())
+            ? getDispatcher(servlets, (String) args[0])
+            : getDefault(m.getReturnType()));
+    return newProxy(HttpServletRequest.class, (proxy, m, args) -> {
+      switch (m.getName()) {
+        case "getAttribute":
+          return attributes.get((String) args[0]);
+        case "setAttribute":
+          if (args[1] == null) {
+            attributes.remove((String) args[0]);
+          } else {
+            attributes.put((String) args[0], args[1]);
+          }
+          return null;
+        case "removeAttribute":
+          attributes.remove((String) args[0]);
+          return null;
+        case "getAttributeNames":
+          return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+        case "getMethod":
+          return method;
+        case "getHeader":
+          return headers.get(((String) args[0]).toLowerCase(Locale.ROOT));
+        case "getHeaders":
+          String value = headers.get(((String) args[0]).toLowerCase(Locale.ROOT));
+          return (value == null) ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singleton(value));
+        case "getHeaderNames":
+          return Collections.enumeration(headers.keySet());
+        case "getParameterMap":
+          return Collections.emptyMap();
+        case "getLocales":
+          return Collections.enumeration(Collections.singleton(Locale.US));
+        case "getRequestURL":
+          return new StringBuffer("http://localhost/");
+        case "getServletPath":
+          return "/";
+        case "getServletContext":
+          return context;
+        case "getRequestDispatcher":
+          return getDispatcher(servlets, (String) args[0]);
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return getDefault(m.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * Creates a {@code GET} parent request without headers, dispatching to the given servlets, by path.
+   */
+  static HttpServletRequest newRequest(Map<String, Servlet> servlets) {
+    return newRequest("GET", Collections.emptyMap(), servlets);
+  }
+
+  /**
+   * A parent response, in {@code UTF-8}, that keeps everything written to it.
+   */
+  static final class Response {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final PrintWriter writer = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private volatile int status = HttpServletResponse.SC_OK;
+    private volatile boolean committed;
+
+    final HttpServletResponse response = newProxy(HttpServletResponse.class, (proxy, m, args) -> {
+      switch (m.getName()) {
+        case "getCharacterEncoding":
+          return "UTF-8";
+        case "getLocale":
+          return Locale.US;
+        case "getStatus":
+          return status;
+        case "setStatus":
+          status = (Integer) args[0];
+          return null;
+        case "sendError":
+          status = (Integer) args[0];
+          committed = true;
+          events.add("sendError");
+          return null;
+        case "getHeaders":
+        case "getHeaderNames":
+          return Collections.emptyList();
+        case "getWriter":
+          return writer;
+        case "getOutputStream":
+          return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+              synchronized (bytes) {
+                bytes.write(b);
+              }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+              synchronized (bytes) {
+                bytes.write(b, off, len);
+              }
+            }
+
+            @Override
+            public void flush() {
+              committed = true;
+              events.add("flush");
+            }
+
+            @Override
+            public boolean isReady() {
+              return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+              throw new UnsupportedOperationException();
+            }
+          };
+        case "flushBuffer":
+          writer.flush();
+          committed = true;
+          events.add("flushBuffer");
+          return null;
+        case "isCommitted":
+          return committed;
+        case "reset":
+        case "resetBuffer":
+          synchronized (bytes) {
+            bytes.reset();
+          }
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return getDefault(m.getReturnType());
+      }
+    });
+
+    /**
+     * Gets everything written to the writer or output stream.
+     */
+    String getOutput() {
+      writer.flush();
+      synchronized (bytes) {
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      }
+    }
+
+    /**
+     * Gets the flushes and errors, in order.
+     */
+    List<String> getEvents() {
+      synchronized (events) {
+        return new ArrayList<>(events);
+      }
+    }
+  }
+}
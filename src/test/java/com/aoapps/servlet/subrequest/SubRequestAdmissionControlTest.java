@@ -0,0 +1,131 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class SubRequestAdmissionControlTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxConcurrentZero() {
+    new SubRequestAdmissionControl(0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxConcurrentPerParentZero() {
+    new SubRequestAdmissionControl(1, 0);
+  }
+
+  @Test
+  public void testAcquireAndRelease() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(2, 2);
+    AtomicInteger parent = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent, "/a"));
+    assertEquals(1, parent.get());
+    assertEquals(1, control.getAvailablePermits());
+    control.release(parent);
+    assertEquals(0, parent.get());
+    assertEquals(2, control.getAvailablePermits());
+    assertEquals(1, control.getConcurrentCount());
+    assertEquals(0, control.getDegradedCount());
+  }
+
+  @Test
+  public void testPerParentLimit() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(10, 2);
+    AtomicInteger parent = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent, "/a"));
+    assertTrue(control.tryAcquire(parent, "/a"));
+    assertFalse(control.tryAcquire(parent, "/b"));
+    assertEquals(2, parent.get());
+    assertEquals(8, control.getAvailablePermits());
+    assertEquals(1, control.getDegradedPerParentCount());
+    assertEquals(0, control.getDegradedGlobalCount());
+    // Another parent is not limited
+    AtomicInteger other = new AtomicInteger();
+    assertTrue(control.tryAcquire(other, "/b"));
+    // Released permit is available to the parent again
+    control.release(parent);
+    assertTrue(control.tryAcquire(parent, "/b"));
+  }
+
+  @Test
+  public void testGlobalLimit() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(1, 10);
+    AtomicInteger parent1 = new AtomicInteger();
+    AtomicInteger parent2 = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent1, "/a"));
+    assertFalse(control.tryAcquire(parent2, "/a"));
+    assertEquals("Parent count restored when no global permit", 0, parent2.get());
+    assertEquals(0, control.getAvailablePermits());
+    assertEquals(1, control.getDegradedGlobalCount());
+    control.release(parent1);
+    assertTrue(control.tryAcquire(parent2, "/a"));
+  }
+
+  @Test
+  public void testRejected() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(1, 1);
+    AtomicInteger parent = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent, "/a"));
+    control.rejected(parent, "/a");
+    assertEquals(0, parent.get());
+    assertEquals(1, control.getAvailablePermits());
+    assertEquals(0, control.getConcurrentCount());
+    assertEquals(1, control.getDegradedRejectedCount());
+    assertEquals(1, control.getDegradedCount());
+  }
+
+  @Test
+  public void testWithdrawn() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(1, 1);
+    AtomicInteger parent = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent, "/a"));
+    control.withdrawn(parent);
+    assertEquals(0, parent.get());
+    assertEquals(1, control.getAvailablePermits());
+    assertEquals(0, control.getConcurrentCount());
+    assertEquals(0, control.getDegradedCount());
+  }
+
+  @Test
+  public void testDegradedCountByPath() {
+    SubRequestAdmissionControl control = new SubRequestAdmissionControl(1, 1);
+    assertEquals(Collections.emptyMap(), control.getDegradedCountByPath());
+    AtomicInteger parent = new AtomicInteger();
+    assertTrue(control.tryAcquire(parent, "/a"));
+    assertFalse(control.tryAcquire(parent, "/b"));
+    assertFalse(control.tryAcquire(parent, "/b"));
+    assertFalse(control.tryAcquire(new AtomicInteger(), "/c"));
+    Map<String, Long> byPath = control.getDegradedCountByPath();
+    assertEquals(Map.of("/b", 2L, "/c", 1L), byPath);
+    assertEquals(3, control.getDegradedCount());
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubRequestBodyTest {
+
+  /**
+   * A request with the given body, recording each read of its body and parameters.
+   */
+  private static class BodyRequest extends HttpServletRequestWrapper {
+
+    private final byte[] body;
+    private final String contentType;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger inputStreams = new AtomicInteger();
+
+    private BodyRequest(byte[] body, String contentType) {
+      super(ServletMocks.newRequest("POST", Collections.emptyMap(), Collections.emptyMap()));
+      this.body = body;
+      this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+      return contentType;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+      events.add("getParameterMap");
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      events.add("getInputStream");
+      inputStreams.incrementAndGet();
+      ByteArrayInputStream in = new ByteArrayInputStream(body);
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return in.read();
+        }
+
+        @Override
+        public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    try (in) {
+      return in.readAllBytes();
+    }
+  }
+
+  private TempFileContext tempFileContext;
+
+  @Before
+  public void setUp() {
+    tempFileContext = new TempFileContext();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    tempFileContext.close();
+  }
+
+  @Test
+  public void testCaptureInMemory() throws IOException {
+    byte[] bytes = "body".getBytes(StandardCharsets.UTF_8);
+    BodyRequest req = new BodyRequest(bytes, "text/plain");
+    SubRequestBody body = SubRequestBody.capture(req, tempFileContext);
+    assertFalse(body.isTempFile());
+    assertEquals(bytes.length, body.getLength());
+    assertSame(body, SubRequestBody.get(req));
+    assertSame("Captured once", body, SubRequestBody.capture(req, tempFileContext));
+    assertEquals(1, req.inputStreams.get());
+    assertArrayEquals(bytes, readAll(body.newInputStream()));
+    assertArrayEquals("Each stream independent", bytes, readAll(body.newInputStream()));
+  }
+
+  @Test
+  public void testCaptureTempFile() throws IOException {
+    byte[] bytes = new byte[10000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    SubRequestBody body = SubRequestBody.capture(new BodyRequest(bytes, null), tempFileContext, 1000);
+    assertTrue(body.isTempFile());
+    assertEquals(bytes.length, body.getLength());
+    assertArrayEquals(bytes, readAll(body.newInputStream()));
+  }
+
+  @Test
+  public void testSubRequestReadsCaptured() throws IOException {
+    byte[] bytes = "body".getBytes(StandardCharsets.UTF_8);
+    BodyRequest req = new BodyRequest(bytes, "text/plain");
+    SubRequestBody.capture(req, tempFileContext);
+    assertArrayEquals(bytes, readAll(new HttpServletSubRequest(req).getInputStream()));
+    assertEquals("body", new HttpServletSubRequest(req).getReader().readLine());
+  }
+
+  /**
+   * A form is parsed into parameters before the body is read, so the parameters are not lost.
+   */
+  @Test
+  public void testFormParsedBeforeCapture() throws IOException {
+    BodyRequest req = new BodyRequest("a=1".getBytes(StandardCharsets.UTF_8), "Application/X-WWW-Form-Urlencoded; charset=UTF-8");
+    SubRequestBody.capture(req, tempFileContext);
+    assertEquals(List.of("getParameterMap", "getInputStream"), req.events);
+  }
+
+  @Test
+  public void testOtherNotParsedBeforeCapture() throws IOException {
+    BodyRequest req = new BodyRequest("a=1".getBytes(StandardCharsets.UTF_8), "multipart/form-data; boundary=x");
+    SubRequestBody.capture(req, tempFileContext);
+    assertEquals(List.of("getInputStream"), req.events);
+  }
+
+  /**
+   * Concurrent captures through a thread-safe request read the body once and share it.
+   */
+  @Test
+  public void testConcurrentCaptureOnce() throws Exception {
+    BodyRequest req = new BodyRequest("body".getBytes(StandardCharsets.UTF_8), "text/plain");
+    ThreadSafeHttpServletRequest threadSafe = new ThreadSafeHttpServletRequest(req);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<SubRequestBody>> captures = Collections.nCopies(
+          32,
+          () -> SubRequestBody.capture(threadSafe, tempFileContext)
+      );
+      SubRequestBody first = null;
+      for (Future<SubRequestBody> future : pool.invokeAll(captures)) {
+        SubRequestBody body = future.get();
+        if (first == null) {
+          first = body;
+        }
+        assertSame(first, body);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(1, req.inputStreams.get());
+  }
+}
@@ -0,0 +1,819 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.aoapps.io.buffer.BufferResult;
+import com.aoapps.io.buffer.StringResult;
+import com.aoapps.tempfiles.TempFileContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubRequestExecutorTest {
+
+  private ExecutorService pool;
+  private TempFileContext tempFileContext;
+  private SubRequestExecutor executor;
+  private Map<String, ServletMocks.Servlet> servlets;
+  private ServletMocks.Response response;
+
+  @Before
+  public void setUp() {
+    pool = Executors.newCachedThreadPool();
+    tempFileContext = new TempFileContext();
+    executor = new SubRequestExecutor(pool);
+    servlets = new HashMap<>();
+    response = new ServletMocks.Response();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownNow();
+    tempFileContext.close();
+  }
+
+  private static String toString(List<BufferResult> results) {
+    StringBuilder sb = new StringBuilder();
+    for (BufferResult result : results) {
+      sb.append(result);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testIncludeEmpty() throws Exception {
+    assertEquals(
+        Collections.emptyList(),
+        executor.include(ServletMocks.newRequest(servlets), response.response, tempFileContext, Collections.emptyList())
+    );
+  }
+
+  @Test
+  public void testIncludeInOrder() throws Exception {
+    CountDownLatch lastDone = new CountDownLatch(1);
+    servlets.put("/first", (req, resp) -> {
+      // Completes last
+      try {
+        assertTrue(lastDone.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      resp.getWriter().write("first");
+    });
+    servlets.put("/second", ServletMocks.write("second"));
+    servlets.put("/third", (req, resp) -> {
+      resp.getWriter().write("third");
+      lastDone.countDown();
+    });
+    List<BufferResult> results = executor.include(
+        ServletMocks.newRequest(servlets),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/first", "/second", "/third")
+    );
+    assertEquals("firstsecondthird", toString(results));
+    assertEquals("Output is captured, not written to the parent", "", response.getOutput());
+  }
+
+  @Test
+  public void testAttributesNotSetOnParent() throws Exception {
+    servlets.put("/set", (req, resp) -> {
+      req.setAttribute("fragment", "value");
+      resp.getWriter().write(String.valueOf(req.getAttribute("parent")));
+    });
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    req.setAttribute("parent", "inherited");
+    List<BufferResult> results = executor.include(req, response.response, tempFileContext, Arrays.asList("/set", "/set"));
+    assertEquals("inheritedinherited", toString(results));
+    assertNull(req.getAttribute("fragment"));
+  }
+
+  @Test
+  public void testFailurePropagatedAndOthersCancelled() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", (req, resp) -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    });
+    servlets.put("/fail", (req, resp) -> {
+      try {
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      throw new ServletException("Failed: /fail");
+    });
+    try {
+      executor.include(ServletMocks.newRequest(servlets), response.response, tempFileContext, Arrays.asList("/fail", "/slow"));
+      fail("ServletException expected");
+    } catch (ServletException e) {
+      assertEquals("Failed: /fail", e.getMessage());
+    }
+    assertTrue("Remaining subrequest interrupted", interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Waits until the parent response has the given output.
+   */
+  private void awaitOutput(String expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!response.getOutput().equals(expected)) {
+      if (System.nanoTime() - deadline > 0) {
+        throw new AssertionError("Output not written: " + expected + ", got " + response.getOutput());
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testIncludeStreamsInOrder() throws Exception {
+    servlets.put("/first", ServletMocks.write("first"));
+    servlets.put("/second", (req, resp) -> {
+      // Only completes once the first has been written to the parent
+      try {
+        awaitOutput("first");
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      resp.getWriter().write("second");
+    });
+    servlets.put("/third", ServletMocks.write("third"));
+    executor.include(
+        ServletMocks.newRequest(servlets),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/first", "/second", "/third"),
+        response.response.getWriter()
+    );
+    assertEquals("firstsecondthird", response.getOutput());
+  }
+
+  @Test
+  public void testIncludeStreamWrittenBeforeFailure() throws Exception {
+    servlets.put("/first", ServletMocks.write("first"));
+    servlets.put("/fail", (req, resp) -> {
+      throw new ServletException("Failed: /fail");
+    });
+    servlets.put("/third", ServletMocks.write("third"));
+    try {
+      executor.include(
+          ServletMocks.newRequest(servlets),
+          response.response,
+          tempFileContext,
+          Arrays.asList("/first", "/fail", "/third"),
+          response.response.getWriter()
+      );
+      fail("ServletException expected");
+    } catch (ServletException e) {
+      assertEquals("Failed: /fail", e.getMessage());
+    }
+    assertEquals("first", response.getOutput());
+  }
+
+  /**
+   * Blocks until interrupted, counting down the given latches when started and when interrupted.
+   */
+  private static ServletMocks.Servlet blockUntilInterrupted(CountDownLatch started, CountDownLatch interrupted) {
+    return (req, resp) -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    };
+  }
+
+  @Test
+  public void testDeadlineCancels() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/fast", ServletMocks.write("fast"));
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, 100, TimeUnit.MILLISECONDS);
+    long startNanos = System.nanoTime();
+    try {
+      executor.include(req, response.response, tempFileContext, Arrays.asList("/fast", "/slow"));
+      fail("SubRequestTimeoutException expected");
+    } catch (SubRequestTimeoutException e) {
+      assertEquals("/slow", e.getPath());
+    }
+    assertTrue("Timed out at the deadline", System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue("Subrequest interrupted", interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDeadlineFallback() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/fast", ServletMocks.write("fast"));
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    executor.setTimeoutFallback(timeout -> new StringResult("fallback:" + timeout.getPath()));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, 100, TimeUnit.MILLISECONDS);
+    assertEquals(
+        "fastfallback:/slow",
+        toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/fast", "/slow")))
+    );
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue("Subrequest interrupted", interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDeadlineFallbackAsync() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    executor.setTimeoutFallback(timeout -> new StringResult("fallback"));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, 100, TimeUnit.MILLISECONDS);
+    SubResult result = executor.includeAsync(req, response.response, tempFileContext, Arrays.asList("/slow"))
+        .get(0).get(10, TimeUnit.SECONDS);
+    assertEquals("fallback", result.getOutput().toString());
+    assertEquals(200, result.getStatus());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue("Subrequest interrupted", interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testExpiredDeadlineNotStarted() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, new CountDownLatch(1)));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, -1, TimeUnit.MILLISECONDS);
+    try {
+      executor.include(req, response.response, tempFileContext, Arrays.asList("/slow"));
+      fail("SubRequestTimeoutException expected");
+    } catch (SubRequestTimeoutException e) {
+      assertEquals("/slow", e.getPath());
+    }
+    assertEquals(1, started.getCount());
+  }
+
+  @Test
+  public void testAdmissionRunsRemainderOnParent() throws Exception {
+    Thread parent = Thread.currentThread();
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch ranOnParent = new CountDownLatch(1);
+    ServletMocks.Servlet recordThread = (req, resp) -> {
+      threads.add(Thread.currentThread());
+      if (Thread.currentThread() == parent) {
+        ranOnParent.countDown();
+      } else {
+        // Holds its permit until the others have been started
+        try {
+          assertTrue(ranOnParent.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      resp.getWriter().write("x");
+    };
+    servlets.put("/a", recordThread);
+    SubRequestAdmissionControl admission = new SubRequestAdmissionControl(10, 1);
+    executor.setAdmissionControl(admission);
+    assertEquals(
+        "xxx",
+        toString(executor.include(ServletMocks.newRequest(servlets), response.response, tempFileContext, Arrays.asList("/a", "/a", "/a")))
+    );
+    assertEquals(3, threads.size());
+    assertTrue("Not admitted subrequests run on the parent thread", threads.contains(parent));
+    assertTrue(admission.getDegradedPerParentCount() >= 1);
+    assertEquals("Permits released once joined", 10, admission.getAvailablePermits());
+  }
+
+  /**
+   * Counts the calls to the given servlet.
+   */
+  private static ServletMocks.Servlet count(AtomicInteger calls, ServletMocks.Servlet servlet) {
+    return (req, resp) -> {
+      calls.incrementAndGet();
+      servlet.service(req, resp);
+    };
+  }
+
+  /**
+   * Waits for the given latch then writes the given output.
+   */
+  private static ServletMocks.Servlet awaitThenWrite(CountDownLatch latch, String output) {
+    return (req, resp) -> {
+      try {
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError("Shared subrequest interrupted", e);
+      }
+      resp.getWriter().write(output);
+    };
+  }
+
+  @Test
+  public void testCoalescedRenderedOnce() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    servlets.put("/a", count(calls, ServletMocks.write("a")));
+    executor.setCoalescingKey((req, path) -> "");
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    assertEquals("aa", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/a", "/a"))));
+    assertEquals("a", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/a"))));
+    assertEquals(1, calls.get());
+  }
+
+  /**
+   * An include that times out on a coalesced subrequest gets its own fallback, while the subrequest continues
+   * for the other include sharing it.
+   */
+  @Test
+  public void testCoalescedTimeoutPerInclude() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    servlets.put("/slow", count(calls, awaitThenWrite(release, "slow")));
+    executor.setCoalescingKey((req, path) -> "");
+    executor.setTimeoutFallback(timeout -> new StringResult("fallback"));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    CompletableFuture<SubResult> first = executor.includeAsync(req, response.response, tempFileContext, Arrays.asList("/slow")).get(0);
+    SubRequestDeadline.set(req, 100, TimeUnit.MILLISECONDS);
+    assertEquals("fallback", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/slow"))));
+    assertFalse("Shared subrequest not cancelled", first.isDone());
+    release.countDown();
+    assertEquals("slow", first.get(10, TimeUnit.SECONDS).getOutput().toString());
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testCoalescedCancelLeaves() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    servlets.put("/slow", count(calls, awaitThenWrite(release, "slow")));
+    executor.setCoalescingKey((req, path) -> "");
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    CompletableFuture<SubResult> first = executor.includeAsync(req, response.response, tempFileContext, Arrays.asList("/slow")).get(0);
+    CompletableFuture<SubResult> second = executor.includeAsync(req, response.response, tempFileContext, Arrays.asList("/slow")).get(0);
+    assertTrue(second.cancel(true));
+    release.countDown();
+    assertEquals("slow", first.get(10, TimeUnit.SECONDS).getOutput().toString());
+    assertEquals(1, calls.get());
+  }
+
+  /**
+   * A coalesced subrequest that every include has left is cancelled and not shared with later includes.
+   */
+  @Test
+  public void testCoalescedAbandonedRenderedAgain() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    ServletMocks.Servlet block = blockUntilInterrupted(started, interrupted);
+    servlets.put("/a", count(calls, (req, resp) -> {
+      if (calls.get() == 1) {
+        block.service(req, resp);
+      } else {
+        resp.getWriter().write("a");
+      }
+    }));
+    executor.setCoalescingKey((req, path) -> "");
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    CompletableFuture<SubResult> abandoned = executor.includeAsync(req, response.response, tempFileContext, Arrays.asList("/a")).get(0);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(abandoned.cancel(true));
+    assertTrue("Subrequest interrupted", interrupted.await(10, TimeUnit.SECONDS));
+    assertEquals("a", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/a"))));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testSingleFlightRenderedOnce() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    servlets.put("/a", count(calls, awaitThenWrite(release, "a")));
+    SubRequestSingleFlight singleFlight = new SubRequestSingleFlight((req, path) -> "");
+    executor.setSingleFlight(singleFlight);
+    CompletableFuture<SubResult> first = executor.includeAsync(
+        ServletMocks.newRequest(servlets), response.response, tempFileContext, Arrays.asList("/a")).get(0);
+    CompletableFuture<SubResult> second = executor.includeAsync(
+        ServletMocks.newRequest(servlets), new ServletMocks.Response().response, tempFileContext, Arrays.asList("/a")).get(0);
+    release.countDown();
+    assertEquals("a", first.get(10, TimeUnit.SECONDS).getOutput().toString());
+    assertEquals("a", second.get(10, TimeUnit.SECONDS).getOutput().toString());
+    assertEquals(1, calls.get());
+    assertEquals(1, singleFlight.getRenderedCount());
+    assertEquals(1, singleFlight.getSharedCount());
+  }
+
+  /**
+   * A parent that times out on a shared render gets its own fallback, while the render continues for the other
+   * parent sharing it.
+   */
+  @Test
+  public void testSingleFlightTimeoutPerParent() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    servlets.put("/slow", count(calls, awaitThenWrite(release, "slow")));
+    executor.setSingleFlight(new SubRequestSingleFlight((req, path) -> ""));
+    executor.setTimeoutFallback(timeout -> new StringResult("fallback"));
+    CompletableFuture<SubResult> first = executor.includeAsync(
+        ServletMocks.newRequest(servlets), response.response, tempFileContext, Arrays.asList("/slow")).get(0);
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, 100, TimeUnit.MILLISECONDS);
+    assertEquals(
+        "fallback",
+        toString(executor.include(req, new ServletMocks.Response().response, tempFileContext, Arrays.asList("/slow")))
+    );
+    assertFalse("Shared render not cancelled", first.isDone());
+    release.countDown();
+    assertEquals("slow", first.get(10, TimeUnit.SECONDS).getOutput().toString());
+    assertEquals(1, calls.get());
+  }
+
+  /**
+   * The deadline of the parent that started a shared render is not visible to the render, nor to its includes.
+   */
+  @Test
+  public void testSingleFlightDetachedFromDeadline() throws Exception {
+    servlets.put("/a", (req, resp) -> resp.getWriter().write(String.valueOf(SubRequestDeadline.get(req))));
+    executor.setSingleFlight(new SubRequestSingleFlight((req, path) -> ""));
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    SubRequestDeadline.set(req, 1, TimeUnit.MINUTES);
+    assertEquals("null", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/a"))));
+  }
+
+  /**
+   * A shared snapshot is reused by later includes, with the attributes set on the parent between includes.
+   */
+  @Test
+  public void testSharedSnapshotSeesAttributesBetweenIncludes() throws Exception {
+    servlets.put("/attr", (req, resp) -> resp.getWriter().write(String.valueOf(req.getAttribute("msg"))));
+    executor.setSharedSnapshot(true);
+    HttpServletRequest req = ServletMocks.newRequest(servlets);
+    req.setAttribute("msg", "1");
+    assertEquals("11", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/attr", "/attr"))));
+    Object snapshot = req.getAttribute(SubRequestExecutor.SHARED_SNAPSHOT_ATTRIBUTE);
+    assertTrue(snapshot instanceof UnmodifiableCopyHttpServletRequest);
+    req.setAttribute("msg", "2");
+    assertEquals("22", toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/attr", "/attr"))));
+    assertTrue("Snapshot reused", snapshot == req.getAttribute(SubRequestExecutor.SHARED_SNAPSHOT_ATTRIBUTE));
+  }
+
+  /**
+   * An {@link AsyncContext} that records its listeners and completion, with the timeout fired by the test as the
+   * container would.
+   */
+  private static final class AsyncContextMock implements AsyncContext {
+
+    private final ServletRequest req;
+    private final ServletResponse resp;
+    private final List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private AsyncContextMock(ServletRequest req, ServletResponse resp) {
+      this.req = req;
+      this.resp = resp;
+    }
+
+    /**
+     * Waits for the context to be completed.
+     */
+    private boolean awaitComplete() throws InterruptedException {
+      return completed.await(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Notifies the listeners of a timeout on the current thread.
+     */
+    private void fireTimeout() throws IOException {
+      for (AsyncListener listener : listeners) {
+        listener.onTimeout(new AsyncEvent(this, req, resp));
+      }
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+      return req;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+      return resp;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+      return true;
+    }
+
+    @Override
+    public void dispatch() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dispatch(String path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void complete() {
+      if (completed.getCount() == 0) {
+        throw new IllegalStateException("Already completed");
+      }
+      completed.countDown();
+    }
+
+    @Override
+    public void start(Runnable run) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+      listeners.add(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+      listeners.add(listener);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+      // Fired by the test
+    }
+
+    @Override
+    public long getTimeout() {
+      return 0;
+    }
+  }
+
+  /**
+   * Creates a parent request that supports asynchronous operation, setting the context once started.
+   */
+  private HttpServletRequest newAsyncRequest(AtomicReference<AsyncContextMock> asyncContext) {
+    return new HttpServletRequestWrapper(ServletMocks.newRequest(servlets)) {
+      @Override
+      public boolean isAsyncStarted() {
+        return asyncContext.get() != null;
+      }
+
+      @Override
+      public AsyncContext getAsyncContext() {
+        return asyncContext.get();
+      }
+
+      @Override
+      public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+        AsyncContextMock started = new AsyncContextMock(servletRequest, servletResponse);
+        assertTrue("Started once", asyncContext.compareAndSet(null, started));
+        return started;
+      }
+    };
+  }
+
+  /**
+   * Returns before the subrequests complete, then writes their output in order and completes the context.
+   */
+  @Test
+  public void testStartAsync() throws Exception {
+    CountDownLatch returned = new CountDownLatch(1);
+    servlets.put("/first", awaitThenWrite(returned, "first"));
+    servlets.put("/second", ServletMocks.write("second"));
+    AtomicReference<AsyncContextMock> asyncContext = new AtomicReference<>();
+    CompletableFuture<Void> done = executor.startAsync(
+        newAsyncRequest(asyncContext),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/first", "/second")
+    );
+    assertFalse("Returns before the subrequests complete", done.isDone());
+    returned.countDown();
+    done.get(10, TimeUnit.SECONDS);
+    assertTrue(asyncContext.get().awaitComplete());
+    assertEquals("firstsecond", response.getOutput());
+    assertTrue(response.getEvents().contains("flushBuffer"));
+  }
+
+  @Test
+  public void testStartAsyncFailureSendsError() throws Exception {
+    servlets.put("/first", ServletMocks.write("first"));
+    servlets.put("/fail", (req, resp) -> {
+      throw new ServletException("Failed: /fail");
+    });
+    AtomicReference<AsyncContextMock> asyncContext = new AtomicReference<>();
+    CompletableFuture<Void> done = executor.startAsync(
+        newAsyncRequest(asyncContext),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/fail", "/first")
+    );
+    try {
+      done.get(10, TimeUnit.SECONDS);
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ServletException);
+      assertEquals("Failed: /fail", e.getCause().getMessage());
+    }
+    assertTrue(asyncContext.get().awaitComplete());
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.response.getStatus());
+    assertEquals("", response.getOutput());
+  }
+
+  /**
+   * A timeout of the context cancels the subrequests, and does not return until they have left the response.
+   */
+  @Test
+  public void testStartAsyncTimeoutCancels() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    AtomicReference<AsyncContextMock> asyncContext = new AtomicReference<>();
+    CompletableFuture<Void> done = executor.startAsync(
+        newAsyncRequest(asyncContext),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/slow")
+    );
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    asyncContext.get().fireTimeout();
+    assertEquals("Subrequest interrupted before the timeout returns", 0, interrupted.getCount());
+    assertTrue(asyncContext.get().awaitComplete());
+    try {
+      done.get(10, TimeUnit.SECONDS);
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.response.getStatus());
+  }
+
+  /**
+   * Bytes written to the output stream of a subrequest are merged, in order, into the parent output stream without
+   * being decoded.
+   */
+  @Test
+  public void testBytesMergedIntoOutputStream() throws Exception {
+    servlets.put("/bytes", (req, resp) -> resp.getOutputStream().write("caf\u00e9".getBytes(StandardCharsets.UTF_8)));
+    servlets.put("/text", ServletMocks.write("-text-"));
+    executor.include(
+        ServletMocks.newRequest(servlets),
+        response.response,
+        tempFileContext,
+        Arrays.asList("/bytes", "/text", "/bytes"),
+        response.response.getOutputStream()
+    );
+    assertEquals("caf\u00e9-text-caf\u00e9", response.getOutput());
+  }
+
+  /**
+   * A subrequest that subscribes to a broadcast body without reading it does not hold back the other subscribers
+   * once it has ended, even for a body larger than the ring.
+   */
+  @Test
+  public void testBroadcastSubscriberClosedWhenAbandoned() throws Exception {
+    byte[] body = new byte[10_000];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    CountDownLatch subscribed = new CountDownLatch(1);
+    servlets.put("/abandon", (req, resp) -> {
+      req.getInputStream();
+      subscribed.countDown();
+      resp.getWriter().write("abandoned");
+    });
+    servlets.put("/read", (req, resp) -> {
+      try {
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      ServletInputStream in = req.getInputStream();
+      byte[] buff = new byte[100];
+      int total = 0;
+      int read;
+      while ((read = in.read(buff, 0, buff.length)) != -1) {
+        for (int i = 0; i < read; i++) {
+          assertEquals(body[total + i], buff[i]);
+        }
+        total += read;
+      }
+      resp.getWriter().write(Integer.toString(total));
+    });
+    ThreadSafeHttpServletRequest req = new ThreadSafeHttpServletRequest(
+        new HttpServletRequestWrapper(ServletMocks.newRequest("POST", Collections.emptyMap(), servlets)) {
+          @Override
+          public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+              @Override
+              public int read() {
+                return in.read();
+              }
+
+              @Override
+              public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+              }
+
+              @Override
+              public boolean isFinished() {
+                return in.available() == 0;
+              }
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        }
+    );
+    req.broadcastInputStream(16, 4);
+    // Fails instead of waiting forever on the abandoned subscriber
+    SubRequestDeadline.set(req, 10, TimeUnit.SECONDS);
+    assertEquals(
+        "abandoned" + body.length,
+        toString(executor.include(req, response.response, tempFileContext, Arrays.asList("/abandon", "/read")))
+    );
+  }
+
+  @Test(expected = ServletException.class)
+  public void testMissingDispatcher() throws Exception {
+    executor.include(ServletMocks.newRequest(servlets), response.response, tempFileContext, Arrays.asList("/missing"));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.aoapps.tempfiles.TempFileContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubRequestScopeTest {
+
+  private ExecutorService pool;
+  private TempFileContext tempFileContext;
+  private SubRequestExecutor executor;
+  private Map<String, ServletMocks.Servlet> servlets;
+  private ServletMocks.Response response;
+
+  @Before
+  public void setUp() {
+    pool = Executors.newCachedThreadPool();
+    tempFileContext = new TempFileContext();
+    executor = new SubRequestExecutor(pool);
+    servlets = new HashMap<>();
+    response = new ServletMocks.Response();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownNow();
+    tempFileContext.close();
+  }
+
+  private SubRequestScope openScope() {
+    return executor.openScope(ServletMocks.newRequest(servlets), response.response, tempFileContext);
+  }
+
+  /**
+   * Blocks until interrupted, counting down the given latches when started and when interrupted.
+   */
+  private static ServletMocks.Servlet blockUntilInterrupted(CountDownLatch started, CountDownLatch interrupted) {
+    return (req, resp) -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    };
+  }
+
+  /**
+   * Waits for the given latch before running the given servlet.
+   */
+  private static ServletMocks.Servlet awaitThen(CountDownLatch latch, ServletMocks.Servlet servlet) {
+    return (req, resp) -> {
+      try {
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      servlet.service(req, resp);
+    };
+  }
+
+  @Test
+  public void testForkJoin() throws Exception {
+    servlets.put("/first", ServletMocks.write("first"));
+    servlets.put("/second", ServletMocks.write("second"));
+    try (SubRequestScope scope = openScope()) {
+      SubRequestScope.Subtask first = scope.fork("/first");
+      SubRequestScope.Subtask second = scope.fork("/second");
+      assertEquals("/first", first.getPath());
+      scope.join();
+      assertEquals("first", first.get().getOutput().toString());
+      assertEquals("second", second.get().getOutput().toString());
+      assertEquals(HttpServletResponse.SC_OK, second.get().getStatus());
+    }
+    assertEquals("Output is captured, not written to the parent", "", response.getOutput());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetBeforeJoin() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    servlets.put("/wait", awaitThen(release, ServletMocks.write("wait")));
+    try (SubRequestScope scope = openScope()) {
+      SubRequestScope.Subtask wait = scope.fork("/wait");
+      try {
+        wait.get();
+      } finally {
+        release.countDown();
+      }
+    }
+  }
+
+  /**
+   * An error status fails the scope and cancels the other subrequests without waiting for them in order.
+   */
+  @Test
+  public void testErrorStatusCancelsOthers() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    servlets.put("/error", awaitThen(started, (req, resp) ->
+        ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE)));
+    try (SubRequestScope scope = openScope()) {
+      scope.fork("/slow");
+      scope.fork("/error");
+      scope.join();
+      fail("SubRequestErrorException expected");
+    } catch (SubRequestErrorException e) {
+      assertEquals("/error", e.getPath());
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getStatus());
+    }
+    assertEquals("Interrupted before closed", 0, interrupted.getCount());
+  }
+
+  @Test
+  public void testFailureCancelsOthers() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    servlets.put("/fail", awaitThen(started, (req, resp) -> {
+      throw new ServletException("Failed: /fail");
+    }));
+    try (SubRequestScope scope = openScope()) {
+      scope.fork("/slow");
+      scope.fork("/fail");
+      scope.join();
+      fail("ServletException expected");
+    } catch (ServletException e) {
+      assertEquals("Failed: /fail", e.getMessage());
+    }
+    assertEquals("Interrupted before closed", 0, interrupted.getCount());
+  }
+
+  /**
+   * Closing without joining cancels the subrequests and waits for their threads to leave them.
+   */
+  @Test
+  public void testCloseCancels() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    servlets.put("/slow", blockUntilInterrupted(started, interrupted));
+    try (SubRequestScope scope = openScope()) {
+      scope.fork("/slow");
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+    assertEquals("Interrupted before closed", 0, interrupted.getCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testForkAfterJoin() throws Exception {
+    servlets.put("/first", ServletMocks.write("first"));
+    try (SubRequestScope scope = openScope()) {
+      scope.fork("/first");
+      scope.join();
+      scope.fork("/first");
+    }
+  }
+
+  @Test
+  public void testOtherThread() throws Exception {
+    try (SubRequestScope scope = openScope()) {
+      try {
+        CompletableFuture.runAsync(() -> scope.fork("/first"), pool).get(10, TimeUnit.SECONDS);
+        fail("IllegalStateException expected");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+  }
+}
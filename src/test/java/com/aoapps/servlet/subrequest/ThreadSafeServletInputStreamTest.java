@@ -0,0 +1,238 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThreadSafeServletInputStreamTest {
+
+  /**
+   * Counts the bytes read from the wrapped stream.
+   */
+  private static class CountingServletInputStream extends ServletInputStream {
+
+    private final InputStream in;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private CountingServletInputStream(byte[] body) {
+      this.in = new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        count.addAndGet(read);
+      }
+      return read;
+    }
+
+    @Override
+    public boolean isFinished() {
+      try {
+        return in.available() == 0;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static byte[] newBody(int length) {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) (i * 31);
+    }
+    return body;
+  }
+
+  private static byte[] readFully(InputStream in, int bufferSize) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    byte[] buff = new byte[bufferSize];
+    int read;
+    while ((read = in.read(buff, 0, bufferSize)) != -1) {
+      bout.write(buff, 0, read);
+    }
+    return bout.toByteArray();
+  }
+
+  /**
+   * Waits for the fast subscriber to read ahead, giving up after one second.
+   */
+  private static int waitForCount(CountingServletInputStream wrapped, int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    int count;
+    while ((count = wrapped.count.get()) < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return count;
+  }
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSubscribeNotBroadcast() {
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(new CountingServletInputStream(newBody(10)));
+    assertFalse(in.isBroadcast());
+    in.subscribe();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testReadBroadcast() throws IOException {
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(new CountingServletInputStream(newBody(10)), 4, 2);
+    assertTrue(in.isBroadcast());
+    in.read();
+  }
+
+  @Test
+  public void testSingleSubscriber() throws IOException {
+    byte[] body = newBody(10);
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(new CountingServletInputStream(body), 4, 2);
+    ServletInputStream sub = in.subscribe();
+    assertEquals(0, sub.available());
+    assertEquals(body[0] & 0xff, sub.read());
+    assertEquals("Rest of first chunk", 3, sub.available());
+    assertFalse(sub.isFinished());
+    byte[] rest = readFully(sub, 3);
+    assertEquals(body.length - 1, rest.length);
+    assertTrue(sub.isFinished());
+    assertEquals(-1, sub.read());
+  }
+
+  @Test
+  public void testSubscribersReadEntireStreamOnce() throws Exception {
+    byte[] body = newBody(10_000);
+    CountingServletInputStream wrapped = new CountingServletInputStream(body);
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(wrapped, 16, 4);
+    List<ServletInputStream> subs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      subs.add(in.subscribe());
+    }
+    List<Future<byte[]>> results = new ArrayList<>();
+    for (int i = 0; i < subs.size(); i++) {
+      ServletInputStream sub = subs.get(i);
+      int bufferSize = 1 + i * 7;
+      results.add(executor.submit(() -> readFully(sub, bufferSize)));
+    }
+    for (Future<byte[]> result : results) {
+      assertArrayEquals(body, result.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals("Wrapped stream read once", body.length, wrapped.count.get());
+  }
+
+  @Test
+  public void testRingBoundsReadAhead() throws Exception {
+    byte[] body = newBody(100);
+    CountingServletInputStream wrapped = new CountingServletInputStream(body);
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(wrapped, 4, 3);
+    ServletInputStream fast = in.subscribe();
+    ServletInputStream slow = in.subscribe();
+    Future<byte[]> fastResult = executor.submit(() -> readFully(fast, 100));
+    try {
+      fastResult.get(200, TimeUnit.MILLISECONDS);
+      throw new AssertionError("Fast subscriber should wait for the slow subscriber");
+    } catch (TimeoutException e) {
+      // Expected
+    }
+    assertEquals("Only a full ring is read ahead", 4 * 3, wrapped.count.get());
+    // Advancing the slow subscriber by one chunk releases one chunk
+    byte[] first = new byte[4];
+    int count = 0;
+    while (count < first.length) {
+      count += slow.read(first, count, first.length - count);
+    }
+    assertArrayEquals(Arrays.copyOf(body, 4), first);
+    assertEquals("Released chunk read ahead", 4 * 4, waitForCount(wrapped, 4 * 4));
+    // Closing the slow subscriber lets the fast subscriber finish
+    slow.close();
+    assertArrayEquals(body, fastResult.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSubscribeAfterRelease() throws IOException {
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(new CountingServletInputStream(newBody(10)), 4, 2);
+    ServletInputStream sub = in.subscribe();
+    byte[] buff = new byte[4];
+    assertEquals(4, sub.read(buff, 0, 4));
+    in.subscribe();
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadAfterClose() throws IOException {
+    ThreadSafeServletInputStream in = new ThreadSafeServletInputStream(new CountingServletInputStream(newBody(10)), 4, 2);
+    ServletInputStream sub = in.subscribe();
+    sub.close();
+    sub.read();
+  }
+}
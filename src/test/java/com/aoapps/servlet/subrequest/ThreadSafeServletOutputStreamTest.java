@@ -0,0 +1,131 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.junit.Test;
+
+public class ThreadSafeServletOutputStreamTest {
+
+  /**
+   * Records the writes to it, each as a separate chunk.
+   */
+  private static class RecordingOutputStream extends ServletOutputStream {
+
+    private final List<String> writes = new ArrayList<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writes.add(new String(b, off, len, StandardCharsets.UTF_8));
+      bytes.write(b, off, len);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testSegmentWrittenWhole() throws IOException {
+    RecordingOutputStream recorded = new RecordingOutputStream();
+    ThreadSafeServletOutputStream out = new ThreadSafeServletOutputStream(recorded, 8);
+    out.write('a');
+    out.write("bc".getBytes(StandardCharsets.UTF_8));
+    assertEquals("Buffered until handed off", 0, recorded.writes.size());
+    out.writeSegment();
+    assertEquals(List.of("abc"), recorded.writes);
+  }
+
+  @Test
+  public void testLargeWriteAfterSegment() throws IOException {
+    RecordingOutputStream recorded = new RecordingOutputStream();
+    ThreadSafeServletOutputStream out = new ThreadSafeServletOutputStream(recorded, 4);
+    out.write('a');
+    out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+    assertEquals(List.of("a", "0123456789"), recorded.writes);
+  }
+
+  /**
+   * The segments of other threads are written by close, each whole and in the order first written to.
+   */
+  @Test
+  public void testCloseWritesAllThreads() throws Exception {
+    RecordingOutputStream recorded = new RecordingOutputStream();
+    ThreadSafeServletOutputStream out = new ThreadSafeServletOutputStream(recorded, 64);
+    CountDownLatch written = new CountDownLatch(1);
+    Thread other = new Thread(() -> {
+      try {
+        out.write("other".getBytes(StandardCharsets.UTF_8));
+        written.countDown();
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    other.start();
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+    other.join();
+    out.write("mine".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertEquals(List.of("other", "mine"), recorded.writes);
+  }
+
+  /**
+   * A segment handed off is forgotten, and a later write by the same thread starts a new segment.
+   */
+  @Test
+  public void testWriteAfterWriteSegment() throws IOException {
+    RecordingOutputStream recorded = new RecordingOutputStream();
+    ThreadSafeServletOutputStream out = new ThreadSafeServletOutputStream(recorded, 8);
+    out.write("ab".getBytes(StandardCharsets.UTF_8));
+    out.writeSegment();
+    out.writeSegment();
+    out.write("cd".getBytes(StandardCharsets.UTF_8));
+    out.flush();
+    assertEquals(List.of("ab", "cd"), recorded.writes);
+    assertArrayEquals("abcd".getBytes(StandardCharsets.UTF_8), recorded.bytes.toByteArray());
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Measures the throughput of concurrent reads of the parent request, as made by concurrent subrequests reading
+ * headers, attributes, and server properties.  Compares an exclusive lock, as used before the read/write split, to
+ * {@link ThreadSafeHttpServletRequest}, {@link SnapshotHttpServletRequest}, and
+ * {@link UnmodifiableCopyHttpServletRequest}, and reports the {@link LockMetrics} of the thread-safe wrappers.
+ *
+ * <p>This is not run as part of the build.  Run its {@link #main(java.lang.String[])} with the test classpath:</p>
+ *
+ * <pre>ThreadSafeServletRequestContentionBenchmark [maxThreads [seconds]]</pre>
+ */
+public final class ThreadSafeServletRequestContentionBenchmark {
+
+  /**
+   * Synchronizes every method with one exclusive lock, as {@link ThreadSafeHttpServletRequest} did before reads
+   * shared a read lock.
+   */
+  private static class ExclusiveHttpServletRequest extends HttpServletRequestWrapper {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ExclusiveHttpServletRequest(HttpServletRequest req) {
+      super(req);
+    }
+
+    @Override
+    public String getHeader(String name) {
+      lock.lock();
+      try {
+        return super.getHeader(name);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      lock.lock();
+      try {
+        return super.getAttribute(name);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public String getServerName() {
+      lock.lock();
+      try {
+        return super.getServerName();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Creates a request with a few headers and attributes, without a container.
+   */
+  private static HttpServletRequest newRequest() {
+    Map<String, String> headers = new ConcurrentHashMap<>();
+    headers.put("accept", "text/html");
+    headers.put("user-agent", "benchmark");
+    Map<String, Object> attributes = new ConcurrentHashMap<>();
+    attributes.put("page", "index");
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        ThreadSafeServletRequestContentionBenchmark.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getHeader":
+              return headers.get(((String) args[0]).toLowerCase());
+            case "getHeaders":
+              String value = headers.get(((String) args[0]).toLowerCase());
+              return (value == null) ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singleton(value));
+            case "getHeaderNames":
+              return Collections.enumeration(headers.keySet());
+            case "getAttribute":
+              return attributes.get((String) args[0]);
+            case "getAttributeNames":
+              return Collections.enumeration(attributes.keySet());
+            case "getParameterMap":
+              return Collections.emptyMap();
+            case "getLocales":
+              return Collections.emptyEnumeration();
+            case "getServerName":
+              return "localhost";
+            case "getMethod":
+              return "GET";
+            case "getServerPort":
+            case "getRemotePort":
+            case "getLocalPort":
+            case "getContentLength":
+              return 0;
+            case "getContentLengthLong":
+              return 0L;
+            case "isSecure":
+            case "isRequestedSessionIdValid":
+            case "isRequestedSessionIdFromCookie":
+            case "isRequestedSessionIdFromURL":
+              return false;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return null;
+          }
+        }
+    );
+  }
+
+  /**
+   * Reads the request as a subrequest would, from the given number of threads, for the given duration.
+   *
+   * @return  the reads per second
+   */
+  private static double run(HttpServletRequest req, int threads, long nanos) throws InterruptedException {
+    LongAdder reads = new LongAdder();
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        long end = System.nanoTime() + nanos;
+        long count = 0;
+        int hash = 0;
+        while (System.nanoTime() < end) {
+          for (int j = 0; j < 100; j++) {
+            hash += req.getHeader("accept").length();
+            hash += req.getAttribute("page").hashCode();
+            hash += req.getServerName().length();
+          }
+          count += 300;
+        }
+        reads.add(count);
+        if (hash == 42) {
+          // Keeps the reads from being optimized away
+          System.out.print("");
+        }
+      });
+      workers[i].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return reads.sum() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    long nanos = TimeUnit.SECONDS.toNanos((args.length > 1) ? Long.parseLong(args[1]) : 2);
+    HttpServletRequest req = newRequest();
+    Map<String, Function<HttpServletRequest, HttpServletRequest>> wrappers = new LinkedHashMap<>();
+    wrappers.put("exclusive", ExclusiveHttpServletRequest::new);
+    wrappers.put("read/write", ThreadSafeHttpServletRequest::new);
+    wrappers.put("snapshot", SnapshotHttpServletRequest::new);
+    wrappers.put("unmodifiable", UnmodifiableCopyHttpServletRequest::new);
+    // Warm-up
+    for (Function<HttpServletRequest, HttpServletRequest> wrapper : wrappers.values()) {
+      run(wrapper.apply(req), maxThreads, nanos / 4);
+    }
+    System.out.printf("%-8s", "threads");
+    for (String name : wrappers.keySet()) {
+      System.out.printf("%16s", name);
+    }
+    System.out.println("   (reads/second)");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      System.out.printf("%-8d", threads);
+      for (Function<HttpServletRequest, HttpServletRequest> wrapper : wrappers.values()) {
+        System.out.printf("%16.0f", run(wrapper.apply(req), threads, nanos));
+      }
+      System.out.println();
+    }
+    // Contention of the thread-safe wrapper at full concurrency
+    for (LockMetrics metrics : LockMetrics.getAll()) {
+      metrics.reset();
+    }
+    LockMetrics.setEnabled(true);
+    try {
+      run(new ThreadSafeHttpServletRequest(req), maxThreads, nanos);
+    } finally {
+      LockMetrics.setEnabled(false);
+    }
+    for (LockMetrics metrics : LockMetrics.getAll()) {
+      if (metrics.getAcquisitionCount() > 0) {
+        System.out.println(metrics);
+      }
+    }
+  }
+}
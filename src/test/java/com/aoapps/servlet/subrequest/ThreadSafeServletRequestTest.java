@@ -0,0 +1,102 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+public class ThreadSafeServletRequestTest {
+
+  private static HttpServletRequest newRequest(String value) {
+    HttpServletRequest req = ServletMocks.newRequest(Collections.emptyMap());
+    req.setAttribute("a", value);
+    return req;
+  }
+
+  @Test
+  public void testAttributesWrittenThrough() {
+    HttpServletRequest req = newRequest("1");
+    ThreadSafeServletRequest wrapper = new ThreadSafeServletRequest(req);
+    wrapper.setAttribute("b", "2");
+    assertEquals("2", req.getAttribute("b"));
+    wrapper.removeAttribute("a");
+    assertNull(req.getAttribute("a"));
+  }
+
+  @Test
+  public void testConcurrentAttributesNotWrittenThrough() {
+    HttpServletRequest req = newRequest("1");
+    ThreadSafeServletRequest wrapper = new ThreadSafeServletRequest(req, true);
+    assertEquals("1", wrapper.getAttribute("a"));
+    wrapper.setAttribute("b", "2");
+    wrapper.removeAttribute("a");
+    assertEquals("2", wrapper.getAttribute("b"));
+    assertNull(wrapper.getAttribute("a"));
+    assertNull("Not passed along to the wrapped request", req.getAttribute("b"));
+    assertEquals("1", req.getAttribute("a"));
+    req.setAttribute("c", "3");
+    assertNull("Changes to the wrapped request not seen", wrapper.getAttribute("c"));
+  }
+
+  @Test
+  public void testConcurrentAttributesSetRequest() {
+    ThreadSafeServletRequest wrapper = new ThreadSafeServletRequest(newRequest("1"), true);
+    wrapper.setAttribute("b", "2");
+    wrapper.setRequest(newRequest("3"));
+    assertEquals("3", wrapper.getAttribute("a"));
+    assertNull("Changes through the wrapper discarded", wrapper.getAttribute("b"));
+  }
+
+  /**
+   * Readers never see the attributes partially copied while the wrapped request is replaced.
+   */
+  @Test
+  public void testConcurrentAttributesSetRequestAtomic() throws InterruptedException {
+    ThreadSafeServletRequest wrapper = new ThreadSafeServletRequest(newRequest("0"), true);
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicInteger missing = new AtomicInteger();
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        if (wrapper.getAttribute("a") == null) {
+          missing.incrementAndGet();
+        }
+      }
+    });
+    reader.start();
+    try {
+      for (int i = 0; i < 10000; i++) {
+        wrapper.setRequest(newRequest(Integer.toString(i)));
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    assertEquals(0, missing.get());
+  }
+}
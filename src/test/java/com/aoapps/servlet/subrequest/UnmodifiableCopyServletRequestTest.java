@@ -0,0 +1,69 @@
+/*
+ * ao-servlet-subrequest - Servlet sub-request wrappers with optional concurrency.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-servlet-subrequest.
+ *
+ * ao-servlet-subrequest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-servlet-subrequest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-servlet-subrequest.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.aoapps.servlet.subrequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+public class UnmodifiableCopyServletRequestTest {
+
+  @Test
+  public void testLazyCopiedOnFirstAccess() {
+    HttpServletRequest req = ServletMocks.newRequest(Collections.emptyMap());
+    UnmodifiableCopyServletRequest copy = new UnmodifiableCopyServletRequest(req, true);
+    req.setAttribute("a", "1");
+    assertEquals("1", copy.getAttribute("a"));
+    req.setAttribute("a", "2");
+    assertEquals("Copied once", "1", copy.getAttribute("a"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSetAttribute() {
+    new UnmodifiableCopyServletRequest(ServletMocks.newRequest(Collections.emptyMap())).setAttribute("a", "1");
+  }
+
+  /**
+   * The attributes are copied again at refresh, replacing the previous copy without affecting its readers.
+   */
+  @Test
+  public void testRefreshAttributes() {
+    HttpServletRequest req = ServletMocks.newRequest(Collections.emptyMap());
+    req.setAttribute("a", "1");
+    UnmodifiableCopyServletRequest copy = new UnmodifiableCopyServletRequest(req, true);
+    assertEquals("1", copy.getAttribute("a"));
+    Enumeration<String> names = copy.getAttributeNames();
+    req.setAttribute("b", "2");
+    copy.refreshAttributes();
+    req.setAttribute("c", "3");
+    assertEquals("2", copy.getAttribute("b"));
+    assertNull("Copied at refresh, not read-through later", copy.getAttribute("c"));
+    assertEquals("Previous copy unchanged", Collections.singletonList("a"), Collections.list(names));
+    assertEquals(Arrays.asList("a", "b"), Collections.list(copy.getAttributeNames()));
+  }
+}